@@ -0,0 +1,60 @@
+package com.drmaciver;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+// Latency of nearestN under each kind of SearchBudget. The recall of each
+// budget against an exact search is printed when the trial is set up, so
+// the two together give a recall / latency curve for each knob.
+public class ApproximateBenchmark extends DatasetBenchmark{
+  @Param({"10"})
+  public int n;
+
+  // "exact", or one of calls, leaves, slack or nanos with a limit, as in
+  // "calls=2000".
+  @Param({"exact", "calls=500", "calls=2000", "calls=8000", "leaves=2", "leaves=8", "leaves=32", "slack=0.25", "slack=1", "nanos=20000", "nanos=100000"})
+  public String budget;
+
+  VantageTree<double[]> tree;
+  NearestNeighbourSearcher<double[]> searcher;
+  SearchBudget searchBudget;
+  double[][] result;
+
+  void setUpTree(){
+    tree = new VantageTree<double[]>(metric, points);
+    searcher = tree.searcher();
+    searchBudget = parse(budget);
+    result = new double[n][];
+
+    long hits = 0;
+    int exact = 0;
+    for(double[] q : queries){
+      Set<double[]> truth = Collections.newSetFromMap(new IdentityHashMap<double[], Boolean>());
+      truth.addAll(tree.nearestN(q, n));
+      int found = searcher.nearestN(q, n, searchBudget, result, null);
+      for(int i = 0; i < found; i++) if(truth.contains(result[i])) hits++;
+      if(searcher.lastSearchExact()) exact++;
+    }
+    System.out.println("  recall@" + n + " for " + budget + ": " + (hits / (double)(n * queries.length)) + ", exact for " + exact + " of " + queries.length + " queries");
+  }
+
+  static SearchBudget parse(String budget){
+    if(budget.equals("exact")) return SearchBudget.EXACT;
+    String[] parts = budget.split("=");
+    if(parts[0].equals("calls")) return SearchBudget.EXACT.withMaxDistanceCalls(Long.parseLong(parts[1]));
+    if(parts[0].equals("leaves")) return SearchBudget.EXACT.withMaxLeaves(Long.parseLong(parts[1]));
+    if(parts[0].equals("slack")) return SearchBudget.EXACT.withSlack(Double.parseDouble(parts[1]));
+    if(parts[0].equals("nanos")) return SearchBudget.EXACT.withMaxNanos(Long.parseLong(parts[1]));
+    throw new IllegalArgumentException("Unknown budget " + budget);
+  }
+
+  @Benchmark
+  public int nearestN(){
+    return searcher.nearestN(nextQuery(), n, searchBudget, result, null);
+  }
+}
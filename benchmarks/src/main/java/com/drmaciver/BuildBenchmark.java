@@ -0,0 +1,19 @@
+package com.drmaciver;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+public class BuildBenchmark extends DatasetBenchmark{
+  @Benchmark
+  public VantageTree<double[]> build(){
+    countOperation();
+    return new VantageTree<double[]>(metric, points);
+  }
+}
@@ -0,0 +1,24 @@
+package com.drmaciver;
+
+// Wraps a metric to count how often it is called. Not thread safe.
+class CountingMetric<V> extends Metric<V>{
+  private final Metric<V> metric;
+  long calls;
+
+  CountingMetric(Metric<V> metric){
+    this.metric = metric;
+  }
+
+  public double distance(V x, V y){
+    calls++;
+    return metric.distance(x, y);
+  }
+
+  public double distanceWithCutoff(V x, V y, double cutoff){
+    calls++;
+    return metric.distanceWithCutoff(x, y, cutoff);
+  }
+
+  public double bound(double d1, double d2){ return metric.bound(d1, d2); }
+  public double unbound(double d1, double d2){ return metric.unbound(d1, d2); }
+}
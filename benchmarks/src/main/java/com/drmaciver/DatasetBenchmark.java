@@ -0,0 +1,98 @@
+package com.drmaciver;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Common set up for the benchmarks: a dataset of the requested size,
+// dimension and distribution, a stream of queries drawn from the same
+// distribution, and a count of distance evaluations per operation.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public abstract class DatasetBenchmark{
+  static final int NUM_QUERIES = 1024;
+
+  @Param({"10000", "100000"})
+  public int size;
+
+  @Param({"8", "32"})
+  public int dimension;
+
+  @Param({Datasets.UNIFORM, Datasets.CLUSTERED, Datasets.REALISTIC, Datasets.DUPLICATED})
+  public String distribution;
+
+  List<double[]> points;
+  double[][] queries;
+  final CountingMetric<double[]> metric = new CountingMetric<double[]>(Metric.L2_DISTANCE);
+
+  private int nextQuery;
+  private long operations;
+
+  @Setup(Level.Trial)
+  public void setUpDataset(){
+    Random random = new Random(size * 31L + dimension);
+    List<double[]> all = Datasets.generate(distribution, size + NUM_QUERIES, dimension, random);
+    points = all.subList(0, size);
+    queries = all.subList(size, all.size()).toArray(new double[NUM_QUERIES][]);
+    setUpTree();
+  }
+
+  // Called once the dataset exists, for subclasses to build what they query.
+  void setUpTree(){}
+
+  // Estimates the epsilon at which a query matches the given fraction of the
+  // points, from the distances between a sample of queries and points.
+  double epsilonFor(double fraction){
+    int sampledQueries = Math.min(queries.length, 64);
+    int sampledPoints = Math.min(points.size(), 4096);
+    double[] distances = new double[sampledQueries * sampledPoints];
+    int k = 0;
+    for(int i = 0; i < sampledQueries; i++){
+      for(int j = 0; j < sampledPoints; j++){
+        distances[k++] = Metric.L2_DISTANCE.distance(queries[i], points.get(j * (points.size() / sampledPoints)));
+      }
+    }
+    Arrays.sort(distances);
+    return distances[(int)(fraction * (distances.length - 1))];
+  }
+
+  void countOperation(){
+    operations++;
+  }
+
+  double[] nextQuery(){
+    countOperation();
+    double[] q = queries[nextQuery];
+    nextQuery = (nextQuery + 1) % queries.length;
+    return q;
+  }
+
+  @Setup(Level.Iteration)
+  public void resetCounts(){
+    metric.calls = 0;
+    operations = 0;
+  }
+
+  @TearDown(Level.Iteration)
+  public void reportCounts(){
+    if(operations > 0) System.out.println("  distance evaluations per operation: " + (metric.calls / (double)operations));
+  }
+}
@@ -0,0 +1,109 @@
+package com.drmaciver;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Random;
+
+// Synthetic point sets for the benchmarks.
+class Datasets{
+  // Points spread evenly over the unit cube.
+  static final String UNIFORM = "uniform";
+  // Points in a few tight, equally sized gaussian blobs.
+  static final String CLUSTERED = "clustered";
+  // Something closer to real embeddings: points lying near a low dimensional
+  // subspace, with noise, in clusters whose sizes follow a power law.
+  static final String REALISTIC = "realistic";
+  // Like click-stream data: a few hundred distinct points on a coarse grid,
+  // each repeated as separate but equal arrays with multiplicities that
+  // follow a power law, so most points have copies and most distances tie.
+  static final String DUPLICATED = "duplicated";
+
+  static List<double[]> generate(String distribution, int size, int dimension, Random random){
+    if(UNIFORM.equals(distribution)) return uniform(size, dimension, random);
+    if(CLUSTERED.equals(distribution)) return clustered(size, dimension, random);
+    if(REALISTIC.equals(distribution)) return realistic(size, dimension, random);
+    if(DUPLICATED.equals(distribution)) return duplicated(size, dimension, random);
+    throw new IllegalArgumentException("Unknown distribution " + distribution);
+  }
+
+  static List<double[]> uniform(int size, int dimension, Random random){
+    List<double[]> points = new ArrayList<double[]>(size);
+    for(int i = 0; i < size; i++){
+      double[] p = new double[dimension];
+      for(int j = 0; j < dimension; j++) p[j] = random.nextDouble();
+      points.add(p);
+    }
+    return points;
+  }
+
+  static List<double[]> clustered(int size, int dimension, Random random){
+    List<double[]> centers = uniform(16, dimension, random);
+    List<double[]> points = new ArrayList<double[]>(size);
+    for(int i = 0; i < size; i++){
+      double[] center = centers.get(random.nextInt(centers.size()));
+      double[] p = new double[dimension];
+      for(int j = 0; j < dimension; j++) p[j] = center[j] + 0.05 * random.nextGaussian();
+      points.add(p);
+    }
+    return points;
+  }
+
+  static List<double[]> realistic(int size, int dimension, Random random){
+    int intrinsic = Math.min(dimension, 4);
+    double[][] basis = new double[intrinsic][dimension];
+    for(double[] b : basis) for(int j = 0; j < dimension; j++) b[j] = random.nextGaussian() / Math.sqrt(dimension);
+
+    int clusters = 64;
+    double[][] centers = new double[clusters][intrinsic];
+    double[] weights = new double[clusters];
+    double total = 0;
+    for(int c = 0; c < clusters; c++){
+      for(int k = 0; k < intrinsic; k++) centers[c][k] = random.nextGaussian();
+      weights[c] = 1.0 / (c + 1);
+      total += weights[c];
+    }
+
+    List<double[]> points = new ArrayList<double[]>(size);
+    for(int i = 0; i < size; i++){
+      double pick = random.nextDouble() * total;
+      int c = 0;
+      while(c < clusters - 1 && pick > weights[c]){
+        pick -= weights[c];
+        c++;
+      }
+
+      double[] p = new double[dimension];
+      for(int k = 0; k < intrinsic; k++){
+        double coordinate = centers[c][k] + 0.2 * random.nextGaussian();
+        for(int j = 0; j < dimension; j++) p[j] += coordinate * basis[k][j];
+      }
+      for(int j = 0; j < dimension; j++) p[j] += 0.01 * random.nextGaussian();
+      points.add(p);
+    }
+    return points;
+  }
+
+  static List<double[]> duplicated(int size, int dimension, Random random){
+    int distinct = 256;
+    double[][] values = new double[distinct][dimension];
+    double[] weights = new double[distinct];
+    double total = 0;
+    for(int c = 0; c < distinct; c++){
+      for(int j = 0; j < dimension; j++) values[c][j] = random.nextInt(4);
+      weights[c] = 1.0 / (c + 1);
+      total += weights[c];
+    }
+
+    List<double[]> points = new ArrayList<double[]>(size);
+    for(int i = 0; i < size; i++){
+      double pick = random.nextDouble() * total;
+      int c = 0;
+      while(c < distinct - 1 && pick > weights[c]){
+        pick -= weights[c];
+        c++;
+      }
+      points.add(values[c].clone());
+    }
+    return points;
+  }
+}
@@ -0,0 +1,49 @@
+package com.drmaciver;
+
+import java.util.Collection;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.infra.Blackhole;
+
+public class EpsilonBenchmark extends DatasetBenchmark{
+  // The fraction of the dataset a typical query should return.
+  @Param({"0.0001", "0.001", "0.01", "0.1"})
+  public double selectivity;
+
+  VantageTree<double[]> tree;
+  double epsilon;
+
+  void setUpTree(){
+    tree = new VantageTree<double[]>(metric, points);
+    epsilon = epsilonFor(selectivity);
+  }
+
+  @Benchmark
+  public Collection<double[]> allWithinEpsilon(){
+    return tree.allWithinEpsilon(nextQuery(), epsilon);
+  }
+
+  @Benchmark
+  public int allWithinEpsilonSize(){
+    return tree.allWithinEpsilon(nextQuery(), epsilon).size();
+  }
+
+  @Benchmark
+  public int countWithinEpsilon(){
+    return tree.countWithinEpsilon(nextQuery(), epsilon);
+  }
+
+  @Benchmark
+  public boolean anyWithinEpsilon(){
+    return tree.anyWithinEpsilon(nextQuery(), epsilon);
+  }
+
+  @Benchmark
+  public void forEachWithinEpsilon(final Blackhole blackhole){
+    tree.forEachWithinEpsilon(nextQuery(), epsilon, new Consumer<double[]>(){
+      public void accept(double[] w){ blackhole.consume(w); }
+    });
+  }
+}
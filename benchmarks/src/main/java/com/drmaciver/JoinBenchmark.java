@@ -0,0 +1,57 @@
+package com.drmaciver;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Whole dataset joins: every pair within epsilon, and the k nearest
+// neighbour graph, done by the tree at once or by one query per point. An
+// operation is the whole join, so the reported distance evaluations are for
+// all of it.
+public class JoinBenchmark extends DatasetBenchmark{
+  // The fraction of the dataset a typical point should be paired with.
+  @Param({"0.0001", "0.001"})
+  public double selectivity;
+
+  @Param({"10"})
+  public int k;
+
+  VantageTree<double[]> tree;
+  double epsilon;
+
+  void setUpTree(){
+    tree = new VantageTree<double[]>(metric, points);
+    epsilon = epsilonFor(selectivity);
+  }
+
+  @Benchmark
+  public void selfJoin(final Blackhole blackhole){
+    countOperation();
+    tree.selfJoin(epsilon, new BiConsumer<double[], double[]>(){
+      public void accept(double[] x, double[] y){ blackhole.consume(x); blackhole.consume(y); }
+    });
+  }
+
+  @Benchmark
+  public void selfJoinByQueries(Blackhole blackhole){
+    countOperation();
+    for(double[] p : points) blackhole.consume(tree.allWithinEpsilon(p, epsilon));
+  }
+
+  @Benchmark
+  public void knnGraph(final Blackhole blackhole){
+    countOperation();
+    tree.knnGraph(k, new BiConsumer<double[], List<double[]>>(){
+      public void accept(double[] x, List<double[]> neighbours){ blackhole.consume(neighbours); }
+    });
+  }
+
+  @Benchmark
+  public void knnGraphByQueries(Blackhole blackhole){
+    countOperation();
+    for(double[] p : points) blackhole.consume(tree.nearestN(p, k + 1));
+  }
+}
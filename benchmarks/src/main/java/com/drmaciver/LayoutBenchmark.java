@@ -0,0 +1,53 @@
+package com.drmaciver;
+
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+// Build time and query cost of the tree under each node layout in
+// BuildOptions: "binary" for the default, or "<vantage points>x<fan out>"
+// for multi vantage point nodes.
+public class LayoutBenchmark extends DatasetBenchmark{
+  @Param({"binary", "2x2", "2x3", "1x4", "3x2"})
+  public String layout;
+
+  @Param({"10"})
+  public int n;
+
+  @Param({"0.001"})
+  public double selectivity;
+
+  BuildOptions options;
+  VantageTree<double[]> tree;
+  double epsilon;
+
+  void setUpTree(){
+    options = parse(layout);
+    tree = new VantageTree<double[]>(metric, points, options);
+    epsilon = epsilonFor(selectivity);
+    System.out.println("  depth for " + layout + ": " + tree.tree.depth());
+  }
+
+  static BuildOptions parse(String layout){
+    if(layout.equals("binary")) return BuildOptions.DEFAULT;
+    String[] parts = layout.split("x");
+    return BuildOptions.DEFAULT.withVantagePoints(Integer.parseInt(parts[0])).withFanOut(Integer.parseInt(parts[1]));
+  }
+
+  @Benchmark
+  public VantageTree<double[]> build(){
+    countOperation();
+    return new VantageTree<double[]>(metric, points, options);
+  }
+
+  @Benchmark
+  public List<double[]> nearestN(){
+    return tree.nearestN(nextQuery(), n);
+  }
+
+  @Benchmark
+  public int countWithinEpsilon(){
+    return tree.countWithinEpsilon(nextQuery(), epsilon);
+  }
+}
@@ -0,0 +1,61 @@
+package com.drmaciver;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+// Query cost under each LeafLayout and leaf size, where "auto" is the size
+// BuildOptions.withLeafSizeFor picks. Leaves are only packed for the plain
+// L2 metric, so these trees do not use the counting one and report no
+// distance evaluations.
+public class LeafBenchmark extends DatasetBenchmark{
+  @Param({"objects", "point-major", "dimension-major"})
+  public String layout;
+
+  @Param({"auto", "16", "64", "256"})
+  public String leafSize;
+
+  @Param({"false", "true"})
+  public boolean normCache;
+
+  @Param({"10"})
+  public int n;
+
+  @Param({"0.001"})
+  public double selectivity;
+
+  VantageTree<double[]> tree;
+  double epsilon;
+
+  void setUpTree(){
+    BuildOptions options = BuildOptions.DEFAULT.withLeafLayout(parse(layout)).withNormCache(normCache);
+    if(leafSize.equals("auto")) options = options.withLeafSizeFor(Metric.L2_DISTANCE, points);
+    else options = options.withLeafSize(Integer.parseInt(leafSize));
+    tree = new VantageTree<double[]>(Metric.L2_DISTANCE, points, options);
+    epsilon = epsilonFor(selectivity);
+    System.out.println("  leaf size for " + layout + "/" + leafSize + ": " + options.leafSize);
+  }
+
+  static LeafLayout parse(String layout){
+    if(layout.equals("point-major")) return LeafLayout.POINT_MAJOR;
+    if(layout.equals("dimension-major")) return LeafLayout.DIMENSION_MAJOR;
+    return LeafLayout.OBJECTS;
+  }
+
+  @Benchmark
+  public List<double[]> nearestN(){
+    return tree.nearestN(nextQuery(), n);
+  }
+
+  @Benchmark
+  public int countWithinEpsilon(){
+    return tree.countWithinEpsilon(nextQuery(), epsilon);
+  }
+
+  @Benchmark
+  public Collection<double[]> allWithinEpsilon(){
+    return tree.allWithinEpsilon(nextQuery(), epsilon);
+  }
+}
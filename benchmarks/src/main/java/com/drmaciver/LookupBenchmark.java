@@ -0,0 +1,74 @@
+package com.drmaciver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.infra.Blackhole;
+
+public class LookupBenchmark extends DatasetBenchmark{
+  @Param({"false", "true"})
+  public boolean equalityIndex;
+
+  VantageTree<double[]> tree;
+  int nextPoint;
+
+  void setUpTree(){
+    tree = new VantageTree<double[]>(metric, points, BuildOptions.DEFAULT.withEqualityIndex(equalityIndex));
+  }
+
+  @Benchmark
+  public double[] nearest(){
+    return tree.nearest(nextQuery());
+  }
+
+  @Benchmark
+  public boolean containsPresent(){
+    countOperation();
+    double[] p = points.get(nextPoint);
+    nextPoint = (nextPoint + 1) % points.size();
+    return tree.contains(p);
+  }
+
+  // As an ingest path would see a duplicate: equal, but a different array.
+  @Benchmark
+  public boolean containsCopy(){
+    countOperation();
+    double[] p = points.get(nextPoint).clone();
+    nextPoint = (nextPoint + 1) % points.size();
+    return tree.contains(p);
+  }
+
+  @Benchmark
+  public boolean containsAbsent(){
+    return tree.contains(nextQuery());
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void iterate(Blackhole blackhole){
+    countOperation();
+    for(double[] p : tree) blackhole.consume(p);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void forEach(final Blackhole blackhole){
+    countOperation();
+    tree.forEach(new Consumer<double[]>(){
+      public void accept(double[] p){ blackhole.consume(p); }
+    });
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public double parallelStream(){
+    countOperation();
+    return tree.parallelStream().mapToDouble(new ToDoubleFunction<double[]>(){
+      public double applyAsDouble(double[] p){ return p[0]; }
+    }).sum();
+  }
+}
@@ -0,0 +1,128 @@
+package com.drmaciver;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A single distance evaluation: the original Math.pow L2 loop against the
+// scalar and SIMD distance kernels. Each operation cycles through a small
+// pool of vectors so the inputs are not constant.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class MetricBenchmark{
+  static final int POOL_SIZE = 64;
+
+  @Param({"8", "16", "32", "64", "128", "256", "512", "1024"})
+  public int dimension;
+
+  double[][] doubles;
+  float[][] floats;
+  int next;
+
+  final DistanceKernels scalar = new DistanceKernels();
+  final DistanceKernels kernels = DistanceKernels.INSTANCE;
+
+  @Setup(Level.Trial)
+  public void setUp(){
+    if(!kernels.vectorized()) System.out.println("  warning: the Vector API is not available, so the kernels are scalar");
+    Random random = new Random(dimension);
+    doubles = new double[POOL_SIZE][dimension];
+    floats = new float[POOL_SIZE][dimension];
+    for(int i = 0; i < POOL_SIZE; i++){
+      for(int j = 0; j < dimension; j++){
+        doubles[i][j] = random.nextDouble();
+        floats[i][j] = (float)doubles[i][j];
+      }
+    }
+  }
+
+  int nextPair(){
+    next = (next + 1) & (POOL_SIZE - 1);
+    return next;
+  }
+
+  // Metric.L2_DISTANCE as it was before the distance kernels.
+  static double legacyL2(double[] x, double[] y){
+    if(x.length > y.length){ double[] z = x; x = y; y = z; }
+    double tot = 0.0;
+    for(int i = 0; i < x.length; i++) tot += Math.pow(x[i] - y[i], 2);
+    for(int i = x.length; i < y.length; i++) tot += Math.pow(y[i], 2);
+    return Math.sqrt(tot);
+  }
+
+  @Benchmark
+  public double l2Legacy(){
+    int i = nextPair();
+    return legacyL2(doubles[i], doubles[(i + 1) & (POOL_SIZE - 1)]);
+  }
+
+  @Benchmark
+  public double l2Scalar(){
+    int i = nextPair();
+    return Math.sqrt(scalar.squaredL2(doubles[i], doubles[(i + 1) & (POOL_SIZE - 1)], dimension, Double.POSITIVE_INFINITY));
+  }
+
+  @Benchmark
+  public double l2(){
+    int i = nextPair();
+    return VectorMetrics.L2.distance(doubles[i], doubles[(i + 1) & (POOL_SIZE - 1)]);
+  }
+
+  @Benchmark
+  public double squaredL2(){
+    int i = nextPair();
+    return VectorMetrics.SQUARED_L2.distance(doubles[i], doubles[(i + 1) & (POOL_SIZE - 1)]);
+  }
+
+  @Benchmark
+  public double l1Scalar(){
+    int i = nextPair();
+    return scalar.l1(doubles[i], doubles[(i + 1) & (POOL_SIZE - 1)], dimension, Double.POSITIVE_INFINITY);
+  }
+
+  @Benchmark
+  public double l1(){
+    int i = nextPair();
+    return VectorMetrics.L1.distance(doubles[i], doubles[(i + 1) & (POOL_SIZE - 1)]);
+  }
+
+  @Benchmark
+  public double lInfinity(){
+    int i = nextPair();
+    return VectorMetrics.L_INFINITY.distance(doubles[i], doubles[(i + 1) & (POOL_SIZE - 1)]);
+  }
+
+  @Benchmark
+  public double angular(){
+    int i = nextPair();
+    return VectorMetrics.ANGULAR.distance(doubles[i], doubles[(i + 1) & (POOL_SIZE - 1)]);
+  }
+
+  @Benchmark
+  public double floatL2Scalar(){
+    int i = nextPair();
+    return Math.sqrt(scalar.squaredL2(floats[i], floats[(i + 1) & (POOL_SIZE - 1)], dimension, Double.POSITIVE_INFINITY));
+  }
+
+  @Benchmark
+  public double floatL2(){
+    int i = nextPair();
+    return VectorMetrics.FLOAT_L2.distance(floats[i], floats[(i + 1) & (POOL_SIZE - 1)]);
+  }
+}
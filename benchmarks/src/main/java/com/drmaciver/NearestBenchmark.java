@@ -0,0 +1,33 @@
+package com.drmaciver;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+public class NearestBenchmark extends DatasetBenchmark{
+  @Param({"1", "10", "100"})
+  public int n;
+
+  VantageTree<double[]> tree;
+
+  void setUpTree(){
+    tree = new VantageTree<double[]>(metric, points);
+  }
+
+  @Benchmark
+  public List<double[]> nearestN(){
+    return tree.nearestN(nextQuery(), n);
+  }
+
+  // The same neighbours taken one at a time from nearestIterator.
+  @Benchmark
+  public List<double[]> nearestIterator(){
+    Iterator<double[]> it = tree.nearestIterator(nextQuery());
+    List<double[]> result = new ArrayList<double[]>(n);
+    while(result.size() < n && it.hasNext()) result.add(it.next());
+    return result;
+  }
+}
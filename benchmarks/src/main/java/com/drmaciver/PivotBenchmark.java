@@ -0,0 +1,61 @@
+package com.drmaciver;
+
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+// Build time against query cost for each PivotSelector. A selector is named
+// as in its toString, optionally followed by a per node budget of distance
+// calls, as in "recursive/2000". The distance calls made by one build are
+// printed when the trial is set up.
+public class PivotBenchmark extends DatasetBenchmark{
+  @Param({"recursive", "recursive/2000", "max-variance", "max-variance/500", "farthest-first", "farthest-first/1000", "random"})
+  public String selector;
+
+  @Param({"10"})
+  public int n;
+
+  @Param({"0.001"})
+  public double selectivity;
+
+  BuildOptions options;
+  VantageTree<double[]> tree;
+  double epsilon;
+
+  void setUpTree(){
+    options = parse(selector);
+    long before = metric.calls;
+    tree = new VantageTree<double[]>(metric, points, options);
+    System.out.println("  build distance calls for " + selector + ": " + (metric.calls - before) + ", depth " + tree.tree.depth());
+    epsilon = epsilonFor(selectivity);
+  }
+
+  static BuildOptions parse(String selector){
+    String[] parts = selector.split("/");
+    BuildOptions options = BuildOptions.DEFAULT.withPivotSelector(named(parts[0]));
+    return parts.length == 1 ? options : options.withPivotBudget(Long.parseLong(parts[1]));
+  }
+
+  static PivotSelector named(String name){
+    PivotSelector[] selectors = { PivotSelector.RECURSIVE, PivotSelector.MAX_VARIANCE, PivotSelector.FARTHEST_FIRST, PivotSelector.RANDOM };
+    for(PivotSelector s : selectors) if(s.toString().equals(name)) return s;
+    throw new IllegalArgumentException("Unknown pivot selector " + name);
+  }
+
+  @Benchmark
+  public VantageTree<double[]> build(){
+    countOperation();
+    return new VantageTree<double[]>(metric, points, options);
+  }
+
+  @Benchmark
+  public List<double[]> nearestN(){
+    return tree.nearestN(nextQuery(), n);
+  }
+
+  @Benchmark
+  public int countWithinEpsilon(){
+    return tree.countWithinEpsilon(nextQuery(), epsilon);
+  }
+}
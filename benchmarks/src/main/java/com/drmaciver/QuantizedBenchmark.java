@@ -0,0 +1,54 @@
+package com.drmaciver;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+// Flat vector tree queries with the coordinates on the heap ("double"),
+// memory mapped ("mapped"), or searched through a QuantizedVectorTree over
+// the mapped file ("float", "int8"). Distance evaluations are not counted.
+public class QuantizedBenchmark extends DatasetBenchmark{
+  @Param({"double", "mapped", "float", "int8"})
+  public String storage;
+
+  @Param({"10"})
+  public int n;
+
+  @Param({"0.001"})
+  public double selectivity;
+
+  AbstractVectorTree tree;
+  double epsilon;
+
+  void setUpTree(){
+    DoubleVectorVantageTree built = new DoubleVectorVantageTree(points);
+    epsilon = epsilonFor(selectivity);
+    if(storage.equals("double")){
+      tree = built;
+      return;
+    }
+    try {
+      File file = File.createTempFile("quantized", ".tree");
+      file.deleteOnExit();
+      built.write(file);
+      MappedVectorTree mapped = MappedVectorTree.map(file);
+      if(storage.equals("float")) tree = new QuantizedVectorTree(mapped, Quantization.FLOAT);
+      else if(storage.equals("int8")) tree = new QuantizedVectorTree(mapped, Quantization.INT8);
+      else tree = mapped;
+    } catch(IOException e){
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Benchmark
+  public int[] nearestIds(){
+    return tree.nearestIds(nextQuery(), n);
+  }
+
+  @Benchmark
+  public int[] allIdsWithinEpsilon(){
+    return tree.allIdsWithinEpsilon(nextQuery(), epsilon);
+  }
+}
@@ -0,0 +1,65 @@
+package com.drmaciver;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Queries against a ShardedMetricSearch of in-process shards, divided at
+// random or by pivots, with the shards queried one after another or in
+// parallel. One shard is the same as a plain VantageTree plus the cost of
+// scattering and gathering. The counting metric is not thread safe, so
+// distance evaluations are only counted when the shards are queried in
+// sequence.
+public class ShardedBenchmark extends DatasetBenchmark{
+  @Param({"random", "pivots"})
+  public String partitioning;
+
+  @Param({"1", "8"})
+  public int shards;
+
+  @Param({"false", "true"})
+  public boolean parallel;
+
+  @Param({"10"})
+  public int n;
+
+  @Param({"0.001"})
+  public double selectivity;
+
+  ShardedMetricSearch<double[]> search;
+  ForkJoinPool pool;
+  double epsilon;
+
+  void setUpTree(){
+    pool = parallel ? new ForkJoinPool(shards) : null;
+    ShardPartitioning p = partitioning.equals("pivots") ? ShardPartitioning.PIVOTS : ShardPartitioning.RANDOM;
+    Metric<double[]> m = parallel ? Metric.L2_DISTANCE : metric;
+    search = new ShardedMetricSearch<double[]>(m, points, shards, p, pool, 1L, BuildOptions.DEFAULT);
+    epsilon = epsilonFor(selectivity);
+  }
+
+  @TearDown(Level.Trial)
+  public void shutDown(){
+    if(pool != null) pool.shutdown();
+  }
+
+  @Benchmark
+  public List<double[]> nearestN(){
+    return search.nearestN(nextQuery(), n);
+  }
+
+  @Benchmark
+  public Collection<double[]> allWithinEpsilon(){
+    return search.allWithinEpsilon(nextQuery(), epsilon);
+  }
+
+  @Benchmark
+  public int countWithinEpsilon(){
+    return search.countWithinEpsilon(nextQuery(), epsilon);
+  }
+}
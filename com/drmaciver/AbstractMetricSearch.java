@@ -1,6 +1,18 @@
 package com.drmaciver;
 
 import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 abstract class AbstractMetricSearch<V> extends AbstractCollection<V> implements MetricSearch<V>{
   public V nearest(V v){
@@ -8,5 +20,91 @@ abstract class AbstractMetricSearch<V> extends AbstractCollection<V> implements
     else return nearestN(v, 1).get(0);
   }
 
+  public int countWithinEpsilon(V v, double e){
+    return allWithinEpsilon(v, e).size();
+  }
+
+  public boolean anyWithinEpsilon(V v, double e){
+    return !allWithinEpsilon(v, e).isEmpty();
+  }
+
+  public void forEachWithinEpsilon(V v, double e, Consumer<? super V> consumer){
+    for(V w : allWithinEpsilon(v, e)) consumer.accept(w);
+  }
+
+  // Searches that cannot stop early ignore the budget and are always exact.
+  public NearestResult<V> nearestN(V v, int n, SearchBudget budget){
+    return new NearestResult<V>(nearestN(v, n), true);
+  }
+
+  // Repeats nearestN with twice as many neighbours each time the last lot
+  // runs out. Subclasses that can search incrementally should override it.
+  public Iterator<V> nearestIterator(final V v){
+    return new Iterator<V>(){
+      List<V> batch = new ArrayList<V>();
+      int position;
+      int asked;
+      boolean exhausted;
+      // The elements already returned at the distance of the last one, which
+      // a larger nearestN may put in a different order. Equal elements are
+      // taken to be interchangeable.
+      final Map<V, Integer> ties = new HashMap<V, Integer>();
+      double last = Double.NEGATIVE_INFINITY;
+
+      public boolean hasNext(){
+        while(position == batch.size()){
+          if(exhausted) return false;
+          asked = Math.max(16, asked * 2);
+          List<V> found = nearestN(v, asked);
+          exhausted = found.size() < asked;
+
+          Map<V, Integer> seen = new HashMap<V, Integer>(ties);
+          batch = new ArrayList<V>();
+          position = 0;
+          for(V w : found){
+            double d = distance(v, w);
+            if(d < last) continue;
+            Integer c = d == last ? seen.get(w) : null;
+            if(c == null) batch.add(w);
+            else if(c == 1) seen.remove(w);
+            else seen.put(w, c - 1);
+          }
+        }
+        return true;
+      }
 
+      public V next(){
+        if(!hasNext()) throw new NoSuchElementException();
+        V w = batch.get(position++);
+        double d = distance(v, w);
+        if(d != last) ties.clear();
+        last = d;
+        Integer c = ties.get(w);
+        ties.put(w, c == null ? 1 : c + 1);
+        return w;
+      }
+
+      public void remove(){ throw new UnsupportedOperationException(); }
+    };
+  }
+
+  // The distance nearestIterator orders by. The default iterator needs it to
+  // tell which elements it has already returned.
+  abstract double distance(V x, V y);
+
+  public Stream<V> nearestStream(V v){
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(nearestIterator(v), Spliterator.ORDERED), false);
+  }
+
+  public List<List<V>> nearestNBatch(List<V> queries, int n){
+    List<List<V>> results = new ArrayList<List<V>>(queries.size());
+    for(V q : queries) results.add(nearestN(q, n));
+    return results;
+  }
+
+  public List<Collection<V>> allWithinEpsilonBatch(List<V> queries, double e){
+    List<Collection<V>> results = new ArrayList<Collection<V>>(queries.size());
+    for(V q : queries) results.add(allWithinEpsilon(q, e));
+    return results;
+  }
 }
@@ -0,0 +1,289 @@
+package com.drmaciver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Collection;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+// Queries over a flat vantage tree of fixed dimension double[] points under
+// Metric.L2_DISTANCE, independent of where the tree's arrays are stored.
+//
+// Rows are points in tree order, so that every subtree is a contiguous range
+// of rows. A node covers rows [nodeStart, nodeEnd). Leaves have nodeIn == -1.
+// Otherwise the center is the row at nodeStart, the in child covers
+// (nodeStart, nodeStart of out) and the out child covers the rest. A point's
+// id is its position in the list the tree was built from.
+//
+// A leaf with a NaN nodeThreshold is a run: every row in it is a copy of the
+// first, so queries measure only that one. Leaves have no other use for a
+// threshold, so this reads the same from files written before runs.
+abstract class AbstractVectorTree extends AbstractMetricSearch<double[]>{
+  final Metric<double[]> metric = Metric.L2_DISTANCE;
+
+  public abstract int dimension();
+
+  double distance(double[] x, double[] y){ return metric.distance(x, y); }
+
+  abstract int nodeCount();
+  abstract int nodeStart(int node);
+  abstract int nodeEnd(int node);
+  abstract int nodeIn(int node);
+  abstract int nodeOut(int node);
+  abstract double nodeThreshold(int node);
+  abstract double nodeRadius(int node);
+
+  abstract int id(int row);
+  abstract int rowOf(int id);
+  // A copy of the coordinates at row.
+  abstract double[] row(int row);
+  abstract double distanceToRow(double[] v, int row);
+
+  boolean isRun(int node){
+    return nodeIn(node) < 0 && Double.isNaN(nodeThreshold(node));
+  }
+
+  // Returns a copy of the point with the given id.
+  public double[] point(int id){
+    return row(rowOf(id));
+  }
+
+  void checkDimension(double[] v){
+    if(v.length != dimension()) throw new IllegalArgumentException("Expected a point of dimension " + dimension() + " but got one of dimension " + v.length);
+  }
+
+  public Iterator<double[]> iterator(){
+    return new Iterator<double[]>(){
+      int row = 0;
+      public boolean hasNext(){ return row < size(); }
+      public double[] next(){ return row(row++); }
+      public void remove(){ throw new UnsupportedOperationException(); }
+    };
+  }
+
+  public boolean contains(Object x){
+    if(!(x instanceof double[]) || isEmpty()) return false;
+    double[] v = (double[])x;
+    if(v.length != dimension()) return false;
+    int[] nearest = nearestIds(v, 1);
+    return Arrays.equals(point(nearest[0]), v);
+  }
+
+  // Writes the ids of the n nearest points to v into result, closest first,
+  // and returns how many were written.
+  public int nearestIds(double[] v, int n, int[] result){
+    checkDimension(v);
+    SmallestIndices q = new SmallestIndices(n);
+    if(size() > 0 && n > 0) nearestN(0, v, q);
+    int found = q.drainTo(result, null);
+    for(int i = 0; i < found && i < result.length; i++) result[i] = id(result[i]);
+    return Math.min(found, result.length);
+  }
+
+  public int[] nearestIds(double[] v, int n){
+    int[] result = new int[Math.min(n, size())];
+    nearestIds(v, n, result);
+    return result;
+  }
+
+  public List<double[]> nearestN(double[] v, int n){
+    int[] nearest = nearestIds(v, n);
+    List<double[]> result = new ArrayList<double[]>(nearest.length);
+    for(int id : nearest) result.add(point(id));
+    return result;
+  }
+
+  void nearestN(int node, double[] v, SmallestIndices q){
+    int start = nodeStart(node);
+    int end = nodeEnd(node);
+
+    if(isRun(node)){
+      // Copies beyond the number kept could only replace each other.
+      double r = distanceToRow(v, start);
+      for(int row = start; row < end && row - start < q.capacity(); row++) q.add(row, r);
+      return;
+    }
+    if(nodeIn(node) < 0){
+      for(int row = start; row < end; row++) q.add(row, distanceToRow(v, row));
+      return;
+    }
+
+    double r = distanceToRow(v, start);
+    q.add(start, r);
+
+    if(r < nodeThreshold(node)){
+      if(!excludesIn(node, r, q.bound())) nearestN(nodeIn(node), v, q);
+      if(!excludesOut(node, r, q.bound())) nearestN(nodeOut(node), v, q);
+    } else {
+      if(!excludesOut(node, r, q.bound())) nearestN(nodeOut(node), v, q);
+      if(!excludesIn(node, r, q.bound())) nearestN(nodeIn(node), v, q);
+    }
+  }
+
+  // Every point in increasing order of distance from v. As with VantageTree's,
+  // rows and nodes wait in separate queues and a node is only opened up once
+  // it might hold something closer than the nearest row waiting.
+  public Iterator<double[]> nearestIterator(final double[] v){
+    checkDimension(v);
+    final PriorityQueue<ValueWithDistance<Integer>> nodes = new PriorityQueue<ValueWithDistance<Integer>>();
+    final PriorityQueue<ValueWithDistance<Integer>> rows = new PriorityQueue<ValueWithDistance<Integer>>();
+    if(size() > 0) nodes.add(new ValueWithDistance<Integer>(0, 0.0));
+
+    return new Iterator<double[]>(){
+      public boolean hasNext(){
+        while(!nodes.isEmpty() && (rows.isEmpty() || nodes.peek().distance < rows.peek().distance)){
+          expand(nodes.poll().value);
+        }
+        return !rows.isEmpty();
+      }
+
+      public double[] next(){
+        if(!hasNext()) throw new NoSuchElementException();
+        return row(rows.poll().value);
+      }
+
+      void expand(int node){
+        int start = nodeStart(node);
+        if(nodeIn(node) < 0){
+          double r = isRun(node) ? distanceToRow(v, start) : Double.NaN;
+          for(int row = start; row < nodeEnd(node); row++) rows.add(new ValueWithDistance<Integer>(row, isRun(node) ? r : distanceToRow(v, row)));
+          return;
+        }
+        double r = distanceToRow(v, start);
+        rows.add(new ValueWithDistance<Integer>(start, r));
+        nodes.add(new ValueWithDistance<Integer>(nodeIn(node), metric.unbound(r, nodeThreshold(node))));
+        nodes.add(new ValueWithDistance<Integer>(nodeOut(node), Math.max(metric.unbound(r, nodeRadius(node)), metric.unbound(nodeThreshold(node), r))));
+      }
+
+      public void remove(){ throw new UnsupportedOperationException(); }
+    };
+  }
+
+  boolean excludesIn(int node, double r, double e){
+    return metric.bound(e, nodeThreshold(node)) < r;
+  }
+
+  boolean excludesOut(int node, double r, double e){
+    return metric.bound(e, nodeRadius(node)) < r || metric.bound(e, r) < nodeThreshold(node);
+  }
+
+  // Returns the ids of every point strictly within e of v, in no particular
+  // order.
+  public int[] allIdsWithinEpsilon(double[] v, double e){
+    checkDimension(v);
+    RowBuffer found = new RowBuffer();
+    if(size() > 0) allWithinEpsilon(0, v, e, found);
+    int[] result = new int[found.fill];
+    for(int i = 0; i < found.fill; i++) result[i] = id(found.rows[i]);
+    return result;
+  }
+
+  void allWithinEpsilon(int node, double[] v, double e, RowBuffer result){
+    int start = nodeStart(node);
+    int end = nodeEnd(node);
+
+    if(isRun(node)){
+      if(distanceToRow(v, start) < e) for(int row = start; row < end; row++) result.add(row);
+      return;
+    }
+    if(nodeIn(node) < 0){
+      for(int row = start; row < end; row++){
+        if(distanceToRow(v, row) < e) result.add(row);
+      }
+      return;
+    }
+
+    double r = distanceToRow(v, start);
+
+    if(metric.bound(r, nodeRadius(node)) < e){
+      for(int row = start; row < end; row++) result.add(row);
+      return;
+    }
+    if(metric.bound(e, nodeRadius(node)) < r) return;
+
+    if(r < e) result.add(start);
+
+    if(!excludesIn(node, r, e)) allWithinEpsilon(nodeIn(node), v, e, result);
+    if(!excludesOut(node, r, e)) allWithinEpsilon(nodeOut(node), v, e, result);
+  }
+
+  public int countWithinEpsilon(double[] v, double e){
+    return allIdsWithinEpsilon(v, e).length;
+  }
+
+  static class RowBuffer{
+    int[] rows = new int[16];
+    int fill;
+
+    void add(int row){
+      if(fill == rows.length) rows = Arrays.copyOf(rows, fill * 2);
+      rows[fill++] = row;
+    }
+  }
+
+  public Collection<double[]> allWithinEpsilon(double[] v, double e){
+    int[] found = allIdsWithinEpsilon(v, e);
+    List<double[]> result = new ArrayList<double[]>(found.length);
+    for(int id : found) result.add(point(id));
+    return result;
+  }
+
+  // Writes the tree out in the format MappedVectorTree reads.
+  public void write(File file) throws IOException{
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      VectorTreeFormat.Layout layout = new VectorTreeFormat.Layout(dimension(), size(), nodeCount());
+      ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(VectorTreeFormat.ORDER);
+
+      buffer.putInt(VectorTreeFormat.MAGIC);
+      buffer.putInt(VectorTreeFormat.VERSION);
+      buffer.putInt(dimension());
+      buffer.putInt(size());
+      buffer.putInt(nodeCount());
+      while(buffer.position() < VectorTreeFormat.HEADER_SIZE) buffer.put((byte)0);
+
+      for(int node = 0; node < nodeCount(); node++) buffer = putInt(channel, buffer, nodeStart(node));
+      for(int node = 0; node < nodeCount(); node++) buffer = putInt(channel, buffer, nodeEnd(node));
+      for(int node = 0; node < nodeCount(); node++) buffer = putInt(channel, buffer, nodeIn(node));
+      for(int node = 0; node < nodeCount(); node++) buffer = putInt(channel, buffer, nodeOut(node));
+      for(int row = 0; row < size(); row++) buffer = putInt(channel, buffer, id(row));
+      for(int id = 0; id < size(); id++) buffer = putInt(channel, buffer, rowOf(id));
+      if(layout.intPadding > 0) buffer = putInt(channel, buffer, 0);
+
+      for(int node = 0; node < nodeCount(); node++) buffer = putDouble(channel, buffer, nodeThreshold(node));
+      for(int node = 0; node < nodeCount(); node++) buffer = putDouble(channel, buffer, nodeRadius(node));
+      for(int row = 0; row < size(); row++){
+        for(double x : row(row)) buffer = putDouble(channel, buffer, x);
+      }
+
+      flush(channel, buffer);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static ByteBuffer putInt(FileChannel channel, ByteBuffer buffer, int x) throws IOException{
+    if(buffer.remaining() < 4) flush(channel, buffer);
+    return buffer.putInt(x);
+  }
+
+  private static ByteBuffer putDouble(FileChannel channel, ByteBuffer buffer, double x) throws IOException{
+    if(buffer.remaining() < 8) flush(channel, buffer);
+    return buffer.putDouble(x);
+  }
+
+  private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException{
+    buffer.flip();
+    while(buffer.hasRemaining()) channel.write(buffer);
+    buffer.clear();
+  }
+}
@@ -0,0 +1,153 @@
+package com.drmaciver;
+
+import java.util.List;
+import java.util.Random;
+
+// How a VantageTree lays out its nodes. BuildOptions.DEFAULT gives the
+// classic binary tree, with one center per node split at the median of the
+// distances to it. With more vantage points or a higher fan out each node
+// is a multi vantage point (MVP) node instead: its points are cut into
+// fanOut groups by their distance to the first vantage point, each of those
+// into fanOut groups by their distance to the second, and so on, for up to
+// fanOut ^ vantagePoints children. That makes for a much shallower tree,
+// with each query doing fewer, larger steps. pivotSelector chooses each
+// node's first center, making at most pivotBudget distance calls to do so.
+// Subtrees of at most leafSize points are leaves, scanned point by point,
+// with their points stored as leafLayout says and, if normCache is set and
+// the layout packs them, a cache of their norms to rule points out by. If
+// equalityIndex is set the tree also keeps a hash index of its elements,
+// which contains uses instead of a search. The with methods return a copy
+// with one setting changed.
+public class BuildOptions{
+  public static final BuildOptions DEFAULT = new BuildOptions(1, 2, PivotSelector.RECURSIVE, Long.MAX_VALUE, VantageTree.MAXIMUM_LEAF_SIZE, LeafLayout.OBJECTS, false, false);
+
+  // Children per node may not go over this.
+  public static final int MAXIMUM_CHILDREN = 256;
+
+  public final int vantagePoints;
+  public final int fanOut;
+  public final PivotSelector pivotSelector;
+  public final long pivotBudget;
+  public final int leafSize;
+  public final LeafLayout leafLayout;
+  public final boolean normCache;
+  public final boolean equalityIndex;
+
+  BuildOptions(int vantagePoints, int fanOut, PivotSelector pivotSelector, long pivotBudget, int leafSize, LeafLayout leafLayout, boolean normCache, boolean equalityIndex){
+    if(vantagePoints < 1) throw new IllegalArgumentException("Expected at least one vantage point but got " + vantagePoints);
+    if(fanOut < 2) throw new IllegalArgumentException("Expected a fan out of at least 2 but got " + fanOut);
+    if(Math.pow(fanOut, vantagePoints) > MAXIMUM_CHILDREN) throw new IllegalArgumentException(fanOut + " ^ " + vantagePoints + " children per node is more than the maximum of " + MAXIMUM_CHILDREN);
+    if(pivotSelector == null) throw new IllegalArgumentException("Expected a pivot selector");
+    if(pivotBudget < 0) throw new IllegalArgumentException("Expected a pivot budget of at least 0 but got " + pivotBudget);
+    if(leafSize < 1) throw new IllegalArgumentException("Expected a leaf size of at least 1 but got " + leafSize);
+    if(leafLayout == null) throw new IllegalArgumentException("Expected a leaf layout");
+    this.vantagePoints = vantagePoints;
+    this.fanOut = fanOut;
+    this.pivotSelector = pivotSelector;
+    this.pivotBudget = pivotBudget;
+    this.leafSize = leafSize;
+    this.leafLayout = leafLayout;
+    this.normCache = normCache;
+    this.equalityIndex = equalityIndex;
+  }
+
+  public BuildOptions withVantagePoints(int vantagePoints){
+    return new BuildOptions(vantagePoints, fanOut, pivotSelector, pivotBudget, leafSize, leafLayout, normCache, equalityIndex);
+  }
+
+  public BuildOptions withFanOut(int fanOut){
+    return new BuildOptions(vantagePoints, fanOut, pivotSelector, pivotBudget, leafSize, leafLayout, normCache, equalityIndex);
+  }
+
+  public BuildOptions withPivotSelector(PivotSelector pivotSelector){
+    return new BuildOptions(vantagePoints, fanOut, pivotSelector, pivotBudget, leafSize, leafLayout, normCache, equalityIndex);
+  }
+
+  public BuildOptions withPivotBudget(long pivotBudget){
+    return new BuildOptions(vantagePoints, fanOut, pivotSelector, pivotBudget, leafSize, leafLayout, normCache, equalityIndex);
+  }
+
+  public BuildOptions withLeafSize(int leafSize){
+    return new BuildOptions(vantagePoints, fanOut, pivotSelector, pivotBudget, leafSize, leafLayout, normCache, equalityIndex);
+  }
+
+  public BuildOptions withLeafLayout(LeafLayout leafLayout){
+    return new BuildOptions(vantagePoints, fanOut, pivotSelector, pivotBudget, leafSize, leafLayout, normCache, equalityIndex);
+  }
+
+  public BuildOptions withNormCache(boolean normCache){
+    return new BuildOptions(vantagePoints, fanOut, pivotSelector, pivotBudget, leafSize, leafLayout, normCache, equalityIndex);
+  }
+
+  public BuildOptions withEqualityIndex(boolean equalityIndex){
+    return new BuildOptions(vantagePoints, fanOut, pivotSelector, pivotBudget, leafSize, leafLayout, normCache, equalityIndex);
+  }
+
+  // A copy with a leaf size suited to how long metric takes on items. A
+  // leaf costs a distance call per point scanned, and going a level further
+  // down costs one per node visited and more bookkeeping, so the cheaper the
+  // metric the bigger the leaves should be. Packed leaves scan faster still,
+  // so get bigger leaves again. Timing the metric takes about 50ms and is
+  // noisy, but the tree built from the options this returns is as
+  // repeatable as any other.
+  public <V> BuildOptions withLeafSizeFor(Metric<V> metric, List<V> items){
+    return withLeafSize(leafSizeFor(nanosPerDistance(metric, items), leafLayout));
+  }
+
+  static int leafSizeFor(double nanosPerDistance, LeafLayout layout){
+    double size = TUNING_SCALE / Math.sqrt(Math.max(nanosPerDistance, 1.0));
+    if(layout == LeafLayout.POINT_MAJOR) size *= 2;
+    else if(layout == LeafLayout.DIMENSION_MAJOR) size *= 4;
+    return (int)Math.max(MINIMUM_TUNED_LEAF_SIZE, Math.min(MAXIMUM_TUNED_LEAF_SIZE, Math.round(size)));
+  }
+
+  // Calibrated so that Euclidean distance on 8 dimensional double[], which
+  // times at around 70ns a call here, cache misses included, gets leaves of
+  // 64 objects, where queries were fastest, and a metric taking
+  // microseconds gets leaves of 8 to 16.
+  static final double TUNING_SCALE = 535;
+  static final int MINIMUM_TUNED_LEAF_SIZE = 8;
+  static final int MAXIMUM_TUNED_LEAF_SIZE = 512;
+
+  // The least average time per call over rounds of distances between random
+  // pairs of items. Rounds go on for TUNING_NANOS in all, so that a cheap
+  // metric gets enough calls for the JIT to compile it before it is timed.
+  static <V> double nanosPerDistance(Metric<V> metric, List<V> items){
+    if(items.size() < 2) return 1.0;
+    Random random = new Random(items.size());
+    double best = Double.POSITIVE_INFINITY;
+    long began = System.nanoTime();
+    for(int round = 0; round < 200 || System.nanoTime() - began < TUNING_NANOS; round++){
+      best = Math.min(best, timeRound(metric, items, random));
+    }
+    return best;
+  }
+
+  // A round is a method of its own so that the JIT compiles it as a whole
+  // after a few rounds, rather than only ever replacing the loop above.
+  private static <V> double timeRound(Metric<V> metric, List<V> items, Random random){
+    int calls = 256;
+    double total = 0.0;
+    long start = System.nanoTime();
+    for(int i = 0; i < calls; i++) total += metric.distance(items.get(random.nextInt(items.size())), items.get(random.nextInt(items.size())));
+    double nanos = (System.nanoTime() - start) / (double)calls;
+    // Keeps the loop from being optimised away.
+    return total == Double.NEGATIVE_INFINITY ? nanos + 1 : nanos;
+  }
+
+  static final long TUNING_NANOS = 50000000L;
+
+  // Whether nodes are plain binary Splits.
+  boolean binary(){ return vantagePoints == 1 && fanOut == 2; }
+
+  public String toString(){
+    return "BuildOptions(vantagePoints=" + vantagePoints +
+      ", fanOut=" + fanOut +
+      ", pivotSelector=" + pivotSelector +
+      ", pivotBudget=" + pivotBudget +
+      ", leafSize=" + leafSize +
+      ", leafLayout=" + leafLayout +
+      ", normCache=" + normCache +
+      ", equalityIndex=" + equalityIndex + ")";
+  }
+}
@@ -0,0 +1,366 @@
+package com.drmaciver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// A MetricSearch that can be queried from any number of threads while it is
+// being updated. Queries read an immutable snapshot: a VantageTree that is
+// never modified once built, plus a small delta of the adds and removes made
+// since. Updates replace the snapshot with a copy carrying a larger delta, and
+// once the delta reaches compactionThreshold the tree is rebuilt with it
+// folded in, on the executor and off the query path. Readers never take a
+// lock, so they are never held up by writers, compaction or replaceAll.
+public class ConcurrentMetricIndex<V> extends AbstractMetricSearch<V>{
+  public static final int DEFAULT_COMPACTION_THRESHOLD = 1024;
+
+  final Metric<V> metric;
+  final int compactionThreshold;
+  final Executor executor;
+
+  final AtomicReference<Snapshot<V>> snapshot;
+  // Held by writers for as long as it takes to work out the next snapshot.
+  private final ReentrantLock updateLock = new ReentrantLock();
+  // Held for the whole of a compaction or replaceAll, so that at most one
+  // tree is ever being built to replace the current one.
+  private final ReentrantLock rebuildLock = new ReentrantLock();
+
+  public ConcurrentMetricIndex(Metric<V> metric, List<V> items){
+    this(metric, items, DEFAULT_COMPACTION_THRESHOLD, ForkJoinPool.commonPool());
+  }
+
+  public ConcurrentMetricIndex(Metric<V> metric, List<V> items, int compactionThreshold, Executor executor){
+    this.metric = metric;
+    this.compactionThreshold = compactionThreshold;
+    this.executor = executor;
+    this.snapshot = new AtomicReference<Snapshot<V>>(new Snapshot<V>(new VantageTree<V>(metric, items)));
+  }
+
+  // What a query sees: tree with the updates in log applied on top. added and
+  // removed are what those updates come to, and are what queries merge with
+  // the tree's results.
+  static class Snapshot<V>{
+    final VantageTree<V> tree;
+    final List<Update<V>> log;
+    final List<V> added;
+    final List<V> removed;
+    final int size;
+
+    Snapshot(VantageTree<V> tree){
+      this(tree, Collections.<Update<V>>emptyList(), Collections.<V>emptyList(), Collections.<V>emptyList());
+    }
+
+    Snapshot(VantageTree<V> tree, List<Update<V>> log, List<V> added, List<V> removed){
+      this.tree = tree;
+      this.log = log;
+      this.added = added;
+      this.removed = removed;
+      this.size = tree.size() + added.size() - removed.size();
+    }
+
+    int deltaSize(){ return added.size() + removed.size(); }
+
+    // The snapshot with update applied, or null if it removes something that
+    // is not there.
+    Snapshot<V> apply(Update<V> update){
+      List<Update<V>> newLog = new ArrayList<Update<V>>(log.size() + 1);
+      newLog.addAll(log);
+      newLog.add(update);
+
+      if(update.add){
+        List<V> newAdded = new ArrayList<V>(added.size() + 1);
+        newAdded.addAll(added);
+        newAdded.add(update.value);
+        return new Snapshot<V>(tree, newLog, newAdded, removed);
+      }
+
+      int i = indexOf(added, update.value);
+      if(i >= 0){
+        List<V> newAdded = new ArrayList<V>(added);
+        newAdded.remove(i);
+        return new Snapshot<V>(tree, newLog, newAdded, removed);
+      }
+
+      if(occurrences(tree, update.value) <= frequency(removed, update.value)) return null;
+      List<V> newRemoved = new ArrayList<V>(removed.size() + 1);
+      newRemoved.addAll(removed);
+      newRemoved.add(update.value);
+      return new Snapshot<V>(tree, newLog, added, newRemoved);
+    }
+
+    // Drops one result equal to each removed element from results.
+    List<V> withoutRemoved(Collection<V> results){
+      if(removed.isEmpty()) return new ArrayList<V>(results);
+      Map<Object, Integer> pending = pendingRemovals();
+      List<V> kept = new ArrayList<V>(results.size());
+      for(V v : results) if(!consume(pending, v)) kept.add(v);
+      return kept;
+    }
+
+    // How many times each element of removed is still to be dropped, keyed
+    // by EqualityIndex.key.
+    Map<Object, Integer> pendingRemovals(){
+      Map<Object, Integer> pending = new HashMap<Object, Integer>();
+      for(V v : removed){
+        Object key = EqualityIndex.key(v);
+        Integer c = pending.get(key);
+        pending.put(key, c == null ? 1 : c + 1);
+      }
+      return pending;
+    }
+
+    // Whether v is to be dropped, counting it off if so.
+    static boolean consume(Map<Object, Integer> pending, Object v){
+      if(pending.isEmpty()) return false;
+      Object key = EqualityIndex.key(v);
+      Integer c = pending.get(key);
+      if(c == null) return false;
+      if(c == 1) pending.remove(key);
+      else pending.put(key, c - 1);
+      return true;
+    }
+  }
+
+  static class Update<V>{
+    final V value;
+    final boolean add;
+
+    Update(V value, boolean add){
+      this.value = value;
+      this.add = add;
+    }
+  }
+
+  // How many elements of tree are the same as x, by EqualityIndex.same,
+  // found the same way as VantageTree.contains.
+  static <V> int occurrences(VantageTree<V> tree, V x){
+    int count = 0;
+    for(V v : tree.allWithinEpsilon(x, Math.nextUp(tree.metric.distance(x, x)))) if(EqualityIndex.same(v, x)) count++;
+    return count;
+  }
+
+  // As List.indexOf and Collections.frequency, by EqualityIndex.same.
+  static int indexOf(List<?> list, Object x){
+    for(int i = 0; i < list.size(); i++) if(EqualityIndex.same(list.get(i), x)) return i;
+    return -1;
+  }
+
+  static int frequency(Collection<?> c, Object x){
+    int count = 0;
+    for(Object y : c) if(EqualityIndex.same(y, x)) count++;
+    return count;
+  }
+
+  public boolean add(V v){
+    update(new Update<V>(v, true));
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  public boolean remove(Object x){
+    if(x == null) return false;
+    return update(new Update<V>((V)x, false));
+  }
+
+  private boolean update(Update<V> update){
+    Snapshot<V> next;
+    updateLock.lock();
+    try {
+      next = snapshot.get().apply(update);
+      if(next == null) return false;
+      snapshot.set(next);
+    } finally {
+      updateLock.unlock();
+    }
+    if(next.deltaSize() >= compactionThreshold && !rebuildLock.isLocked()){
+      executor.execute(new Runnable(){
+        public void run(){ compact(false); }
+      });
+    }
+    return true;
+  }
+
+  // Rebuilds the tree with the current delta folded into it, on the calling
+  // thread. Updates made while it runs are carried over to the new snapshot.
+  public void compact(){
+    compact(true);
+  }
+
+  private void compact(boolean wait){
+    if(wait) rebuildLock.lock();
+    else if(!rebuildLock.tryLock()) return;
+    try {
+      Snapshot<V> start = snapshot.get();
+      if(start.deltaSize() == 0) return;
+      VantageTree<V> tree = new VantageTree<V>(metric, contents(start));
+      swap(tree, start.log.size());
+    } finally {
+      rebuildLock.unlock();
+    }
+  }
+
+  // Replaces the contents of the index with items. The new tree is built on
+  // the calling thread while queries carry on against the old one; any
+  // updates made in the meantime are applied on top of it.
+  public void replaceAll(List<V> items){
+    rebuildLock.lock();
+    try {
+      int done = snapshot.get().log.size();
+      swap(new VantageTree<V>(metric, items), done);
+    } finally {
+      rebuildLock.unlock();
+    }
+  }
+
+  // Publishes tree as the new snapshot, replaying every update after the
+  // first done in the current log. Only called with rebuildLock held, so the
+  // log cannot have been truncated since done was read.
+  private void swap(VantageTree<V> tree, int done){
+    updateLock.lock();
+    try {
+      Snapshot<V> current = snapshot.get();
+      Snapshot<V> next = new Snapshot<V>(tree);
+      for(Update<V> update : current.log.subList(done, current.log.size())){
+        Snapshot<V> applied = next.apply(update);
+        if(applied != null) next = applied;
+      }
+      snapshot.set(next);
+    } finally {
+      updateLock.unlock();
+    }
+  }
+
+  static <V> List<V> contents(Snapshot<V> s){
+    List<V> result = s.withoutRemoved(s.tree);
+    result.addAll(s.added);
+    return result;
+  }
+
+  public int size(){ return snapshot.get().size; }
+
+  // Iterates over the snapshot current when it is called, unaffected by
+  // later updates.
+  public Iterator<V> iterator(){
+    return Collections.unmodifiableList(contents(snapshot.get())).iterator();
+  }
+
+  public Spliterator<V> spliterator(){
+    return Collections.unmodifiableList(contents(snapshot.get())).spliterator();
+  }
+
+  @SuppressWarnings("unchecked")
+  public boolean contains(Object x){
+    if(x == null) return false;
+    Snapshot<V> s = snapshot.get();
+    if(indexOf(s.added, x) >= 0) return true;
+    return occurrences(s.tree, (V)x) > frequency(s.removed, x);
+  }
+
+  public List<V> nearestN(V v, int n){
+    Snapshot<V> s = snapshot.get();
+    return merge(s, v, n, s.tree.nearestN(v, n + s.removed.size()));
+  }
+
+  public NearestResult<V> nearestN(V v, int n, SearchBudget budget){
+    Snapshot<V> s = snapshot.get();
+    NearestResult<V> fromTree = s.tree.nearestN(v, n + s.removed.size(), budget);
+    return new NearestResult<V>(merge(s, v, n, fromTree.neighbours), fromTree.exact);
+  }
+
+  // The n nearest of fromTree, less anything removed, and the added points.
+  private List<V> merge(Snapshot<V> s, V v, int n, List<V> fromTree){
+    if(n <= 0) return new ArrayList<V>();
+    List<V> kept = s.withoutRemoved(fromTree);
+    if(s.added.isEmpty()) return kept.size() > n ? new ArrayList<V>(kept.subList(0, n)) : kept;
+
+    SmallestElements<V> q = new SmallestElements<V>(n);
+    for(V w : kept) q.add(w, metric.distance(v, w));
+    for(V w : s.added) q.add(w, metric.distanceWithCutoff(v, w, q.bound()));
+    return q.toList();
+  }
+
+  // Merges the tree's own nearestIterator, less removed elements, with the
+  // added ones in order of distance.
+  public Iterator<V> nearestIterator(final V v){
+    final Snapshot<V> s = snapshot.get();
+    final Iterator<V> fromTree = s.tree.nearestIterator(v);
+    final Map<Object, Integer> pending = s.pendingRemovals();
+    final List<ValueWithDistance<V>> added = new ArrayList<ValueWithDistance<V>>(s.added.size());
+    for(V w : s.added) added.add(new ValueWithDistance<V>(w, metric.distance(v, w)));
+    Collections.sort(added);
+
+    return new Iterator<V>(){
+      ValueWithDistance<V> nextFromTree;
+      int nextAdded;
+
+      public boolean hasNext(){
+        while(nextFromTree == null && fromTree.hasNext()){
+          V w = fromTree.next();
+          if(!Snapshot.consume(pending, w)) nextFromTree = new ValueWithDistance<V>(w, metric.distance(v, w));
+        }
+        return nextFromTree != null || nextAdded < added.size();
+      }
+
+      public V next(){
+        if(!hasNext()) throw new NoSuchElementException();
+        if(nextFromTree == null || (nextAdded < added.size() && added.get(nextAdded).distance < nextFromTree.distance)){
+          return added.get(nextAdded++).value;
+        }
+        V w = nextFromTree.value;
+        nextFromTree = null;
+        return w;
+      }
+
+      public void remove(){ throw new UnsupportedOperationException(); }
+    };
+  }
+
+  double distance(V x, V y){ return metric.distance(x, y); }
+
+  public Collection<V> allWithinEpsilon(V v, double e){
+    Snapshot<V> s = snapshot.get();
+    List<V> result = s.withoutRemoved(s.tree.allWithinEpsilon(v, e));
+    for(V w : s.added) if(metric.distanceWithCutoff(v, w, e) < e) result.add(w);
+    return result;
+  }
+
+  // Every removed element is still in the tree, so the tree's count only
+  // needs correcting for those that are within e.
+  public int countWithinEpsilon(V v, double e){
+    return countWithinEpsilon(snapshot.get(), v, e);
+  }
+
+  private int countWithinEpsilon(Snapshot<V> s, V v, double e){
+    int count = s.tree.countWithinEpsilon(v, e);
+    for(V w : s.removed) if(metric.distanceWithCutoff(v, w, e) < e) count--;
+    for(V w : s.added) if(metric.distanceWithCutoff(v, w, e) < e) count++;
+    return count;
+  }
+
+  public boolean anyWithinEpsilon(V v, double e){
+    Snapshot<V> s = snapshot.get();
+    for(V w : s.added) if(metric.distanceWithCutoff(v, w, e) < e) return true;
+    if(s.removed.isEmpty()) return s.tree.anyWithinEpsilon(v, e);
+    return countWithinEpsilon(s, v, e) > 0;
+  }
+
+  public void forEachWithinEpsilon(V v, double e, final Consumer<? super V> consumer){
+    Snapshot<V> s = snapshot.get();
+    final Map<Object, Integer> pending = s.pendingRemovals();
+    s.tree.forEachWithinEpsilon(v, e, new Consumer<V>(){
+      public void accept(V w){ if(!Snapshot.consume(pending, w)) consumer.accept(w); }
+    });
+    for(V w : s.added) if(metric.distanceWithCutoff(v, w, e) < e) consumer.accept(w);
+  }
+}
@@ -0,0 +1,162 @@
+package com.drmaciver;
+
+// The inner loops of the VectorMetrics, over the first n coordinates of two
+// arrays. These are plain scalar loops; if the incubating Vector API is
+// available (see simd/) they are replaced by SIMD versions when this class is
+// loaded. Run with -Dcom.drmaciver.scalar=true to force the scalar versions.
+class DistanceKernels{
+  static final DistanceKernels INSTANCE = load();
+
+  // The sums are taken in blocks of this many coordinates, giving up once a
+  // block takes them past the cutoff. A sum with an infinite cutoff goes
+  // through the same blocks so that it comes out exactly the same.
+  static final int CUTOFF_BLOCK = 32;
+
+  private static DistanceKernels load(){
+    if(Boolean.getBoolean("com.drmaciver.scalar")) return new DistanceKernels();
+    try {
+      return (DistanceKernels)Class.forName("com.drmaciver.VectorizedKernels").getDeclaredConstructor().newInstance();
+    } catch(Exception e){
+      return new DistanceKernels();
+    } catch(LinkageError e){
+      // Compiled, but jdk.incubator.vector is not in the running VM.
+      return new DistanceKernels();
+    }
+  }
+
+  boolean vectorized(){ return false; }
+
+  // Each of these returns the exact result if it is at most cutoff, and
+  // otherwise some partial result greater than cutoff.
+  final double squaredL2(double[] x, double[] y, int n, double cutoff){
+    double tot = 0.0;
+    for(int from = 0; from < n; from += CUTOFF_BLOCK){
+      tot += squaredL2Block(x, y, from, Math.min(n, from + CUTOFF_BLOCK));
+      if(tot > cutoff) break;
+    }
+    return tot;
+  }
+
+  // As above, with y's coordinates starting at offset rather than 0.
+  final double squaredL2(double[] x, double[] y, int offset, int n, double cutoff){
+    double tot = 0.0;
+    for(int from = 0; from < n; from += CUTOFF_BLOCK){
+      tot += squaredL2Block(x, y, offset, from, Math.min(n, from + CUTOFF_BLOCK));
+      if(tot > cutoff) break;
+    }
+    return tot;
+  }
+
+  final double l1(double[] x, double[] y, int n, double cutoff){
+    double tot = 0.0;
+    for(int from = 0; from < n; from += CUTOFF_BLOCK){
+      tot += l1Block(x, y, from, Math.min(n, from + CUTOFF_BLOCK));
+      if(tot > cutoff) break;
+    }
+    return tot;
+  }
+
+  final double lInfinity(double[] x, double[] y, int n, double cutoff){
+    double max = 0.0;
+    for(int from = 0; from < n; from += CUTOFF_BLOCK){
+      max = Math.max(max, lInfinityBlock(x, y, from, Math.min(n, from + CUTOFF_BLOCK)));
+      if(max > cutoff) break;
+    }
+    return max;
+  }
+
+  final double squaredL2(float[] x, float[] y, int n, double cutoff){
+    double tot = 0.0;
+    for(int from = 0; from < n; from += CUTOFF_BLOCK){
+      tot += squaredL2Block(x, y, from, Math.min(n, from + CUTOFF_BLOCK));
+      if(tot > cutoff) break;
+    }
+    return tot;
+  }
+
+  final double l1(float[] x, float[] y, int n, double cutoff){
+    double tot = 0.0;
+    for(int from = 0; from < n; from += CUTOFF_BLOCK){
+      tot += l1Block(x, y, from, Math.min(n, from + CUTOFF_BLOCK));
+      if(tot > cutoff) break;
+    }
+    return tot;
+  }
+
+  final double lInfinity(float[] x, float[] y, int n, double cutoff){
+    double max = 0.0;
+    for(int from = 0; from < n; from += CUTOFF_BLOCK){
+      max = Math.max(max, lInfinityBlock(x, y, from, Math.min(n, from + CUTOFF_BLOCK)));
+      if(max > cutoff) break;
+    }
+    return max;
+  }
+
+  // The kernels proper, over coordinates from (inclusive) to to (exclusive).
+
+  double squaredL2Block(double[] x, double[] y, int from, int to){
+    double tot = 0.0;
+    for(int i = from; i < to; i++){
+      double d = x[i] - y[i];
+      tot += d * d;
+    }
+    return tot;
+  }
+
+  double squaredL2Block(double[] x, double[] y, int offset, int from, int to){
+    double tot = 0.0;
+    for(int i = from; i < to; i++){
+      double d = x[i] - y[offset + i];
+      tot += d * d;
+    }
+    return tot;
+  }
+
+  double l1Block(double[] x, double[] y, int from, int to){
+    double tot = 0.0;
+    for(int i = from; i < to; i++) tot += Math.abs(x[i] - y[i]);
+    return tot;
+  }
+
+  double lInfinityBlock(double[] x, double[] y, int from, int to){
+    double max = 0.0;
+    for(int i = from; i < to; i++) max = Math.max(max, Math.abs(x[i] - y[i]));
+    return max;
+  }
+
+  double dot(double[] x, double[] y, int n){
+    double tot = 0.0;
+    for(int i = 0; i < n; i++) tot += x[i] * y[i];
+    return tot;
+  }
+
+  // Floats are widened to double before any arithmetic on them, so that
+  // nothing is lost on long vectors and the SIMD versions, which do the
+  // same, agree with these.
+  double squaredL2Block(float[] x, float[] y, int from, int to){
+    double tot = 0.0;
+    for(int i = from; i < to; i++){
+      double d = (double)x[i] - y[i];
+      tot += d * d;
+    }
+    return tot;
+  }
+
+  double l1Block(float[] x, float[] y, int from, int to){
+    double tot = 0.0;
+    for(int i = from; i < to; i++) tot += Math.abs((double)x[i] - y[i]);
+    return tot;
+  }
+
+  double lInfinityBlock(float[] x, float[] y, int from, int to){
+    double max = 0.0;
+    for(int i = from; i < to; i++) max = Math.max(max, Math.abs((double)x[i] - y[i]));
+    return max;
+  }
+
+  double dot(float[] x, float[] y, int n){
+    double tot = 0.0;
+    for(int i = 0; i < n; i++) tot += (double)x[i] * y[i];
+    return tot;
+  }
+}
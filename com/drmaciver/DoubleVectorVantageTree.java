@@ -0,0 +1,186 @@
+package com.drmaciver;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+// A vantage tree specialised to fixed dimension double[] points under
+// Metric.L2_DISTANCE. It is built by the same pivot / median algorithm as
+// VantageTree, but everything lives in flat primitive arrays: the points are
+// packed into one coordinate block in tree order, so that every subtree is a
+// contiguous range of rows, and the nodes are parallel arrays indexed by node
+// number. Queries can report ids (positions in the list the tree was built
+// from) rather than copying points back out. A built tree can be saved with
+// write and reopened without rebuilding through MappedVectorTree.map.
+public class DoubleVectorVantageTree extends AbstractVectorTree{
+  final int dimension;
+  final int totalSize;
+
+  // Row-major coordinates of every point, in tree order.
+  final double[] coordinates;
+  // ids[row] is the position in the original list of the point at row.
+  final int[] ids;
+  // rows[id] is the inverse of ids.
+  final int[] rows;
+
+  // The nodes, laid out as described in AbstractVectorTree.
+  int[] nodeStart;
+  int[] nodeEnd;
+  int[] nodeIn;
+  int[] nodeOut;
+  double[] nodeThreshold;
+  double[] nodeRadius;
+  int nodeCount;
+
+  public DoubleVectorVantageTree(List<double[]> items){
+    final List<double[]> points = items instanceof RandomAccess ? items : new ArrayList<double[]>(items);
+    this.totalSize = points.size();
+    this.dimension = totalSize == 0 ? 0 : points.get(0).length;
+    for(double[] p : points){
+      if(p.length != dimension) throw new IllegalArgumentException("Expected points of dimension " + dimension + " but got one of dimension " + p.length);
+    }
+    // Every coordinate goes in one array, indexed by row * dimension.
+    try {
+      Math.multiplyExact(totalSize, dimension);
+    } catch(ArithmeticException e){
+      throw new IllegalArgumentException("Expected at most " + Integer.MAX_VALUE + " coordinates but got " + (long)totalSize * dimension);
+    }
+
+    int[] order = new int[totalSize];
+    for(int i = 0; i < totalSize; i++) order[i] = i;
+
+    int capacity = 1 + 2 * (totalSize / VantageTree.MAXIMUM_LEAF_SIZE + 1);
+    nodeStart = new int[capacity];
+    nodeEnd = new int[capacity];
+    nodeIn = new int[capacity];
+    nodeOut = new int[capacity];
+    nodeThreshold = new double[capacity];
+    nodeRadius = new double[capacity];
+
+    if(totalSize > 0) buildTree(points, order, new double[totalSize], 0, totalSize);
+
+    this.coordinates = new double[totalSize * dimension];
+    this.ids = order;
+    this.rows = new int[totalSize];
+    for(int row = 0; row < totalSize; row++){
+      System.arraycopy(points.get(order[row]), 0, coordinates, row * dimension, dimension);
+      rows[order[row]] = row;
+    }
+  }
+
+  int buildTree(final List<double[]> points, final int[] order, double[] distances, int start, int end){
+    int node = newNode(start, end);
+
+    if(end - start <= VantageTree.MAXIMUM_LEAF_SIZE) return node;
+
+    // Rows all one distance from the center may still be far apart from
+    // each other, so as VantageTree does, up to DEGENERATE_RETRIES other
+    // centers are tried before making a leaf of them.
+    int pivot = pickAPivot(points, order, start, end);
+    double max;
+    double threshold;
+    for(int retry = 0; ; retry++){
+      swap(order, distances, start, pivot);
+      double[] center = points.get(order[start]);
+
+      max = 0.0;
+      pivot = start + 1;
+      for(int i = start + 1; i < end; i++){
+        double d = metric.distance(points.get(order[i]), center);
+        distances[i] = d;
+        if(d > max){
+          max = d;
+          pivot = i;
+        }
+      }
+      distances[start] = 0.0;
+
+      double[] selection = Arrays.copyOfRange(distances, start + 1, end);
+      double median = VantageTree.select(selection, 0, selection.length, selection.length / 2);
+      threshold = VantageTree.splitThreshold(distances, start + 1, end, median);
+      if(!Double.isNaN(threshold)) break;
+
+      // With every row at distance 0 from the center, they are all copies
+      // of it, and the leaf is marked as a run so that queries measure one.
+      if(distances[start + 1] == 0.0){
+        nodeThreshold[node] = Double.NaN;
+        return node;
+      }
+      if(retry == VantageTree.DEGENERATE_RETRIES) return node;
+    }
+
+    int mid = start + 1;
+    for(int i = start + 1; i < end; i++){
+      if(distances[i] < threshold) swap(order, distances, i, mid++);
+    }
+
+    int in = buildTree(points, order, distances, start + 1, mid);
+    int out = buildTree(points, order, distances, mid, end);
+
+    nodeIn[node] = in;
+    nodeOut[node] = out;
+    nodeThreshold[node] = threshold;
+    nodeRadius[node] = max;
+    return node;
+  }
+
+  int pickAPivot(final List<double[]> points, final int[] order, final int start, final int end){
+    Metric<Integer> byIndex = new Metric<Integer>(){
+      public double distance(Integer x, Integer y){ return metric.distance(points.get(order[x]), points.get(order[y])); }
+    };
+    List<Integer> range = new AbstractList<Integer>(){
+      public Integer get(int i){ return start + i; }
+      public int size(){ return end - start; }
+    };
+    return new MedianSpreadSampler<Integer>(byIndex).pickBestCandidate(range);
+  }
+
+  private int newNode(int start, int end){
+    if(nodeCount == nodeStart.length){
+      int capacity = nodeCount * 2;
+      nodeStart = Arrays.copyOf(nodeStart, capacity);
+      nodeEnd = Arrays.copyOf(nodeEnd, capacity);
+      nodeIn = Arrays.copyOf(nodeIn, capacity);
+      nodeOut = Arrays.copyOf(nodeOut, capacity);
+      nodeThreshold = Arrays.copyOf(nodeThreshold, capacity);
+      nodeRadius = Arrays.copyOf(nodeRadius, capacity);
+    }
+    int node = nodeCount++;
+    nodeStart[node] = start;
+    nodeEnd[node] = end;
+    nodeIn[node] = -1;
+    nodeOut[node] = -1;
+    return node;
+  }
+
+  private static void swap(int[] order, double[] distances, int i, int j){
+    int o = order[i]; order[i] = order[j]; order[j] = o;
+    double d = distances[i]; distances[i] = distances[j]; distances[j] = d;
+  }
+
+  public int size(){ return totalSize; }
+  public int dimension(){ return dimension; }
+
+  int nodeCount(){ return nodeCount; }
+  int nodeStart(int node){ return nodeStart[node]; }
+  int nodeEnd(int node){ return nodeEnd[node]; }
+  int nodeIn(int node){ return nodeIn[node]; }
+  int nodeOut(int node){ return nodeOut[node]; }
+  double nodeThreshold(int node){ return nodeThreshold[node]; }
+  double nodeRadius(int node){ return nodeRadius[node]; }
+
+  int id(int row){ return ids[row]; }
+  int rowOf(int id){ return rows[id]; }
+
+  double[] row(int row){
+    return Arrays.copyOfRange(coordinates, row * dimension, (row + 1) * dimension);
+  }
+
+  // The same kernel as Metric.L2_DISTANCE, which the tree was built with, so
+  // that a row is exactly as far from a query as from a center equal to it.
+  double distanceToRow(double[] v, int row){
+    return Math.sqrt(DistanceKernels.INSTANCE.squaredL2(v, coordinates, row * dimension, dimension, Double.POSITIVE_INFINITY));
+  }
+}
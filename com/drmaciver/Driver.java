@@ -4,6 +4,10 @@ import java.util.Collection;
 import java.util.Random;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
 
 class Driver{
   public static void main(String[] args){
@@ -15,9 +19,17 @@ class Driver{
   	}
 
     long buildStart = System.currentTimeMillis();
-  	VantageTree<double[]> db = new VantageTree<double[]>(Metric.L2_DISTANCE, points){ public boolean debugStatistics(){ return true; } };
+  	VantageTree<double[]> db = new VantageTree<double[]>(Metric.L2_DISTANCE, points);
     System.out.println("Building tree took " + (System.currentTimeMillis() - buildStart) + "ms");
 
+    {
+      ForkJoinPool pool = new ForkJoinPool();
+      long parallelBuildStart = System.currentTimeMillis();
+      new VantageTree<double[]>(Metric.L2_DISTANCE, points, pool);
+      System.out.println("Building tree on " + pool.getParallelism() + " threads took " + (System.currentTimeMillis() - parallelBuildStart) + "ms");
+      pool.shutdown();
+    }
+
     {
       int numQueries = 1000;
       long queryStart = System.currentTimeMillis();
@@ -36,7 +48,6 @@ class Driver{
       long queryStart = System.currentTimeMillis();
       for(int i = 0; i < numQueries; i++){
         double[] p = rv(rnd);
-        double e = rnd.nextDouble();
 
         db.nearest(p);
       }
@@ -44,6 +55,48 @@ class Driver{
       System.out.println("Nearest neighbour queries took about " + (queriesTook / ((double)numQueries)) + "ms each");
     }
 
+    {
+      List<double[]> queries = new ArrayList<double[]>();
+      for(int i = 0; i < 1000; i++) queries.add(rv(rnd));
+      long queryStart = System.currentTimeMillis();
+      db.nearestNBatch(queries, 1);
+      long queriesTook = System.currentTimeMillis() - queryStart;
+      System.out.println("Batched nearest neighbour queries took about " + (queriesTook / ((double)queries.size())) + "ms each");
+    }
+
+    {
+      NearestNeighbourSearcher<double[]> searcher = db.searcher();
+      double[][] result = new double[10][];
+      double[][] queries = new double[1000][];
+      for(int i = 0; i < queries.length; i++) queries[i] = rv(rnd);
+
+      // Warm up, so the searcher's buffers have reached their final size.
+      for(double[] q : queries) searcher.nearestN(q, result.length, result);
+
+      long allocatedBefore = allocatedBytes();
+      for(double[] q : queries) db.nearestN(q, result.length);
+      long allocatedByList = allocatedBytes() - allocatedBefore;
+
+      allocatedBefore = allocatedBytes();
+      for(double[] q : queries) searcher.nearestN(q, result.length, result);
+      long allocatedBySearcher = allocatedBytes() - allocatedBefore;
+
+      System.out.println("nearestN(" + result.length + ") allocated about " + (allocatedByList / queries.length) + " bytes per query");
+      System.out.println("NearestNeighbourSearcher allocated about " + (allocatedBySearcher / queries.length) + " bytes per query");
+    }
+
+    {
+      QueryStatsAggregator stats = new QueryStatsAggregator();
+      db.setQueryListener(stats);
+      for(int i = 0; i < 1000; i++){
+        double[] p = rv(rnd);
+        db.nearestN(p, 10);
+        db.allWithinEpsilon(p, rnd.nextDouble());
+      }
+      db.setQueryListener(null);
+      System.out.print("Query statistics:\n" + stats);
+    }
+
     {
       int numQueries = 5;
       long queryStart = System.currentTimeMillis();
@@ -53,6 +106,32 @@ class Driver{
       long queriesTook = System.currentTimeMillis() - queryStart;
       System.out.println("Iterating over the whole collection took about " + (queriesTook / ((double)numQueries)) + "ms each");
     }
+
+    {
+      int numQueries = 5;
+      final double[] total = new double[1];
+      long queryStart = System.currentTimeMillis();
+      for(int i = 0; i < numQueries; i++){
+        db.forEach(new Consumer<double[]>(){
+          public void accept(double[] p){ total[0] += p[0]; }
+        });
+      }
+      long queriesTook = System.currentTimeMillis() - queryStart;
+      System.out.println("forEach over the whole collection took about " + (queriesTook / ((double)numQueries)) + "ms each");
+
+      queryStart = System.currentTimeMillis();
+      for(int i = 0; i < numQueries; i++){
+        total[0] += db.parallelStream().mapToDouble(new ToDoubleFunction<double[]>(){
+          public double applyAsDouble(double[] p){ return p[0]; }
+        }).sum();
+      }
+      queriesTook = System.currentTimeMillis() - queryStart;
+      System.out.println("A parallel stream over the whole collection took about " + (queriesTook / ((double)numQueries)) + "ms each");
+    }
+  }
+
+  static long allocatedBytes(){
+    return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
   }
 
   public static double[] rv(Random rnd){
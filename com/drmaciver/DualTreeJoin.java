@@ -0,0 +1,467 @@
+package com.drmaciver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// Self-joins and k-nearest-neighbour graphs over a VantageTree, found by
+// walking pairs of subtrees rather than searching once per element.
+//
+// Every subtree below the root lies in a ring around the center above it:
+// a Split's in child between 0 and threshold from its center and its out
+// child between threshold and radius, and a MultiSplit's children within
+// their ranges of distances from its first center. One distance between
+// the centers of two rings bounds every distance between their elements
+// from both sides, so the self-join drops a pair of subtrees whole, reports
+// it whole, or opens up the wider one and carries on with its children. Its
+// cost is then close to the number of pairs it reports.
+//
+// The graph walks the tree once per leaf, for all of the leaf's items at
+// once as nearestNBatch does, and drops a subtree without measuring any
+// item's distance to it when the leaf's ring shows it is too far from all
+// of them.
+class DualTreeJoin<V>{
+  // Pairs of subtrees with fewer elements than this between them are
+  // joined on the current thread.
+  static final int PARALLEL_CUTOFF = 4096;
+
+  final VantageTree<V> tree;
+  final Metric<V> metric;
+  final ForkJoinPool pool;
+
+  DualTreeJoin(VantageTree<V> tree, ForkJoinPool pool){
+    this.tree = tree;
+    this.metric = tree.metric;
+    this.pool = pool;
+  }
+
+  // A subtree whose elements are all between inner and outer from center.
+  // The root's center is null, as nothing is known about where it lies.
+  class Ring{
+    final VantageTree<V>.Tree tree;
+    final Object center;
+    final double inner;
+    final double outer;
+
+    Ring(VantageTree<V>.Tree tree, Object center, double inner, double outer){
+      this.tree = tree;
+      this.center = center;
+      this.inner = inner;
+      this.outer = outer;
+    }
+  }
+
+  // Whether nothing in a is within e of anything in b, given that their
+  // centers are d apart.
+  boolean apart(Ring a, Ring b, double d, double e){
+    return metric.bound(metric.bound(e, a.outer), b.outer) < d || metric.bound(metric.bound(e, d), b.outer) < a.inner || metric.bound(metric.bound(e, d), a.outer) < b.inner;
+  }
+
+  // Whether everything in a is within e of everything in b, likewise.
+  boolean close(Ring a, Ring b, double d, double e){
+    return metric.bound(metric.bound(d, a.outer), b.outer) < e;
+  }
+
+  @SuppressWarnings("unchecked")
+  V element(Object x){ return (V)x; }
+
+  boolean parallel(long size){
+    return pool != null && size > PARALLEL_CUTOFF;
+  }
+
+  void selfJoin(final double e, final BiConsumer<? super V, ? super V> consumer){
+    if(!(e > 0)) return;
+    final SelfJoin join = new SelfJoin(e, consumer);
+    if(pool == null) join.within(tree.tree);
+    else pool.invoke(join.new Within(tree.tree));
+  }
+
+  class SelfJoin{
+    final double e;
+    final BiConsumer<? super V, ? super V> consumer;
+
+    SelfJoin(double e, BiConsumer<? super V, ? super V> consumer){
+      this.e = e;
+      this.consumer = consumer;
+    }
+
+    class Within extends RecursiveAction{
+      private static final long serialVersionUID = 1L;
+      final VantageTree<V>.Tree t;
+      Within(VantageTree<V>.Tree t){ this.t = t; }
+      protected void compute(){ within(t); }
+    }
+
+    class Between extends RecursiveAction{
+      private static final long serialVersionUID = 1L;
+      final Ring a;
+      final Ring b;
+      final double d;
+      Between(Ring a, Ring b, double d){ this.a = a; this.b = b; this.d = d; }
+      protected void compute(){ between(a, b, d); }
+    }
+
+    // Reports every pair within t.
+    @SuppressWarnings("unchecked")
+    void within(VantageTree<V>.Tree t){
+      if(t instanceof VantageTree.Leaf){
+        within((VantageTree<V>.Leaf)t);
+      } else if(t instanceof VantageTree.Split){
+        VantageTree<V>.Split s = (VantageTree<V>.Split)t;
+        copies(s.center, s.count);
+        around(s.center, s.count, s.in);
+        around(s.center, s.count, s.out);
+        Ring in = new Ring(s.in, s.center, 0.0, s.threshold);
+        Ring out = new Ring(s.out, s.center, s.threshold, s.radius);
+        double d = metric.distance(s.center, s.center);
+        if(parallel(s.size())) ForkJoinTask.invokeAll(new Within(s.in), new Within(s.out), new Between(in, out, d));
+        else {
+          within(s.in);
+          within(s.out);
+          between(in, out, d);
+        }
+      } else if(t instanceof VantageTree.MultiSplit){
+        VantageTree<V>.MultiSplit m = (VantageTree<V>.MultiSplit)t;
+        int k = m.centers.length;
+        for(int j = 0; j < k; j++){
+          copies(m.center(j), m.counts[j]);
+          for(int i = j + 1; i < k; i++) if(metric.distanceWithCutoff(m.center(j), m.center(i), e) < e) report(m.center(j), m.counts[j], m.center(i), m.counts[i]);
+          for(VantageTree<V>.Tree child : m.children) around(m.center(j), m.counts[j], child);
+        }
+
+        List<RecursiveAction> steps = new ArrayList<RecursiveAction>();
+        List<Ring> rings = new ArrayList<Ring>(m.children.size());
+        for(int c = 0; c < m.children.size(); c++){
+          rings.add(new Ring(m.children.get(c), m.centers[0], m.lower[c * k], m.upper[c * k]));
+          steps.add(new Within(m.children.get(c)));
+        }
+        double d = metric.distance(m.center(0), m.center(0));
+        for(int c = 0; c < rings.size(); c++) for(int b = c + 1; b < rings.size(); b++) steps.add(new Between(rings.get(c), rings.get(b), d));
+        if(parallel(m.size())) ForkJoinTask.invokeAll(steps);
+        else for(RecursiveAction step : steps) step.invoke();
+      }
+    }
+
+    // Pairs within a leaf, using its first pivot's column to skip pairs
+    // whose distances to the pivot differ by e or more.
+    void within(VantageTree<V>.Leaf leaf){
+      double[] column = leaf.pivots.length > 0 ? leaf.pivotDistances[0] : null;
+      for(int i = 0, size = leaf.items.size(); i < size; i++){
+        V v = leaf.items.get(i);
+        copies(v, leaf.count(i));
+        for(int k = i + 1; k < size; k++){
+          if(column != null && (metric.bound(e, column[i]) < column[k] || metric.bound(e, column[k]) < column[i])) continue;
+          V w = leaf.items.get(k);
+          if(metric.distanceWithCutoff(v, w, e) < e) report(v, leaf.count(i), w, leaf.count(k));
+        }
+      }
+    }
+
+    // Reports every pair between a and b, which are disjoint, with centers
+    // d apart.
+    @SuppressWarnings("unchecked")
+    void between(Ring a, Ring b, double d){
+      if(a.tree.size() == 0 || b.tree.size() == 0 || apart(a, b, d, e)) return;
+      if(close(a, b, d, e)){
+        all(a.tree, b.tree);
+        return;
+      }
+
+      boolean aLeaf = a.tree instanceof VantageTree.Leaf;
+      boolean bLeaf = b.tree instanceof VantageTree.Leaf;
+      if(aLeaf && bLeaf){
+        leaves(a, b);
+        return;
+      }
+      // Open up whichever is not a leaf, or the wider if neither is.
+      if(aLeaf || (!bLeaf && b.outer > a.outer)){
+        Ring r = a;
+        a = b;
+        b = r;
+      }
+
+      long size = (long)a.tree.size() + b.tree.size();
+      if(a.tree instanceof VantageTree.Split){
+        VantageTree<V>.Split s = (VantageTree<V>.Split)a.tree;
+        double ds = metric.distance(s.center, element(b.center));
+        if(!apart(new Ring(null, s.center, 0.0, 0.0), b, ds, e)) around(s.center, s.count, b.tree);
+        Ring in = new Ring(s.in, s.center, 0.0, s.threshold);
+        Ring out = new Ring(s.out, s.center, s.threshold, s.radius);
+        if(parallel(size)) ForkJoinTask.invokeAll(new Between(in, b, ds), new Between(out, b, ds));
+        else {
+          between(in, b, ds);
+          between(out, b, ds);
+        }
+      } else {
+        VantageTree<V>.MultiSplit m = (VantageTree<V>.MultiSplit)a.tree;
+        int k = m.centers.length;
+        for(int j = 0; j < k; j++) around(m.center(j), m.counts[j], b.tree);
+        double dm = metric.distance(m.center(0), element(b.center));
+        List<RecursiveAction> steps = new ArrayList<RecursiveAction>();
+        for(int c = 0; c < m.children.size(); c++) steps.add(new Between(new Ring(m.children.get(c), m.centers[0], m.lower[c * k], m.upper[c * k]), b, dm));
+        if(parallel(size)) ForkJoinTask.invokeAll(steps);
+        else for(RecursiveAction step : steps) step.invoke();
+      }
+    }
+
+    // Pairs between two leaves. Each of a's items is measured against b's
+    // center, which b's items keep their distances to when it is one of
+    // their pivots, to skip those of them that are too far to bother with.
+    void leaves(Ring a, Ring b){
+      VantageTree<V>.Leaf x = (VantageTree<V>.Leaf)a.tree;
+      VantageTree<V>.Leaf y = (VantageTree<V>.Leaf)b.tree;
+      double[] column = null;
+      if(y.items.size() > 1) for(int j = 0; j < y.pivots.length; j++) if(y.pivots[j] == b.center) column = y.pivotDistances[j];
+
+      for(int i = 0, size = x.items.size(); i < size; i++){
+        V v = x.items.get(i);
+        double q = 0.0;
+        if(column != null){
+          q = metric.distanceWithCutoff(v, element(b.center), metric.bound(e, b.outer));
+          if(metric.bound(e, b.outer) < q || metric.bound(e, q) < b.inner) continue;
+        }
+        for(int k = 0, others = y.items.size(); k < others; k++){
+          if(column != null && (metric.bound(e, column[k]) < q || metric.bound(e, q) < column[k])) continue;
+          V w = y.items.get(k);
+          if(metric.distanceWithCutoff(v, w, e) < e) report(v, x.count(i), w, y.count(k));
+        }
+      }
+    }
+
+    // Pairs of center, present count times, with whatever in t is within e
+    // of it.
+    void around(final V center, final int count, VantageTree<V>.Tree t){
+      if(count == 0 || t.size() == 0) return;
+      t.visitWithinEpsilon(center, e, new Predicate<V>(){
+        public boolean test(V w){
+          for(int c = 0; c < count; c++) consumer.accept(center, w);
+          return true;
+        }
+      }, null, new VantageTree.QueryPath());
+    }
+
+    // Pairs among count copies of v.
+    void copies(V v, int count){
+      if(count < 2 || !(metric.distance(v, v) < e)) return;
+      for(int i = 1; i < count; i++) for(int j = 0; j < i; j++) consumer.accept(v, v);
+    }
+
+    void report(V v, int vs, V w, int ws){
+      for(int i = 0; i < vs; i++) for(int j = 0; j < ws; j++) consumer.accept(v, w);
+    }
+
+    void all(VantageTree<V>.Tree a, VantageTree<V>.Tree b){
+      final List<V> others = new ArrayList<V>(b.size());
+      b.forEach(new Consumer<V>(){
+        public void accept(V w){ others.add(w); }
+      });
+      a.forEach(new Consumer<V>(){
+        public void accept(V v){
+          for(V w : others) consumer.accept(v, w);
+        }
+      });
+    }
+  }
+
+  void knnGraph(final int k, final BiConsumer<? super V, ? super List<V>> consumer){
+    if(k <= 0){
+      tree.forEach(new Consumer<V>(){
+        public void accept(V v){ consumer.accept(v, new ArrayList<V>()); }
+      });
+      return;
+    }
+
+    final List<Group> groups = new ArrayList<Group>();
+    groups(new Ring(tree.tree, null, 0.0, Double.POSITIVE_INFINITY), groups);
+    new ParallelRange(){
+      void run(int from, int to){
+        for(int i = from; i < to; i++) groups.get(i).answer(k, consumer);
+      }
+    }.invoke(pool, 0, groups.size(), 1);
+  }
+
+  // Collects a Group for each leaf and each center under r.
+  @SuppressWarnings("unchecked")
+  void groups(Ring r, List<Group> into){
+    VantageTree<V>.Tree t = r.tree;
+    if(t.size() == 0) return;
+    if(t instanceof VantageTree.Leaf){
+      VantageTree<V>.Leaf leaf = (VantageTree<V>.Leaf)t;
+      int[] counts = new int[leaf.items.size()];
+      for(int i = 0; i < counts.length; i++) counts[i] = leaf.count(i);
+      into.add(new Group(leaf, -1, leaf.items, counts, r));
+    } else if(t instanceof VantageTree.Split){
+      VantageTree<V>.Split s = (VantageTree<V>.Split)t;
+      if(s.count > 0) into.add(new Group(s, 0, Collections.singletonList(s.center), new int[]{ s.count }, null));
+      groups(new Ring(s.in, s.center, 0.0, s.threshold), into);
+      groups(new Ring(s.out, s.center, s.threshold, s.radius), into);
+    } else if(t instanceof VantageTree.MultiSplit){
+      VantageTree<V>.MultiSplit m = (VantageTree<V>.MultiSplit)t;
+      int k = m.centers.length;
+      for(int j = 0; j < k; j++) if(m.counts[j] > 0) into.add(new Group(m, j, Collections.singletonList(m.center(j)), new int[]{ m.counts[j] }, null));
+      for(int c = 0; c < m.children.size(); c++) groups(new Ring(m.children.get(c), m.centers[0], m.lower[c * k], m.upper[c * k]), into);
+    }
+  }
+
+  // Distinct elements that look for their neighbours together: the items
+  // of one leaf, in the ring the leaf is in, or one center of a node. owner
+  // is that leaf or node, where each element must not be found as its own
+  // neighbour, and center is which of the node's centers it is.
+  class Group{
+    final VantageTree<V>.Tree owner;
+    final int center;
+    final List<V> items;
+    final int[] counts;
+    final Ring ring;
+    final List<SmallestElements<V>> heaps;
+
+    Group(VantageTree<V>.Tree owner, int center, List<V> items, int[] counts, Ring ring){
+      this.owner = owner;
+      this.center = center;
+      this.items = items;
+      this.counts = counts;
+      this.ring = ring;
+      this.heaps = new ArrayList<SmallestElements<V>>(items.size());
+    }
+
+    // Only worth a distance of its own to every node on the way down if the
+    // ring covers more than one element and is not the whole tree.
+    boolean ringed(){ return ring != null && ring.center != null && items.size() > 1; }
+
+    void answer(int k, BiConsumer<? super V, ? super List<V>> consumer){
+      for(int q = 0; q < items.size(); q++) heaps.add(new SmallestElements<V>(k));
+
+      // A leaf's own items give every heap a bound before the walk starts,
+      // and the walk then skips the leaf.
+      if(owner instanceof VantageTree.Leaf){
+        for(int q = 0; q < items.size(); q++){
+          for(int w = 0; w < items.size(); w++){
+            int copies = w == q ? counts[w] - 1 : counts[w];
+            if(copies > 0) heaps.get(q).add(items.get(w), metric.distance(items.get(q), items.get(w)), copies);
+          }
+        }
+      }
+
+      search(new Ring(tree.tree, null, 0.0, Double.POSITIVE_INFINITY), Double.NaN, VantageTree.allOf(items.size()), items.size(), null);
+
+      for(int q = 0; q < items.size(); q++) for(int c = 0; c < counts[q]; c++) consumer.accept(items.get(q), heaps.get(q).toList());
+      heaps.clear();
+    }
+
+    // The largest distance any of the first count active elements could
+    // still take a neighbour at.
+    double bound(int[] active, int count){
+      double result = 0.0;
+      for(int i = 0; i < count; i++) result = Math.max(result, heaps.get(active[i]).bound());
+      return result;
+    }
+
+    // Searches r's subtree for the active elements. d is the distance
+    // between the centers of this group's ring and r, or NaN if that is not
+    // known, and toCenter[q] the exact distance from element q to r's
+    // center, if toCenter is not null.
+    @SuppressWarnings("unchecked")
+    void search(Ring r, double d, int[] active, int count, double[] toCenter){
+      VantageTree<V>.Tree t = r.tree;
+      if(count == 0 || t.size() == 0 || (t == owner && center < 0)) return;
+      if(!Double.isNaN(d) && apart(ring, r, d, bound(active, count))) return;
+
+      if(t instanceof VantageTree.Leaf){
+        scan((VantageTree<V>.Leaf)t, r, active, count, toCenter);
+        return;
+      }
+
+      if(t instanceof VantageTree.MultiSplit){
+        VantageTree<V>.MultiSplit m = (VantageTree<V>.MultiSplit)t;
+        int k = m.centers.length;
+        double dm = ringed() ? metric.distance(element(ring.center), m.center(0)) : Double.NaN;
+        double[][] dq = new double[items.size()][];
+        double[] first = new double[items.size()];
+        for(int i = 0; i < count; i++){
+          int q = active[i];
+          dq[q] = new double[k];
+          m.distances(items.get(q), heaps.get(q).bound(), dq[q], null);
+          first[q] = dq[q][0];
+          for(int j = 0; j < k; j++) heaps.get(q).add(m.center(j), dq[q][j], m == owner && j == center ? m.counts[j] - 1 : m.counts[j]);
+        }
+
+        int[] next = new int[count];
+        for(int c = 0; c < m.children.size(); c++){
+          int nextCount = 0;
+          for(int i = 0; i < count; i++){
+            int q = active[i];
+            if(m.mayHit(c, dq[q], heaps.get(q).bound())) next[nextCount++] = q;
+          }
+          search(new Ring(m.children.get(c), m.centers[0], m.lower[c * k], m.upper[c * k]), dm, next, nextCount, first);
+        }
+        return;
+      }
+
+      VantageTree<V>.Split s = (VantageTree<V>.Split)t;
+      double ds = Double.NaN;
+      if(ringed()){
+        ds = metric.distance(element(ring.center), s.center);
+        if(apart(ring, new Ring(s, s.center, 0.0, s.radius), ds, bound(active, count))) return;
+      }
+
+      double[] rq = new double[items.size()];
+      for(int i = 0; i < count; i++){
+        int q = active[i];
+        SmallestElements<V> heap = heaps.get(q);
+        rq[q] = metric.distanceWithCutoff(items.get(q), s.center, metric.bound(heap.bound(), s.radius));
+        heap.add(s.center, rq[q], s == owner ? s.count - 1 : s.count);
+      }
+
+      // As in nearestNBatch, each element goes into the child it is in
+      // first.
+      Ring in = new Ring(s.in, s.center, 0.0, s.threshold);
+      Ring out = new Ring(s.out, s.center, s.threshold, s.radius);
+      int[] next = new int[count];
+      int nextCount = 0;
+      for(int i = 0; i < count; i++){
+        int q = active[i];
+        if(rq[q] < s.threshold && s.mayHitIn(rq[q], heaps.get(q).bound())) next[nextCount++] = q;
+      }
+      search(in, ds, next, nextCount, rq);
+
+      nextCount = 0;
+      for(int i = 0; i < count; i++){
+        int q = active[i];
+        if(s.mayHitOut(rq[q], heaps.get(q).bound())) next[nextCount++] = q;
+      }
+      search(out, ds, next, nextCount, rq);
+
+      nextCount = 0;
+      for(int i = 0; i < count; i++){
+        int q = active[i];
+        if(rq[q] >= s.threshold && s.mayHitIn(rq[q], heaps.get(q).bound())) next[nextCount++] = q;
+      }
+      search(in, ds, next, nextCount, rq);
+    }
+
+    // Offers a leaf's items to the active elements, skipping those whose
+    // distances to the leaf's ring center rule them out, as Leaf.ruledOut
+    // does.
+    void scan(VantageTree<V>.Leaf leaf, Ring r, int[] active, int count, double[] toCenter){
+      double[] column = null;
+      if(toCenter != null) for(int j = 0; j < leaf.pivots.length; j++) if(leaf.pivots[j] == r.center) column = leaf.pivotDistances[j];
+      for(int i = 0; i < count; i++){
+        int q = active[i];
+        V v = items.get(q);
+        SmallestElements<V> heap = heaps.get(q);
+        for(int w = 0, size = leaf.items.size(); w < size; w++){
+          double e = heap.bound();
+          if(column != null && (metric.bound(e, column[w]) < toCenter[q] || metric.bound(e, toCenter[q]) < column[w])) continue;
+          V x = leaf.items.get(w);
+          heap.add(x, metric.distanceWithCutoff(v, x, e), leaf.count(w));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package com.drmaciver;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Objects;
+
+// How many times each element of a tree is present, by equality, so that
+// contains is a hash lookup rather than a search. Arrays are compared by
+// their contents, as Objects.deepEquals does, so that a copy of a double[]
+// point is found as well as the point itself.
+class EqualityIndex{
+  private final HashMap<Object, Integer> counts;
+
+  EqualityIndex(Collection<?> items){
+    counts = new HashMap<Object, Integer>(Math.max(16, (int)(items.size() / 0.75f) + 1));
+    for(Object x : items) add(x);
+  }
+
+  void add(Object x){
+    Object key = key(x);
+    Integer c = counts.get(key);
+    counts.put(key, c == null ? 1 : c + 1);
+  }
+
+  void remove(Object x){
+    Object key = key(x);
+    Integer c = counts.get(key);
+    if(c == null) return;
+    if(c == 1) counts.remove(key);
+    else counts.put(key, c - 1);
+  }
+
+  boolean contains(Object x){
+    return counts.containsKey(key(x));
+  }
+
+  // Whether x and y are the same element by the index's idea of equality.
+  static boolean same(Object x, Object y){
+    if(x instanceof double[] && y instanceof double[]) return Arrays.equals((double[])x, (double[])y);
+    return Objects.deepEquals(x, y);
+  }
+
+  static Object key(Object x){
+    return x != null && x.getClass().isArray() ? new ContentKey(x) : x;
+  }
+
+  static class ContentKey{
+    final Object array;
+    final int hash;
+
+    ContentKey(Object array){
+      this.array = array;
+      this.hash = array instanceof double[] ? Arrays.hashCode((double[])array) : Arrays.deepHashCode(new Object[]{ array });
+    }
+
+    public int hashCode(){ return hash; }
+
+    public boolean equals(Object o){
+      return o instanceof ContentKey && same(array, ((ContentKey)o).array);
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package com.drmaciver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A thread safe histogram of non-negative longs with one bucket per power of
+// two, which is plenty to see how counts and latencies are distributed.
+public class Histogram{
+  private final AtomicLongArray buckets = new AtomicLongArray(64);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long value){
+    if(value < 0) value = 0;
+    // Bucket i holds [2^i, 2^(i + 1)), except that bucket 0 also holds 0.
+    buckets.incrementAndGet(value == 0 ? 0 : 63 - Long.numberOfLeadingZeros(value));
+    count.incrementAndGet();
+    total.addAndGet(value);
+    long m;
+    while(value > (m = max.get()) && !max.compareAndSet(m, value));
+  }
+
+  public long count(){ return count.get(); }
+  public long max(){ return max.get(); }
+
+  public double mean(){
+    long c = count.get();
+    return c == 0 ? 0.0 : total.get() / (double)c;
+  }
+
+  // An upper bound on the given quantile (between 0 and 1): the top of the
+  // bucket that it falls in.
+  public long quantile(double q){
+    long c = count.get();
+    if(c == 0) return 0;
+    long target = (long)Math.ceil(q * c);
+    long seen = 0;
+    for(int i = 0; i < 64; i++){
+      seen += buckets.get(i);
+      if(seen >= target && seen > 0) return Math.min(i == 63 ? Long.MAX_VALUE : (2L << i) - 1, max.get());
+    }
+    return max.get();
+  }
+
+  public String toString(){
+    return "count=" + count() + " mean=" + String.format("%.1f", mean()) + " p50<=" + quantile(0.5) + " p99<=" + quantile(0.99) + " max=" + max();
+  }
+}
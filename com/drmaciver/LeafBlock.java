@@ -0,0 +1,132 @@
+package com.drmaciver;
+
+import java.util.Arrays;
+import java.util.List;
+
+// The coordinates of a leaf's points packed into one array, as described in
+// LeafLayout, for metrics that are Euclidean distance or its square.
+// Point-major distances are worked out by the same kernels as the metric's,
+// in the metric's units, so they agree with it exactly. Dimension-major
+// blocks work out squared distances to every point at once, which can come
+// out differently in the last place, so they only rule points out and the
+// points left are measured again by the metric.
+//
+// The optional norm cache holds each point's distance from the origin. By
+// the triangle inequality a point is at least as far from the query as
+// their norms are apart, which rules points out for the price of a
+// subtraction.
+class LeafBlock{
+  private static final DistanceKernels KERNELS = DistanceKernels.INSTANCE;
+
+  final boolean squared;
+  final boolean dimensionMajor;
+  final int dimension;
+  int size;
+  // Point-major, coordinate j of point i is at i * dimension + j.
+  // Dimension-major, it is at j * capacity + i.
+  double[] data;
+  int capacity;
+  double[] norms;
+
+  private LeafBlock(boolean squared, boolean dimensionMajor, int dimension, int capacity, boolean normCache){
+    this.squared = squared;
+    this.dimensionMajor = dimensionMajor;
+    this.dimension = dimension;
+    this.capacity = capacity;
+    this.data = new double[capacity * dimension];
+    if(normCache) this.norms = new double[capacity];
+  }
+
+  // A block holding items in the given layout, or null if the layout keeps
+  // objects, the metric is not one a block can work out, or the items are
+  // not all double[] of one dimension.
+  static LeafBlock pack(Metric<?> metric, List<?> items, LeafLayout layout, boolean normCache){
+    if(layout == LeafLayout.OBJECTS || items.isEmpty()) return null;
+    boolean squared;
+    if(metric == Metric.L2_DISTANCE || metric == VectorMetrics.L2) squared = false;
+    else if(metric == VectorMetrics.SQUARED_L2) squared = true;
+    else return null;
+
+    if(!(items.get(0) instanceof double[])) return null;
+    int dimension = ((double[])items.get(0)).length;
+    for(Object item : items){
+      if(!(item instanceof double[]) || ((double[])item).length != dimension) return null;
+    }
+
+    LeafBlock block = new LeafBlock(squared, layout == LeafLayout.DIMENSION_MAJOR, dimension, items.size(), normCache);
+    for(Object item : items) block.add((double[])item);
+    return block;
+  }
+
+  boolean fits(Object v){
+    return v instanceof double[] && ((double[])v).length == dimension;
+  }
+
+  void add(double[] p){
+    if(size == capacity) grow(Math.max(2 * capacity, 16));
+    if(dimensionMajor){
+      for(int j = 0; j < dimension; j++) data[j * capacity + size] = p[j];
+    } else System.arraycopy(p, 0, data, size * dimension, dimension);
+    if(norms != null) norms[size] = norm(p);
+    size++;
+  }
+
+  void remove(int i){
+    size--;
+    if(dimensionMajor){
+      for(int j = 0; j < dimension; j++) System.arraycopy(data, j * capacity + i + 1, data, j * capacity + i, size - i);
+    } else System.arraycopy(data, (i + 1) * dimension, data, i * dimension, (size - i) * dimension);
+    if(norms != null) System.arraycopy(norms, i + 1, norms, i, size - i);
+  }
+
+  private void grow(int newCapacity){
+    if(dimensionMajor){
+      double[] grown = new double[newCapacity * dimension];
+      for(int j = 0; j < dimension; j++) System.arraycopy(data, j * capacity, grown, j * newCapacity, size);
+      data = grown;
+    } else data = Arrays.copyOf(data, newCapacity * dimension);
+    if(norms != null) norms = Arrays.copyOf(norms, newCapacity);
+    capacity = newCapacity;
+  }
+
+  double norm(double[] v){
+    return Math.sqrt(KERNELS.dot(v, v, v.length));
+  }
+
+  // As Metric.distanceWithCutoff, from v to point i of a point-major block.
+  double distance(double[] v, int i, double cutoff){
+    if(squared) return KERNELS.squaredL2(v, data, i * dimension, dimension, cutoff);
+    return Math.sqrt(KERNELS.squaredL2(v, data, i * dimension, dimension, VectorMetrics.squaredCutoff(cutoff)));
+  }
+
+  // Writes the squared distance from v to every point of a dimension-major
+  // block into out, which must have room for them all.
+  void squaredDistances(double[] v, double[] out){
+    Arrays.fill(out, 0, size, 0.0);
+    for(int j = 0; j < dimension; j++){
+      double c = v[j];
+      int base = j * capacity;
+      for(int i = 0; i < size; i++){
+        double d = c - data[base + i];
+        out[i] += d * d;
+      }
+    }
+  }
+
+  // Whether a squared distance from squaredDistances shows that its point is
+  // further than cutoff away. The sums are not taken in the same order as
+  // the metric's, so some room is left for rounding, and points that pass
+  // should be measured again by the metric.
+  boolean beyond(double squaredDistance, double cutoff){
+    double limit = squared ? cutoff : cutoff * cutoff;
+    return squaredDistance > limit * (1 + 1e-9);
+  }
+
+  // Whether point i's norm shows that it is further than cutoff from a query
+  // whose norm is given. A little room is left for rounding in the norms.
+  boolean normRulesOut(double norm, int i, double cutoff){
+    double reach = squared ? Math.sqrt(cutoff) : cutoff;
+    double gap = Math.abs(norms[i] - norm) - reach;
+    return gap > 1e-9 * (norms[i] + norm + reach);
+  }
+}
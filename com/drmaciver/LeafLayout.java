@@ -0,0 +1,26 @@
+package com.drmaciver;
+
+// How a VantageTree's leaves store their points. OBJECTS keeps the items as
+// they were given, and works for any metric. The other two pack the
+// coordinates of a leaf's points into a single array, for trees of double[]
+// of one dimension under Metric.L2_DISTANCE, VectorMetrics.L2 or
+// VectorMetrics.SQUARED_L2, so that a scan reads memory in order rather than
+// following a pointer per point. POINT_MAJOR keeps each point's coordinates
+// together, and is read a point at a time, which keeps pivot filtering and
+// cutoffs. DIMENSION_MAJOR keeps each coordinate of every point together,
+// and works out the distances to the whole leaf at once in loops that the
+// JIT can vectorize across points. Leaves that cannot be packed keep their
+// objects.
+public final class LeafLayout{
+  public static final LeafLayout OBJECTS = new LeafLayout("objects");
+  public static final LeafLayout POINT_MAJOR = new LeafLayout("point-major");
+  public static final LeafLayout DIMENSION_MAJOR = new LeafLayout("dimension-major");
+
+  private final String name;
+
+  private LeafLayout(String name){
+    this.name = name;
+  }
+
+  public String toString(){ return name; }
+}
@@ -0,0 +1,110 @@
+package com.drmaciver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+// A shard held in this process as a VantageTree. It can be written to a file
+// and read back on its own, so that one shard of a ShardedMetricSearch can be
+// rebuilt or reloaded without touching the others. The file holds the
+// elements by Java serialization, so they must be Serializable, along with
+// the center and radius; reading it back builds a new tree over them.
+// As for VantageTree, add and remove are not safe to call concurrently with
+// anything else.
+public class LocalShard<V> implements Shard<V>{
+  static final int FILE_VERSION = 1;
+
+  final VantageTree<V> tree;
+  final V center;
+  double radius;
+
+  public LocalShard(Metric<V> metric, List<V> items){
+    this(metric, items, null, Double.POSITIVE_INFINITY, new Random().nextLong(), BuildOptions.DEFAULT);
+  }
+
+  // radius must be at least the distance from center to every item, unless
+  // center is null.
+  public LocalShard(Metric<V> metric, List<V> items, V center, double radius, long seed, BuildOptions options){
+    this(new VantageTree<V>(metric, items, null, seed, options), center, radius);
+  }
+
+  LocalShard(VantageTree<V> tree, V center, double radius){
+    this.tree = tree;
+    this.center = center;
+    this.radius = center == null ? Double.POSITIVE_INFINITY : radius;
+  }
+
+  public int size(){ return tree.size(); }
+  public V center(){ return center; }
+  public double radius(){ return radius; }
+
+  @SuppressWarnings("unchecked")
+  public List<V> nearestN(V v, int n, SharedBound bound, double[] distances){
+    V[] result = (V[])new Object[Math.max(Math.min(n, size()), 0)];
+    int found = tree.searcher().nearestN(v, result.length, SearchBudget.EXACT, bound, result, distances);
+    return new ArrayList<V>(Arrays.asList(result).subList(0, found));
+  }
+
+  public Collection<V> allWithinEpsilon(V v, double e){ return tree.allWithinEpsilon(v, e); }
+  public int countWithinEpsilon(V v, double e){ return tree.countWithinEpsilon(v, e); }
+  public boolean anyWithinEpsilon(V v, double e){ return tree.anyWithinEpsilon(v, e); }
+  public boolean contains(Object x){ return tree.contains(x); }
+
+  public boolean add(V v){
+    if(center != null) radius = Math.max(radius, tree.metric.distance(center, v));
+    return tree.add(v);
+  }
+
+  // The radius is left as it is, which still bounds what is left.
+  public boolean remove(Object x){ return tree.remove(x); }
+
+  public List<V> elements(){ return tree.toList(); }
+
+  public void write(File file) throws IOException{
+    ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(FILE_VERSION);
+      out.writeObject(center);
+      out.writeDouble(radius);
+      out.writeObject(new ArrayList<V>(tree));
+    } finally {
+      out.close();
+    }
+  }
+
+  public static <V> LocalShard<V> read(Metric<V> metric, File file) throws IOException{
+    return read(metric, file, BuildOptions.DEFAULT);
+  }
+
+  // Reads a shard written by write, building its tree with options.
+  @SuppressWarnings("unchecked")
+  public static <V> LocalShard<V> read(Metric<V> metric, File file, BuildOptions options) throws IOException{
+    ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      int version = in.readInt();
+      if(version != FILE_VERSION) throw new IOException("Unsupported shard file version " + version);
+      V center = (V)in.readObject();
+      double radius = in.readDouble();
+      List<V> items = (List<V>)in.readObject();
+      return new LocalShard<V>(metric, items, center, radius, new Random().nextLong(), options);
+    } catch(ClassNotFoundException e){
+      throw new IOException("Shard file holds an unknown class", e);
+    } finally {
+      in.close();
+    }
+  }
+
+  public String toString(){
+    return "LocalShard(" + size() + " elements)";
+  }
+}
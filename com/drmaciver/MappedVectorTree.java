@@ -0,0 +1,141 @@
+package com.drmaciver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+// A flat vector tree queried directly out of a memory mapped file written by
+// DoubleVectorVantageTree.write, without reading it onto the heap. Opening
+// one costs a few mmap calls however big the tree is, the pages are shared
+// with every other process mapping the same file, and the tree may be larger
+// than the heap. Files are mapped in chunks of at most a gigabyte, as that is
+// the most a single mapping can hold.
+public class MappedVectorTree extends AbstractVectorTree{
+  private final int dimension;
+  private final int size;
+  private final int nodeCount;
+
+  private final Ints nodeStarts;
+  private final Ints nodeEnds;
+  private final Ints nodeIns;
+  private final Ints nodeOuts;
+  private final Ints ids;
+  private final Ints rows;
+  private final Doubles nodeThresholds;
+  private final Doubles nodeRadii;
+
+  // Each chunk holds rowsPerChunk whole rows, so no row is split across two.
+  private final DoubleBuffer[] coordinates;
+  private final int rowsPerChunk;
+
+  private MappedVectorTree(FileChannel channel) throws IOException{
+    if(channel.size() < VectorTreeFormat.HEADER_SIZE) throw new IOException("File too short to be a vector tree");
+    ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, VectorTreeFormat.HEADER_SIZE).order(VectorTreeFormat.ORDER);
+    if(header.getInt() != VectorTreeFormat.MAGIC) throw new IOException("Not a vector tree file");
+    int version = header.getInt();
+    if(version != VectorTreeFormat.VERSION) throw new IOException("Unsupported vector tree file version " + version);
+
+    dimension = header.getInt();
+    size = header.getInt();
+    nodeCount = header.getInt();
+
+    VectorTreeFormat.Layout layout = new VectorTreeFormat.Layout(dimension, size, nodeCount);
+    if(channel.size() < layout.length) throw new IOException("Vector tree file is truncated: expected " + layout.length + " bytes but found " + channel.size());
+
+    nodeStarts = new Ints(channel, layout.nodeStart, nodeCount);
+    nodeEnds = new Ints(channel, layout.nodeEnd, nodeCount);
+    nodeIns = new Ints(channel, layout.nodeIn, nodeCount);
+    nodeOuts = new Ints(channel, layout.nodeOut, nodeCount);
+    ids = new Ints(channel, layout.ids, size);
+    rows = new Ints(channel, layout.rows, size);
+    nodeThresholds = new Doubles(channel, layout.nodeThreshold, nodeCount);
+    nodeRadii = new Doubles(channel, layout.nodeRadius, nodeCount);
+
+    rowsPerChunk = Math.max(1, Doubles.CHUNK / Math.max(dimension, 1));
+    coordinates = new DoubleBuffer[(size + rowsPerChunk - 1) / rowsPerChunk];
+    for(int i = 0; i < coordinates.length; i++){
+      long firstRow = (long)i * rowsPerChunk;
+      long chunkRows = Math.min(rowsPerChunk, size - firstRow);
+      coordinates[i] = channel.map(FileChannel.MapMode.READ_ONLY, layout.coordinates + 8L * firstRow * dimension, 8L * chunkRows * dimension).order(VectorTreeFormat.ORDER).asDoubleBuffer();
+    }
+  }
+
+  public static MappedVectorTree map(File file) throws IOException{
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      // Mappings stay valid once the file is closed.
+      return new MappedVectorTree(raf.getChannel());
+    } finally {
+      raf.close();
+    }
+  }
+
+  public int size(){ return size; }
+  public int dimension(){ return dimension; }
+
+  int nodeCount(){ return nodeCount; }
+  int nodeStart(int node){ return nodeStarts.get(node); }
+  int nodeEnd(int node){ return nodeEnds.get(node); }
+  int nodeIn(int node){ return nodeIns.get(node); }
+  int nodeOut(int node){ return nodeOuts.get(node); }
+  double nodeThreshold(int node){ return nodeThresholds.get(node); }
+  double nodeRadius(int node){ return nodeRadii.get(node); }
+
+  int id(int row){ return ids.get(row); }
+  int rowOf(int id){ return rows.get(id); }
+
+  double[] row(int row){
+    double[] result = new double[dimension];
+    coordinates[row / rowsPerChunk].get((row % rowsPerChunk) * dimension, result);
+    return result;
+  }
+
+  // The row is copied out so that its distance goes through the same kernel
+  // as the build's, and so comes out exactly as it did then.
+  double distanceToRow(double[] v, int row){
+    return Math.sqrt(DistanceKernels.INSTANCE.squaredL2(v, row(row), dimension, Double.POSITIVE_INFINITY));
+  }
+
+  static class Ints{
+    static final int SHIFT = 28;
+    static final int MASK = (1 << SHIFT) - 1;
+    final IntBuffer[] chunks;
+
+    Ints(FileChannel channel, long offset, long count) throws IOException{
+      chunks = new IntBuffer[(int)((count + MASK) >>> SHIFT)];
+      for(int i = 0; i < chunks.length; i++){
+        long first = (long)i << SHIFT;
+        long length = Math.min(1L << SHIFT, count - first);
+        chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + 4 * first, 4 * length).order(VectorTreeFormat.ORDER).asIntBuffer();
+      }
+    }
+
+    int get(int i){
+      return chunks[i >>> SHIFT].get(i & MASK);
+    }
+  }
+
+  static class Doubles{
+    static final int SHIFT = 27;
+    static final int CHUNK = 1 << SHIFT;
+    static final int MASK = CHUNK - 1;
+    final DoubleBuffer[] chunks;
+
+    Doubles(FileChannel channel, long offset, long count) throws IOException{
+      chunks = new DoubleBuffer[(int)((count + MASK) >>> SHIFT)];
+      for(int i = 0; i < chunks.length; i++){
+        long first = (long)i << SHIFT;
+        long length = Math.min(CHUNK, count - first);
+        chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + 8 * first, 8 * length).order(VectorTreeFormat.ORDER).asDoubleBuffer();
+      }
+    }
+
+    double get(int i){
+      return chunks[i >>> SHIFT].get(i & MASK);
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package com.drmaciver;
+
+import java.util.List;
+import java.util.Arrays;
+import java.util.Random;
+
+// Prefers candidates whose distances to the sample are widely spread about
+// their median, as those give the most useful splits. A parallel sampler
+// scores its candidates as fork/join tasks.
+class MedianSpreadSampler<V> extends RecursiveSampler<V>{
+  private final Metric<V> metric;
+  private final boolean parallel;
+
+  MedianSpreadSampler(Metric<V> metric){
+    this.metric = metric;
+    this.parallel = false;
+  }
+
+  MedianSpreadSampler(Metric<V> metric, Random random){
+    super(random);
+    this.metric = metric;
+    this.parallel = false;
+  }
+
+  MedianSpreadSampler(Metric<V> metric, Random random, int startingCandidates, int sampleSize, boolean parallel){
+    super(random, startingCandidates, sampleSize);
+    this.metric = metric;
+    this.parallel = parallel;
+  }
+
+  public double score(V candidate, List<V> sample){
+    double[] distances = new double[sample.size()];
+    int i = 0;
+    for(V v : sample) distances[i++] = metric.distance(v, candidate);
+    Arrays.sort(distances);
+    double median = distances[distances.length / 2];
+
+    double spread = 0;
+    for(double d : distances) spread += Math.pow(d - median, 2);
+    return -spread;
+  }
+
+  void scoreAll(final List<V> candidates, final List<V> sample, final double[] scores){
+    if(!parallel){
+      super.scoreAll(candidates, sample, scores);
+      return;
+    }
+    new ParallelRange(){
+      void run(int from, int to){
+        for(int i = from; i < to; i++) scores[i] = score(candidates.get(i), sample);
+      }
+    }.invoke(0, scores.length, VantageTree.PARALLEL_SCORING_GRAIN);
+  }
+}
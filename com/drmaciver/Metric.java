@@ -7,31 +7,23 @@ public abstract class Metric<V>{
     public double distance(Double x, Double y){ return Math.abs(x - y); }
   };
 
+  // Euclidean distance, padding the shorter vector with zeros. The same as
+  // VectorMetrics.L2.
   public static final Metric<double[]> L2_DISTANCE = new Metric<double[]>(){
-    public double distance(double[] x, double[] y){ 
-      if(y.length > x.length){
-        double[] z = x;
-        x = y;
-        y = z; 
-      }
-      
-      int i;
-    
-      double tot = 0.0;
-      for(i = 0; i < y.length; i++){
-        tot += Math.pow(x[i] - y[i], 2);
-      }
-      for(; i < x.length; i++){
-        tot += Math.pow(x[i], 2);
-      }
-
-      return Math.sqrt(tot);
-    }
+    public double distance(double[] x, double[] y){ return VectorMetrics.L2.distance(x, y); }
+    public double distanceWithCutoff(double[] x, double[] y, double cutoff){ return VectorMetrics.L2.distanceWithCutoff(x, y, cutoff); }
   };
 
 
   public abstract double distance(V x, V y);
 
+  // Contract:
+  //  distanceWithCutoff(x, y, c) = distance(x, y) if distance(x, y) <= c
+  //  c < distanceWithCutoff(x, y, c) <= distance(x, y) otherwise
+  // Metrics that add up a distance a piece at a time can override this to
+  // stop as soon as they know the result is past the cutoff.
+  public double distanceWithCutoff(V x, V y, double cutoff){ return distance(x, y); }
+
    // Contract: 
    //  bound(d1, d2) = bound(d2, d1)
    //  x <= y implies bound(x, d) <= bound(y, d)
@@ -43,6 +35,6 @@ public abstract class Metric<V>{
   //  bound(d2, unbound(d1, d2)) >= d2
   public double unbound(double d1, double d2){
     if(d1 <= d2) return 0.0;
-    else return d2 - d1;
+    else return d1 - d2;
   }
 }
@@ -2,9 +2,29 @@ package com.drmaciver;
 
 import java.util.List;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public interface MetricSearch<V> extends Collection<V>{
   public V nearest(V v);
   public List<V> nearestN(V v, int n);
+  // Like nearestN, but stops early once the search has used up its budget.
+  public NearestResult<V> nearestN(V v, int n, SearchBudget budget);
+  // Every element in increasing order of distance from v, found lazily, so
+  // that only as much of the search is done as is consumed.
+  public Iterator<V> nearestIterator(V v);
+  public Stream<V> nearestStream(V v);
   public Collection<V> allWithinEpsilon(V v, double e);
+  // What allWithinEpsilon would find, without collecting it. anyWithinEpsilon
+  // stops at the first point it finds, and forEachWithinEpsilon hands each
+  // point to consumer as soon as it is found.
+  public int countWithinEpsilon(V v, double e);
+  public boolean anyWithinEpsilon(V v, double e);
+  public void forEachWithinEpsilon(V v, double e, Consumer<? super V> consumer);
+
+  // The results of nearestN and allWithinEpsilon for each of the queries, in
+  // the same order as the queries.
+  public List<List<V>> nearestNBatch(List<V> queries, int n);
+  public List<Collection<V>> allWithinEpsilonBatch(List<V> queries, double e);
 }
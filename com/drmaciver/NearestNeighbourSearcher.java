@@ -0,0 +1,359 @@
+package com.drmaciver;
+
+import java.util.Arrays;
+import java.util.List;
+
+// A reusable nearest neighbour query against a VantageTree. All of the working
+// state (the heap of best candidates so far and the queue of subtrees still
+// to search) lives in primitive arrays that are kept between calls, so once
+// they have grown to fit the largest query a searcher makes no allocations at
+// all. A searcher is not thread safe: give each thread its own.
+public class NearestNeighbourSearcher<V>{
+  private final VantageTree<V> tree;
+  private final Metric<V> metric;
+
+  // Max-heap of the best candidates found so far, by distance.
+  private Object[] best = new Object[16];
+  private double[] bestDistances = new double[16];
+  private int bestCapacity;
+  private int bestFill;
+
+  // Min-heap of subtrees still to search, by a lower bound on their distance.
+  // pendingPaths holds where in the path arena each one's parent Split is.
+  private Object[] pending = new Object[64];
+  private double[] pendingDistances = new double[64];
+  private int[] pendingPaths = new int[64];
+  private int pendingFill;
+  private int poppedPath;
+
+  // Every Split the current query has gone below, as the center, the exact
+  // distance to it and the index of the Split above it, or -1 at the root.
+  private Object[] pathCenters = new Object[64];
+  private double[] pathDistances = new double[64];
+  private int[] pathParents = new int[64];
+  private int pathFill;
+
+  // The innermost few entries of a leaf's path, for Leaf.prepare.
+  private final VantageTree.QueryPath path = new VantageTree.QueryPath();
+
+  // Distances to the centers of the MultiSplit being searched.
+  private double[] centerDistances = new double[4];
+
+  // Statistics for the current query, or null if nobody is listening.
+  private QueryStats stats;
+
+  // What the current query has used of its budget, and whether it has had
+  // to skip anything that might have held a true neighbour.
+  private long distanceCalls;
+  private long leaves;
+  private double shrink;
+  private boolean exact;
+
+  // The bound shared with searches of other trees, or null if there is none.
+  private SharedBound shared;
+
+  public NearestNeighbourSearcher(VantageTree<V> tree){
+    this.tree = tree;
+    this.metric = tree.metric;
+  }
+
+  public int nearestN(V v, int n, V[] result){
+    return nearestN(v, n, result, null);
+  }
+
+  // Writes the n nearest points to v into result, closest first, along with
+  // their distances if distances is not null. Returns how many were written,
+  // which is less than n if the tree or the buffer is smaller than that.
+  public int nearestN(V v, int n, V[] result, double[] distances){
+    return nearestN(v, n, SearchBudget.EXACT, result, distances);
+  }
+
+  // As above, but stopping early once budget is used up. The limits are
+  // checked between nodes, so a search may go over its distance calls by up
+  // to the size of a leaf. lastSearchExact says whether anything was cut
+  // short.
+  public int nearestN(V v, int n, SearchBudget budget, V[] result, double[] distances){
+    return nearestN(v, n, budget, null, result, distances);
+  }
+
+  // As above, as one of several searches for the n nearest neighbours of v
+  // over different trees, sharing shared between them. Nothing further away
+  // than shared is returned, so this may find fewer than n points even if
+  // the tree has more, and once it has n it lowers shared to the furthest.
+  @SuppressWarnings("unchecked")
+  public int nearestN(V v, int n, SearchBudget budget, SharedBound shared, V[] result, double[] distances){
+    QueryListener listener = tree.listener;
+    boolean deadline = budget.hasDeadline();
+    long start = listener != null || deadline ? System.nanoTime() : 0;
+    if(listener != null) stats = new QueryStats(QueryStats.NEAREST);
+
+    resetBest(n);
+    pendingFill = 0;
+    pathFill = 0;
+    distanceCalls = 0;
+    leaves = 0;
+    shrink = 1.0 / (1.0 + budget.slack);
+    exact = true;
+    this.shared = shared;
+
+    if(n > 0) push(tree.tree, 0.0, -1);
+
+    while(pendingFill > 0){
+      double e = bound();
+      if(pendingDistances[0] > e * shrink){
+        if(pendingDistances[0] <= e) exact = false;
+        break;
+      }
+      if(distanceCalls >= budget.maxDistanceCalls || leaves >= budget.maxLeaves || (deadline && System.nanoTime() - start >= budget.maxNanos)){
+        exact = false;
+        break;
+      }
+      VantageTree<V>.Tree next = (VantageTree<V>.Tree)pop();
+
+      if(next instanceof VantageTree.Split) search((VantageTree<V>.Split)next, v, poppedPath);
+      else if(next instanceof VantageTree.MultiSplit) search((VantageTree<V>.MultiSplit)next, v, poppedPath);
+      else if(next instanceof VantageTree.Leaf) search((VantageTree<V>.Leaf)next, v, poppedPath);
+    }
+
+    // Drop the references we were holding on to so the searcher does not keep
+    // subtrees of an old tree alive.
+    for(int i = 0; i < pendingFill; i++) pending[i] = null;
+    pendingFill = 0;
+    for(int i = 0; i < pathFill; i++) pathCenters[i] = null;
+    pathFill = 0;
+    this.shared = null;
+
+    int found = bestFill;
+    for(int i = found - 1; i >= 0; i--){
+      Object element = best[0];
+      double distance = bestDistances[0];
+      bestFill--;
+      if(bestFill > 0) siftDownBest(best[bestFill], bestDistances[bestFill], bestFill);
+      best[bestFill] = null;
+      if(i < result.length) result[i] = (V)element;
+      if(distances != null && i < distances.length) distances[i] = distance;
+    }
+
+    if(listener != null){
+      stats.nanos = System.nanoTime() - start;
+      stats.resultSize = found;
+      listener.queryCompleted(stats);
+      stats = null;
+    }
+    return Math.min(found, result.length);
+  }
+
+  // Whether the last search was certain to find the true nearest neighbours.
+  public boolean lastSearchExact(){
+    return exact;
+  }
+
+  private void search(VantageTree<V>.Split split, V v, int parent){
+    double e = bound();
+    double r = metric.distanceWithCutoff(v, split.center, metric.bound(e, split.radius));
+    offer(split.center, r, split.count);
+
+    e = bound();
+    double relaxed = e * shrink;
+    boolean hitsIn = split.mayHitIn(r, relaxed);
+    boolean hitsOut = split.mayHitOut(r, relaxed);
+    if(relaxed < e && ((!hitsIn && split.mayHitIn(r, e)) || (!hitsOut && split.mayHitOut(r, e)))) exact = false;
+    distanceCalls++;
+    // Neither child is pushed unless r was within the cut off, so the path
+    // only ever holds exact distances.
+    int node = hitsIn || hitsOut ? pathNode(split.center, r, parent) : -1;
+    if(hitsIn) push(split.in, metric.unbound(r, split.threshold), node);
+    if(hitsOut) push(split.out, metric.unbound(r, split.radius), node);
+
+    if(stats != null){
+      stats.distanceCalls++;
+      stats.splitsVisited++;
+      stats.pointsScanned++;
+      if(!hitsIn) stats.subtreesPruned++;
+      if(!hitsOut) stats.subtreesPruned++;
+    }
+  }
+
+  private void search(VantageTree<V>.MultiSplit split, V v, int parent){
+    int m = split.centers.length;
+    if(centerDistances.length < m) centerDistances = new double[m];
+    double[] d = centerDistances;
+    split.distances(v, bound(), d, stats);
+    for(int j = 0; j < m; j++) offer(split.centers[j], d[j], split.counts[j]);
+    distanceCalls += m;
+
+    double e = bound();
+    double relaxed = e * shrink;
+    int node = -1;
+    for(int c = 0; c < split.children.size(); c++){
+      boolean hits = split.mayHit(c, d, relaxed);
+      if(!hits && relaxed < e && split.mayHit(c, d, e)) exact = false;
+      if(hits){
+        // As for Split, only children that may hit are pushed, and they are
+        // only hit if d is exact.
+        if(node < 0){
+          node = parent;
+          for(int j = 0; j < m; j++) node = pathNode(split.centers[j], d[j], node);
+        }
+        push(split.children.get(c), split.lowerBound(c, d), node);
+      } else if(stats != null) stats.subtreesPruned++;
+    }
+  }
+
+  private void search(VantageTree<V>.Leaf leaf, V v, int node){
+    List<V> items = leaf.items;
+    int known = prepare(leaf, v, node);
+    int compared = 0;
+    for(int i = 0, size = items.size(); i < size; i++){
+      double d = leaf.scan(v, i, bound(), known, path);
+      if(d < 0) continue;
+      offer(items.get(i), d, leaf.count(i));
+      compared++;
+    }
+    leaves++;
+    distanceCalls += compared;
+
+    if(stats != null){
+      stats.leavesVisited++;
+      stats.distanceCalls += compared;
+      stats.pointsScanned += compared;
+      stats.pointsFiltered += items.size() - compared;
+    }
+  }
+
+  // Copies the innermost LEAF_PIVOTS entries of the path ending at node into
+  // path, and sets it up for a scan of leaf as Leaf.prepare does.
+  private int prepare(VantageTree<V>.Leaf leaf, V v, int node){
+    int depth = 0;
+    if(leaf.pivots.length > 0) for(int p = node; p >= 0 && depth < VantageTree.LEAF_PIVOTS; p = pathParents[p]) depth++;
+    path.depth = depth;
+    for(int p = node, i = depth - 1; i >= 0; p = pathParents[p], i--){
+      path.centers[i] = pathCenters[p];
+      path.distances[i] = pathDistances[p];
+    }
+    int known = leaf.prepare(v, path);
+    for(int i = 0; i < depth; i++) path.centers[i] = null;
+    return known;
+  }
+
+  private int pathNode(Object center, double distance, int parent){
+    if(pathFill == pathCenters.length){
+      pathCenters = Arrays.copyOf(pathCenters, pathFill * 2);
+      pathDistances = Arrays.copyOf(pathDistances, pathFill * 2);
+      pathParents = Arrays.copyOf(pathParents, pathFill * 2);
+    }
+    pathCenters[pathFill] = center;
+    pathDistances[pathFill] = distance;
+    pathParents[pathFill] = parent;
+    return pathFill++;
+  }
+
+  private double bound(){
+    double local = bestFill < bestCapacity ? Double.POSITIVE_INFINITY : bestDistances[0];
+    return shared == null ? local : Math.min(local, shared.get());
+  }
+
+  private void resetBest(int n){
+    if(n > best.length){
+      best = new Object[n];
+      bestDistances = new double[n];
+    }
+    for(int i = 0; i < bestFill; i++) best[i] = null;
+    bestCapacity = n;
+    bestFill = 0;
+  }
+
+  private void offer(Object element, double distance){
+    if(bestCapacity == 0 || distance > bound()) return;
+
+    if(bestFill < bestCapacity){
+      int n = bestFill++;
+      while(n > 0){
+        int p = (n - 1) / 2;
+        if(bestDistances[p] >= distance) break;
+        best[n] = best[p];
+        bestDistances[n] = bestDistances[p];
+        n = p;
+      }
+      best[n] = element;
+      bestDistances[n] = distance;
+    } else siftDownBest(element, distance, bestFill);
+    if(shared != null && bestFill == bestCapacity) shared.lower(bestDistances[0]);
+  }
+
+  // Offers copies of element, all at the same distance. Any beyond the
+  // number kept could only replace each other.
+  private void offer(Object element, double distance, int copies){
+    for(int c = Math.min(copies, bestCapacity); c > 0; c--) offer(element, distance);
+  }
+
+  private void siftDownBest(Object element, double distance, int limit){
+    int n = 0;
+    while(true){
+      int c = n * 2 + 1;
+      if(c >= limit) break;
+      if(c + 1 < limit && bestDistances[c + 1] > bestDistances[c]) c++;
+      if(bestDistances[c] <= distance) break;
+      best[n] = best[c];
+      bestDistances[n] = bestDistances[c];
+      n = c;
+    }
+    best[n] = element;
+    bestDistances[n] = distance;
+  }
+
+  private void push(Object subtree, double distance, int parent){
+    if(pendingFill == pending.length){
+      Object[] newPending = new Object[pending.length * 2];
+      double[] newDistances = new double[pending.length * 2];
+      System.arraycopy(pending, 0, newPending, 0, pendingFill);
+      System.arraycopy(pendingDistances, 0, newDistances, 0, pendingFill);
+      pending = newPending;
+      pendingDistances = newDistances;
+      pendingPaths = Arrays.copyOf(pendingPaths, pending.length);
+    }
+
+    int n = pendingFill++;
+    while(n > 0){
+      int p = (n - 1) / 2;
+      if(pendingDistances[p] <= distance) break;
+      pending[n] = pending[p];
+      pendingDistances[n] = pendingDistances[p];
+      pendingPaths[n] = pendingPaths[p];
+      n = p;
+    }
+    pending[n] = subtree;
+    pendingDistances[n] = distance;
+    pendingPaths[n] = parent;
+    if(stats != null) stats.queued(pendingFill);
+  }
+
+  // Sets poppedPath to the path index pushed along with the result.
+  private Object pop(){
+    Object result = pending[0];
+    poppedPath = pendingPaths[0];
+    pendingFill--;
+    Object last = pending[pendingFill];
+    double lastDistance = pendingDistances[pendingFill];
+    int lastPath = pendingPaths[pendingFill];
+    pending[pendingFill] = null;
+
+    if(pendingFill > 0){
+      int n = 0;
+      while(true){
+        int c = n * 2 + 1;
+        if(c >= pendingFill) break;
+        if(c + 1 < pendingFill && pendingDistances[c + 1] < pendingDistances[c]) c++;
+        if(pendingDistances[c] >= lastDistance) break;
+        pending[n] = pending[c];
+        pendingDistances[n] = pendingDistances[c];
+        pendingPaths[n] = pendingPaths[c];
+        n = c;
+      }
+      pending[n] = last;
+      pendingDistances[n] = lastDistance;
+      pendingPaths[n] = lastPath;
+    }
+    return result;
+  }
+}
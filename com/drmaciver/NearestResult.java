@@ -0,0 +1,20 @@
+package com.drmaciver;
+
+import java.util.List;
+
+// The neighbours found by a nearestN search under a SearchBudget, closest
+// first. exact is true if the search finished without its budget cutting
+// anything short, in which case these are the true nearest neighbours.
+public class NearestResult<V>{
+  public final List<V> neighbours;
+  public final boolean exact;
+
+  NearestResult(List<V> neighbours, boolean exact){
+    this.neighbours = neighbours;
+    this.exact = exact;
+  }
+
+  public String toString(){
+    return "NearestResult(" + neighbours.size() + " neighbours, exact=" + exact + ")";
+  }
+}
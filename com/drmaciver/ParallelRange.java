@@ -0,0 +1,44 @@
+package com.drmaciver;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// A loop over [from, to) that is split in half recursively until the pieces
+// are no bigger than grain, with the pieces run as fork/join tasks. When
+// invoked from inside a ForkJoinPool it runs on that pool.
+abstract class ParallelRange{
+  abstract void run(int from, int to);
+
+  void invoke(int from, int to, int grain){
+    new Part(from, to, grain).invoke();
+  }
+
+  // Runs the pieces on pool, or one after another on this thread if pool is
+  // null.
+  void invoke(ForkJoinPool pool, int from, int to, int grain){
+    if(pool == null){
+      for(int i = from; i < to; i += grain) run(i, Math.min(i + grain, to));
+    } else pool.invoke(new Part(from, to, grain));
+  }
+
+  private class Part extends RecursiveAction{
+    private static final long serialVersionUID = 1L;
+    final int from;
+    final int to;
+    final int grain;
+
+    Part(int from, int to, int grain){
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+    }
+
+    protected void compute(){
+      if(to - from <= grain) run(from, to);
+      else {
+        int mid = (from + to) >>> 1;
+        invokeAll(new Part(from, mid, grain), new Part(mid, to, grain));
+      }
+    }
+  }
+}
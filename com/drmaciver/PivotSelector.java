@@ -0,0 +1,135 @@
+package com.drmaciver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// How a VantageTree picks the center of each node it builds. Better centers
+// make for trees that answer queries with fewer distance calls, but looking
+// for them costs distance calls of its own at every node, and for an
+// expensive metric that can dominate the build. Each selector is given a
+// budget of distance calls per node (BuildOptions.pivotBudget) and scales
+// its work down to fit inside it. Subclasses may define other strategies.
+public abstract class PivotSelector{
+  // Any one of the items, for no distance calls at all.
+  public static final PivotSelector RANDOM = new PivotSelector("random"){
+    public <V> V select(Metric<V> metric, List<V> items, Random random, long budget){
+      return items.get(random.nextInt(items.size()));
+    }
+  };
+
+  // The item furthest from a random one, out of as many as the budget
+  // allows. Points out at the edge of the data split it into well separated
+  // shells, and this finds one in a single pass.
+  public static final PivotSelector FARTHEST_FIRST = new PivotSelector("farthest-first"){
+    public <V> V select(Metric<V> metric, List<V> items, Random random, long budget){
+      V start = items.get(random.nextInt(items.size()));
+      V best = start;
+      double furthest = 0.0;
+      for(V v : sample(items, budget, random)){
+        double d = metric.distance(start, v);
+        if(d > furthest){
+          furthest = d;
+          best = v;
+        }
+      }
+      return best;
+    }
+  };
+
+  // Of 32 random candidates, the one whose distances to a single 128 point
+  // sample have the largest variance. Reusing the sample and not sorting
+  // makes this far cheaper than RECURSIVE, at 4096 calls a node.
+  public static final PivotSelector MAX_VARIANCE = new PivotSelector("max-variance"){
+    public <V> V select(Metric<V> metric, List<V> items, Random random, long budget){
+      return select(metric, items, random, budget, false);
+    }
+
+    <V> V select(final Metric<V> metric, List<V> items, Random random, long budget, boolean parallel){
+      int candidateCount = 32;
+      int sampleSize = 128;
+      while((long)candidateCount * sampleSize > budget && candidateCount > 1){
+        if(candidateCount >= sampleSize) candidateCount /= 2;
+        else sampleSize /= 2;
+      }
+      if((long)candidateCount * sampleSize > budget || candidateCount == 1) return items.get(random.nextInt(items.size()));
+
+      final List<V> candidates = sample(items, candidateCount, random);
+      final List<V> reference = sample(items, sampleSize, random);
+      final double[] scores = new double[candidates.size()];
+      ParallelRange scoring = new ParallelRange(){
+        void run(int from, int to){
+          for(int i = from; i < to; i++){
+            V c = candidates.get(i);
+            double sum = 0.0;
+            double squares = 0.0;
+            for(V v : reference){
+              double d = metric.distance(c, v);
+              sum += d;
+              squares += d * d;
+            }
+            double mean = sum / reference.size();
+            scores[i] = squares / reference.size() - mean * mean;
+          }
+        }
+      };
+      if(parallel) scoring.invoke(0, scores.length, VantageTree.PARALLEL_SCORING_GRAIN);
+      else scoring.run(0, scores.length);
+
+      int best = 0;
+      for(int i = 1; i < scores.length; i++) if(scores[i] > scores[best]) best = i;
+      return candidates.get(best);
+    }
+  };
+
+  // The original sampler: 128 candidates scored on how widely their
+  // distances to a 100 point sample spread about its median, with the worse
+  // half dropped against a fresh sample until only one is left. The best
+  // centers of these, but about 25,000 calls a node.
+  public static final PivotSelector RECURSIVE = new PivotSelector("recursive"){
+    public <V> V select(Metric<V> metric, List<V> items, Random random, long budget){
+      return select(metric, items, random, budget, false);
+    }
+
+    <V> V select(Metric<V> metric, List<V> items, Random random, long budget, boolean parallel){
+      // Halving the candidates each round makes for under twice as many
+      // scorings as there are candidates to start with.
+      int candidateCount = 128;
+      int sampleSize = 100;
+      while(2L * candidateCount * sampleSize > budget && candidateCount > 1){
+        if(candidateCount >= sampleSize) candidateCount /= 2;
+        else sampleSize /= 2;
+      }
+      if(2L * candidateCount * sampleSize > budget || candidateCount == 1) return items.get(random.nextInt(items.size()));
+      return new MedianSpreadSampler<V>(metric, random, candidateCount, sampleSize, parallel).pickBestCandidate(items);
+    }
+  };
+
+  private final String name;
+
+  protected PivotSelector(String name){
+    this.name = name;
+  }
+
+  // Picks a center from items, which are not empty and allow fast random
+  // access, with at most budget calls to metric. All randomness should come
+  // from random, so that builds are repeatable.
+  public abstract <V> V select(Metric<V> metric, List<V> items, Random random, long budget);
+
+  // As above, from a fork/join build task if parallel is true, so that the
+  // work may be split into further tasks.
+  <V> V select(Metric<V> metric, List<V> items, Random random, long budget, boolean parallel){
+    return select(metric, items, random, budget);
+  }
+
+  // items itself if it has no more than size elements, or else size of them
+  // picked at random with replacement.
+  static <V> List<V> sample(List<V> items, long size, Random random){
+    if(items.size() <= size) return items;
+    List<V> sample = new ArrayList<V>((int)size);
+    for(long i = 0; i < size; i++) sample.add(items.get(random.nextInt(items.size())));
+    return sample;
+  }
+
+  public String toString(){ return name; }
+}
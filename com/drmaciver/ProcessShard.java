@@ -0,0 +1,227 @@
+package com.drmaciver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// A shard served by a separate JVM on this machine, standing in for a shard
+// on another node. The child process reads a LocalShard file written by
+// LocalShard.write and answers requests over its standard input and output
+// with Java serialization, one at a time. Its metric is named by a public
+// static field, such as "com.drmaciver.Metric.L2_DISTANCE", as metrics
+// themselves are not serializable.
+//
+// The shared bound of a nearestN search cannot be seen from the other
+// process while it runs, so the child starts from its value when the request
+// is sent, and what the child finds lowers it once the answer comes back.
+public class ProcessShard<V> implements Shard<V>, Closeable{
+  static final int SIZE = 0;
+  static final int NEAREST = 1;
+  static final int WITHIN = 2;
+  static final int COUNT = 3;
+  static final int CONTAINS = 4;
+  static final int ADD = 5;
+  static final int REMOVE = 6;
+  static final int ELEMENTS = 7;
+  static final int ANY = 8;
+
+  private final Process process;
+  private final ObjectOutputStream out;
+  private final ObjectInputStream in;
+  private final V center;
+  // These are only changed by add and remove through this object, so they
+  // are kept here rather than asked for.
+  private double radius;
+  private int size;
+
+  // Starts a JVM with the same class path as this one, serving the shard in
+  // file.
+  @SuppressWarnings("unchecked")
+  public ProcessShard(String metric, File file) throws IOException{
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    List<String> command = Arrays.asList(java, "-cp", System.getProperty("java.class.path"), ProcessShard.class.getName(), metric, file.getPath());
+    this.process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    try {
+      this.out = new ObjectOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      out.flush();
+      this.in = new ObjectInputStream(new BufferedInputStream(process.getInputStream()));
+      this.center = (V)in.readObject();
+      this.radius = in.readDouble();
+      this.size = in.readInt();
+    } catch(IOException e){
+      process.destroy();
+      throw e;
+    } catch(ClassNotFoundException e){
+      process.destroy();
+      throw new IOException("Shard process sent an unknown class", e);
+    }
+  }
+
+  // Sends a request and waits for the answer, rethrowing anything the child
+  // threw in answering it.
+  private synchronized Object call(int request, Object... arguments){
+    try {
+      out.writeInt(request);
+      for(Object a : arguments) out.writeObject(a);
+      out.flush();
+      // Without a reset the stream would send the same object again as a
+      // reference to the first copy, however it has changed since.
+      out.reset();
+      Object answer = in.readObject();
+      if(answer instanceof RuntimeException) throw (RuntimeException)answer;
+      if(answer instanceof Throwable) throw new RuntimeException("Shard process failed", (Throwable)answer);
+      return answer;
+    } catch(IOException e){
+      throw new UncheckedIOException(e);
+    } catch(ClassNotFoundException e){
+      throw new RuntimeException("Shard process sent an unknown class", e);
+    }
+  }
+
+  public int size(){ return size; }
+  public V center(){ return center; }
+  public double radius(){ return radius; }
+
+  @SuppressWarnings("unchecked")
+  public List<V> nearestN(V v, int n, SharedBound bound, double[] distances){
+    Object[] answer = (Object[])call(NEAREST, v, n, bound.get());
+    List<V> found = (List<V>)answer[0];
+    double[] d = (double[])answer[1];
+    System.arraycopy(d, 0, distances, 0, Math.min(found.size(), distances.length));
+    if(found.size() == n && n > 0) bound.lower(d[n - 1]);
+    return found;
+  }
+
+  @SuppressWarnings("unchecked")
+  public Collection<V> allWithinEpsilon(V v, double e){ return (Collection<V>)call(WITHIN, v, e); }
+  public int countWithinEpsilon(V v, double e){ return (Integer)call(COUNT, v, e); }
+  public boolean anyWithinEpsilon(V v, double e){ return (Boolean)call(ANY, v, e); }
+  public boolean contains(Object x){ return (Boolean)call(CONTAINS, x); }
+
+  // The child widens its ball to take in v, and answers with its new
+  // radius along with whether v was added.
+  public boolean add(V v){
+    Object[] answer = (Object[])call(ADD, v);
+    boolean added = (Boolean)answer[0];
+    radius = (Double)answer[1];
+    if(added) size++;
+    return added;
+  }
+
+  public boolean remove(Object x){
+    boolean removed = (Boolean)call(REMOVE, x);
+    if(removed) size--;
+    return removed;
+  }
+
+  @SuppressWarnings("unchecked")
+  public List<V> elements(){ return (List<V>)call(ELEMENTS); }
+
+  // Closes the child's input, which it takes as the signal to exit, and
+  // waits a little while for it to do so before killing it.
+  public synchronized void close() throws IOException{
+    try {
+      out.close();
+      if(!process.waitFor(10, TimeUnit.SECONDS)) process.destroyForcibly();
+    } catch(InterruptedException e){
+      process.destroyForcibly();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public String toString(){
+    return "ProcessShard(" + size + " elements)";
+  }
+
+  // Looks up the metric held by a public static field, given as the name of
+  // its class followed by a dot and the name of the field.
+  @SuppressWarnings("unchecked")
+  static <V> Metric<V> metricNamed(String name){
+    int dot = name.lastIndexOf('.');
+    if(dot < 0) throw new IllegalArgumentException("Expected a metric as Class.FIELD but got " + name);
+    try {
+      return (Metric<V>)Class.forName(name.substring(0, dot)).getField(name.substring(dot + 1)).get(null);
+    } catch(ReflectiveOperationException e){
+      throw new IllegalArgumentException("No metric called " + name, e);
+    }
+  }
+
+  // The child's side: serves the shard in a file until its input closes.
+  // Standard output carries the answers, so anything else printed goes to
+  // standard error instead.
+  public static void main(String[] args) throws IOException{
+    if(args.length != 2){
+      System.err.println("Usage: ProcessShard <metric> <shard file>");
+      System.exit(1);
+    }
+    PrintStream answers = System.out;
+    System.setOut(System.err);
+    serve(LocalShard.read(ProcessShard.<Object>metricNamed(args[0]), new File(args[1])), System.in, answers);
+  }
+
+  @SuppressWarnings("unchecked")
+  static <V> void serve(Shard<V> shard, InputStream input, OutputStream output) throws IOException{
+    ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(output));
+    out.writeObject(shard.center());
+    out.writeDouble(shard.radius());
+    out.writeInt(shard.size());
+    out.flush();
+    ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(input));
+
+    while(true){
+      int request;
+      try {
+        request = in.readInt();
+      } catch(EOFException e){
+        return;
+      }
+      Object answer;
+      try {
+        if(request == SIZE) answer = shard.size();
+        else if(request == NEAREST){
+          V v = (V)in.readObject();
+          int n = (Integer)in.readObject();
+          double[] distances = new double[Math.max(n, 0)];
+          List<V> found = shard.nearestN(v, n, new SharedBound((Double)in.readObject()), distances);
+          answer = new Object[]{ found, Arrays.copyOf(distances, found.size()) };
+        } else if(request == WITHIN){
+          V v = (V)in.readObject();
+          answer = new ArrayList<V>(shard.allWithinEpsilon(v, (Double)in.readObject()));
+        } else if(request == COUNT){
+          V v = (V)in.readObject();
+          answer = shard.countWithinEpsilon(v, (Double)in.readObject());
+        } else if(request == ANY){
+          V v = (V)in.readObject();
+          answer = shard.anyWithinEpsilon(v, (Double)in.readObject());
+        } else if(request == CONTAINS) answer = shard.contains(in.readObject());
+        else if(request == ADD){
+          boolean added = shard.add((V)in.readObject());
+          answer = new Object[]{ added, shard.radius() };
+        } else if(request == REMOVE) answer = shard.remove(in.readObject());
+        else if(request == ELEMENTS) answer = shard.elements();
+        else answer = new IllegalArgumentException("Unknown request " + request);
+      } catch(ClassNotFoundException e){
+        answer = e;
+      } catch(RuntimeException e){
+        answer = e;
+      }
+      out.writeObject(answer);
+      out.flush();
+      out.reset();
+    }
+  }
+}
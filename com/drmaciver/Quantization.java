@@ -0,0 +1,19 @@
+package com.drmaciver;
+
+// How a QuantizedVectorTree stores its coordinates. FLOAT rounds each one to
+// the nearest float, in half the memory of a double. INT8 maps each
+// dimension's range onto 256 evenly spaced levels and keeps a byte, in an
+// eighth of the memory, at the price of much looser distances and so more
+// points to measure exactly.
+public final class Quantization{
+  public static final Quantization FLOAT = new Quantization("float");
+  public static final Quantization INT8 = new Quantization("int8");
+
+  private final String name;
+
+  private Quantization(String name){
+    this.name = name;
+  }
+
+  public String toString(){ return name; }
+}
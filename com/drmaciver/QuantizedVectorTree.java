@@ -0,0 +1,275 @@
+package com.drmaciver;
+
+import java.util.Arrays;
+
+// A flat vector tree that searches a reduced precision copy of another's
+// coordinates, as described in Quantization, and goes back to the exact
+// ones only to settle what the copy cannot. Typically the exact tree is a
+// MappedVectorTree, so that the full precision coordinates stay off the heap
+// in the page cache and only the rows a query needs are ever read.
+//
+// Each row keeps a bound on how far its copy is from the exact point, so a
+// distance to the copy puts the true distance in an interval. Nodes are
+// pruned with the low end of it. Nearest neighbour queries keep the n best
+// high ends as a bound on the answer, collect every row whose low end is
+// within it, then re-rank those by exact distance, so the results are the
+// same as the exact tree's. Epsilon queries only measure exactly the rows
+// whose interval straddles e.
+public class QuantizedVectorTree extends AbstractVectorTree{
+  // Room left for rounding in working out the intervals, relative to the
+  // distances involved.
+  static final double SLACK = 1e-9;
+
+  final AbstractVectorTree exact;
+  final Quantization quantization;
+  final int dimension;
+  final int size;
+
+  // Row-major copies of the coordinates, in the exact tree's row order. Only
+  // the one for the quantization in use is not null.
+  final float[] floats;
+  final byte[] bytes;
+  // For INT8, the 256 evenly spaced values each dimension can take, from its
+  // least to its greatest. Coordinate j with code c, a signed byte, is
+  // levels[j * 256 + c + 128].
+  final double[] levels;
+  // errors[row] is at least the distance from the copy of row to the exact
+  // point.
+  final float[] errors;
+
+  public QuantizedVectorTree(AbstractVectorTree exact, Quantization quantization){
+    this.exact = exact;
+    this.quantization = quantization;
+    this.dimension = exact.dimension();
+    this.size = exact.size();
+    if((long)size * dimension > Integer.MAX_VALUE) throw new IllegalArgumentException("Expected at most " + Integer.MAX_VALUE + " coordinates but got " + (long)size * dimension);
+
+    this.errors = new float[size];
+    if(quantization == Quantization.FLOAT){
+      floats = new float[size * dimension];
+      bytes = null;
+      levels = null;
+      for(int row = 0; row < size; row++){
+        double[] p = exact.row(row);
+        for(int j = 0; j < dimension; j++) floats[row * dimension + j] = (float)p[j];
+        errors[row] = errorBound(p, row);
+      }
+    } else if(quantization == Quantization.INT8){
+      floats = null;
+      bytes = new byte[size * dimension];
+      double[] offsets = new double[dimension];
+      double[] steps = new double[dimension];
+      double[] max = new double[dimension];
+      Arrays.fill(offsets, Double.POSITIVE_INFINITY);
+      Arrays.fill(max, Double.NEGATIVE_INFINITY);
+      for(int row = 0; row < size; row++){
+        double[] p = exact.row(row);
+        for(int j = 0; j < dimension; j++){
+          offsets[j] = Math.min(offsets[j], p[j]);
+          max[j] = Math.max(max[j], p[j]);
+        }
+      }
+      levels = new double[256 * dimension];
+      for(int j = 0; j < dimension; j++){
+        steps[j] = size == 0 ? 0.0 : (max[j] - offsets[j]) / 255;
+        for(int k = 0; k < 256; k++) levels[j * 256 + k] = offsets[j] + steps[j] * k;
+      }
+      for(int row = 0; row < size; row++){
+        double[] p = exact.row(row);
+        for(int j = 0; j < dimension; j++){
+          long code = steps[j] > 0 ? Math.round((p[j] - offsets[j]) / steps[j]) : 0;
+          bytes[row * dimension + j] = (byte)(Math.max(0, Math.min(255, code)) - 128);
+        }
+        errors[row] = errorBound(p, row);
+      }
+    } else throw new IllegalArgumentException("Unknown quantization " + quantization);
+  }
+
+  // The distance from the copy of row to p, rounded up to a float.
+  private float errorBound(double[] p, int row){
+    float error = (float)approximateDistance(p, row);
+    return Math.nextUp(error);
+  }
+
+  public int size(){ return size; }
+  public int dimension(){ return dimension; }
+
+  int nodeCount(){ return exact.nodeCount(); }
+  int nodeStart(int node){ return exact.nodeStart(node); }
+  int nodeEnd(int node){ return exact.nodeEnd(node); }
+  int nodeIn(int node){ return exact.nodeIn(node); }
+  int nodeOut(int node){ return exact.nodeOut(node); }
+  double nodeThreshold(int node){ return exact.nodeThreshold(node); }
+  double nodeRadius(int node){ return exact.nodeRadius(node); }
+
+  int id(int row){ return exact.id(row); }
+  int rowOf(int id){ return exact.rowOf(id); }
+
+  // Rows and distances to them are exact, so everything not overridden here
+  // gives the same answers as the exact tree.
+  double[] row(int row){ return exact.row(row); }
+  double distanceToRow(double[] v, int row){ return exact.distanceToRow(v, row); }
+
+  // The distance from v to the copy of row.
+  double approximateDistance(double[] v, int row){
+    int offset = row * dimension;
+    double tot = 0.0;
+    if(floats != null){
+      for(int j = 0; j < dimension; j++){
+        double d = v[j] - floats[offset + j];
+        tot += d * d;
+      }
+    } else {
+      for(int j = 0; j < dimension; j++){
+        double d = v[j] - levels[j * 256 + bytes[offset + j] + 128];
+        tot += d * d;
+      }
+    }
+    return Math.sqrt(tot);
+  }
+
+  private double slack(double d, int row){
+    return SLACK * (d + errors[row]) + errors[row];
+  }
+
+  public int nearestIds(double[] v, int n, int[] result){
+    checkDimension(v);
+    SmallestIndices upper = new SmallestIndices(n);
+    Candidates candidates = new Candidates();
+    if(size > 0 && n > 0) nearestCandidates(0, v, upper, candidates);
+
+    // Every true neighbour has a low end within the final bound, as n rows
+    // are at most that far away.
+    double bound = upper.bound();
+    SmallestIndices q = new SmallestIndices(n);
+    for(int i = 0; i < candidates.fill; i++){
+      if(candidates.lower[i] > Math.min(bound, q.bound())) continue;
+      int row = candidates.rows[i];
+      q.add(row, exact.distanceToRow(v, row));
+    }
+
+    int found = q.drainTo(result, null);
+    for(int i = 0; i < found && i < result.length; i++) result[i] = id(result[i]);
+    return Math.min(found, result.length);
+  }
+
+  private void nearestCandidates(int node, double[] v, SmallestIndices upper, Candidates candidates){
+    int start = nodeStart(node);
+    int end = nodeEnd(node);
+
+    if(isRun(node)){
+      // Copies have the same codes and error bounds, so one distance does
+      // for all of them, and any beyond the n kept could only replace each
+      // other.
+      double d = approximateDistance(v, start);
+      double slack = slack(d, start);
+      double low = Math.max(0.0, d - slack);
+      for(int row = start; row < end && row - start < upper.capacity() && low <= upper.bound(); row++){
+        upper.add(row, d + slack);
+        candidates.add(row, low);
+      }
+      return;
+    }
+    if(nodeIn(node) < 0){
+      for(int row = start; row < end; row++) offer(v, row, upper, candidates);
+      return;
+    }
+
+    double d = approximateDistance(v, start);
+    double slack = slack(d, start);
+    double low = Math.max(0.0, d - slack);
+    double high = d + slack;
+    if(low <= upper.bound()){
+      upper.add(start, high);
+      candidates.add(start, low);
+    }
+
+    if(d < nodeThreshold(node)){
+      if(!excludesIn(node, low, upper.bound())) nearestCandidates(nodeIn(node), v, upper, candidates);
+      if(!excludesOut(node, low, high, upper.bound())) nearestCandidates(nodeOut(node), v, upper, candidates);
+    } else {
+      if(!excludesOut(node, low, high, upper.bound())) nearestCandidates(nodeOut(node), v, upper, candidates);
+      if(!excludesIn(node, low, upper.bound())) nearestCandidates(nodeIn(node), v, upper, candidates);
+    }
+  }
+
+  private void offer(double[] v, int row, SmallestIndices upper, Candidates candidates){
+    double d = approximateDistance(v, row);
+    double slack = slack(d, row);
+    double low = Math.max(0.0, d - slack);
+    if(low > upper.bound()) return;
+    upper.add(row, d + slack);
+    candidates.add(row, low);
+  }
+
+  // As AbstractVectorTree.excludesOut, for a center somewhere between low
+  // and high away.
+  boolean excludesOut(int node, double low, double high, double e){
+    return metric.bound(e, nodeRadius(node)) < low || metric.bound(e, high) < nodeThreshold(node);
+  }
+
+  public int[] allIdsWithinEpsilon(double[] v, double e){
+    checkDimension(v);
+    RowBuffer found = new RowBuffer();
+    if(size > 0) allWithinEpsilon(0, v, e, found);
+    int[] result = new int[found.fill];
+    for(int i = 0; i < found.fill; i++) result[i] = id(found.rows[i]);
+    return result;
+  }
+
+  void allWithinEpsilon(int node, double[] v, double e, RowBuffer result){
+    int start = nodeStart(node);
+    int end = nodeEnd(node);
+
+    if(isRun(node)){
+      RowBuffer first = new RowBuffer();
+      collect(v, start, e, first);
+      if(first.fill > 0) for(int row = start; row < end; row++) result.add(row);
+      return;
+    }
+    if(nodeIn(node) < 0){
+      for(int row = start; row < end; row++) collect(v, row, e, result);
+      return;
+    }
+
+    double d = approximateDistance(v, start);
+    double slack = slack(d, start);
+    double low = Math.max(0.0, d - slack);
+    double high = d + slack;
+
+    if(metric.bound(high, nodeRadius(node)) < e){
+      for(int row = start; row < end; row++) result.add(row);
+      return;
+    }
+    if(metric.bound(e, nodeRadius(node)) < low) return;
+
+    collect(v, start, e, result);
+
+    if(!excludesIn(node, low, e)) allWithinEpsilon(nodeIn(node), v, e, result);
+    if(!excludesOut(node, low, high, e)) allWithinEpsilon(nodeOut(node), v, e, result);
+  }
+
+  private void collect(double[] v, int row, double e, RowBuffer result){
+    double d = approximateDistance(v, row);
+    double slack = slack(d, row);
+    if(d + slack < e) result.add(row);
+    else if(d - slack < e && exact.distanceToRow(v, row) < e) result.add(row);
+  }
+
+  // Rows that may be among the nearest, with a lower bound on the distance
+  // to each.
+  static class Candidates{
+    int[] rows = new int[16];
+    double[] lower = new double[16];
+    int fill;
+
+    void add(int row, double low){
+      if(fill == rows.length){
+        rows = Arrays.copyOf(rows, fill * 2);
+        lower = Arrays.copyOf(lower, fill * 2);
+      }
+      rows[fill] = row;
+      lower[fill++] = low;
+    }
+  }
+}
@@ -0,0 +1,8 @@
+package com.drmaciver;
+
+// Told about every query a VantageTree answers once a listener has been set
+// with VantageTree.setQueryListener. Called on the querying thread, so it
+// needs to be thread safe if the tree is queried from several threads.
+public interface QueryListener{
+  public void queryCompleted(QueryStats stats);
+}
@@ -0,0 +1,47 @@
+package com.drmaciver;
+
+// What a single query did. Only gathered when a QueryListener is set.
+public class QueryStats{
+  public static final String NEAREST = "nearestN";
+  public static final String EPSILON = "allWithinEpsilon";
+
+  public final String kind;
+
+  // Calls to Metric.distance, including those made to order subtrees.
+  public long distanceCalls;
+  // Splits whose center the query was compared against.
+  public long splitsVisited;
+  // Children of visited Splits that the bounds let the query skip.
+  public long subtreesPruned;
+  public long leavesVisited;
+  // Points compared against the query, leaf items and Split centers alike.
+  public long pointsScanned;
+  // Leaf items ruled out by their stored distances to the leaf's pivots,
+  // without being compared against the query.
+  public long pointsFiltered;
+  // The most subtrees nearestN ever had waiting in its queue at once.
+  public long queueHighWater;
+  public long resultSize;
+  public long nanos;
+
+  QueryStats(String kind){
+    this.kind = kind;
+  }
+
+  void queued(int queueSize){
+    if(queueSize > queueHighWater) queueHighWater = queueSize;
+  }
+
+  public String toString(){
+    return "QueryStats(" + kind +
+      ", distanceCalls=" + distanceCalls +
+      ", splitsVisited=" + splitsVisited +
+      ", subtreesPruned=" + subtreesPruned +
+      ", leavesVisited=" + leavesVisited +
+      ", pointsScanned=" + pointsScanned +
+      ", pointsFiltered=" + pointsFiltered +
+      ", queueHighWater=" + queueHighWater +
+      ", resultSize=" + resultSize +
+      ", nanos=" + nanos + ")";
+  }
+}
@@ -0,0 +1,46 @@
+package com.drmaciver;
+
+// A QueryListener that keeps histograms of latency and of the work each
+// query did, separately for nearestN and allWithinEpsilon queries.
+public class QueryStatsAggregator implements QueryListener{
+  public final Summary nearest = new Summary();
+  public final Summary epsilon = new Summary();
+
+  public void queryCompleted(QueryStats stats){
+    (QueryStats.NEAREST.equals(stats.kind) ? nearest : epsilon).record(stats);
+  }
+
+  public String toString(){
+    return QueryStats.NEAREST + ":\n" + nearest + QueryStats.EPSILON + ":\n" + epsilon;
+  }
+
+  public static class Summary{
+    public final Histogram nanos = new Histogram();
+    public final Histogram distanceCalls = new Histogram();
+    public final Histogram splitsVisited = new Histogram();
+    public final Histogram subtreesPruned = new Histogram();
+    public final Histogram pointsScanned = new Histogram();
+    public final Histogram pointsFiltered = new Histogram();
+    public final Histogram queueHighWater = new Histogram();
+
+    void record(QueryStats stats){
+      nanos.record(stats.nanos);
+      distanceCalls.record(stats.distanceCalls);
+      splitsVisited.record(stats.splitsVisited);
+      subtreesPruned.record(stats.subtreesPruned);
+      pointsScanned.record(stats.pointsScanned);
+      pointsFiltered.record(stats.pointsFiltered);
+      queueHighWater.record(stats.queueHighWater);
+    }
+
+    public String toString(){
+      return "  nanos:          " + nanos + "\n" +
+        "  distanceCalls:  " + distanceCalls + "\n" +
+        "  splitsVisited:  " + splitsVisited + "\n" +
+        "  subtreesPruned: " + subtreesPruned + "\n" +
+        "  pointsScanned:  " + pointsScanned + "\n" +
+        "  pointsFiltered: " + pointsFiltered + "\n" +
+        "  queueHighWater: " + queueHighWater + "\n";
+    }
+  }
+}
@@ -5,10 +5,26 @@ import java.util.List;
 import java.util.ArrayList;
 
 abstract class RecursiveSampler<V>{
-  private final Random random = new Random();
+  private final Random random;
+  private final int startingCandidates;
+  private final int sampleSize;
 
-  public int sampleSize(){ return 100; }
-  public int startingCandidates(){ return 128; }
+  RecursiveSampler(){
+    this(new Random());
+  }
+
+  RecursiveSampler(Random random){
+    this(random, 128, 100);
+  }
+
+  RecursiveSampler(Random random, int startingCandidates, int sampleSize){
+    this.random = random;
+    this.startingCandidates = startingCandidates;
+    this.sampleSize = sampleSize;
+  }
+
+  public int sampleSize(){ return sampleSize; }
+  public int startingCandidates(){ return startingCandidates; }
 
   public abstract double score(V candidate, List<V> sample);
 
@@ -23,11 +39,18 @@ abstract class RecursiveSampler<V>{
 
   List<V> reduceCandidates(List<V> everything, List<V> candidates){
     List<V> testCase = pickASample(everything, sampleSize());
+    double[] scores = new double[candidates.size()];
+    scoreAll(candidates, testCase, scores);
     SmallestElements<V> se = new SmallestElements<V>(candidates.size() / 2);
-    for(V c : candidates) se.add(c, score(c, testCase));
+    for(int i = 0; i < scores.length; i++) se.add(candidates.get(i), scores[i]);
     return se.toList();
   }
 
+  // Overridable so that scoring can be spread across threads.
+  void scoreAll(List<V> candidates, List<V> sample, double[] scores){
+    for(int i = 0; i < scores.length; i++) scores[i] = score(candidates.get(i), sample);
+  }
+
   List<V> pickASample(List<V> everything, int size){
     if(everything.size() <= size) return everything;
     else {
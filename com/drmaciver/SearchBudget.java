@@ -0,0 +1,54 @@
+package com.drmaciver;
+
+// Limits on how much work an approximate nearest neighbour search may do. A
+// search that runs out of budget returns the best it has found so far, and
+// searches most promising subtrees first, so a small budget still tends to
+// find most of the true neighbours. SearchBudget.EXACT places no limits at
+// all; the with methods return a copy with one limit changed.
+public class SearchBudget{
+  public static final SearchBudget EXACT = new SearchBudget(Long.MAX_VALUE, Long.MAX_VALUE, 0.0, Long.MAX_VALUE);
+
+  // The most distance evaluations and leaf visits to make.
+  public final long maxDistanceCalls;
+  public final long maxLeaves;
+  // Subtrees are skipped unless they might hold something closer than
+  // 1 / (1 + slack) of the current k-th best distance, so every neighbour
+  // returned is within a factor of 1 + slack of the true one at its rank.
+  public final double slack;
+  // How long the search may take, measured from when it starts.
+  public final long maxNanos;
+
+  SearchBudget(long maxDistanceCalls, long maxLeaves, double slack, long maxNanos){
+    if(maxDistanceCalls < 0 || maxLeaves < 0 || maxNanos < 0) throw new IllegalArgumentException("Search limits must not be negative");
+    if(!(slack >= 0.0)) throw new IllegalArgumentException("Expected a slack of at least 0 but got " + slack);
+    this.maxDistanceCalls = maxDistanceCalls;
+    this.maxLeaves = maxLeaves;
+    this.slack = slack;
+    this.maxNanos = maxNanos;
+  }
+
+  public SearchBudget withMaxDistanceCalls(long maxDistanceCalls){
+    return new SearchBudget(maxDistanceCalls, maxLeaves, slack, maxNanos);
+  }
+
+  public SearchBudget withMaxLeaves(long maxLeaves){
+    return new SearchBudget(maxDistanceCalls, maxLeaves, slack, maxNanos);
+  }
+
+  public SearchBudget withSlack(double slack){
+    return new SearchBudget(maxDistanceCalls, maxLeaves, slack, maxNanos);
+  }
+
+  public SearchBudget withMaxNanos(long maxNanos){
+    return new SearchBudget(maxDistanceCalls, maxLeaves, slack, maxNanos);
+  }
+
+  boolean hasDeadline(){ return maxNanos != Long.MAX_VALUE; }
+
+  public String toString(){
+    return "SearchBudget(maxDistanceCalls=" + maxDistanceCalls +
+      ", maxLeaves=" + maxLeaves +
+      ", slack=" + slack +
+      ", maxNanos=" + maxNanos + ")";
+  }
+}
@@ -0,0 +1,33 @@
+package com.drmaciver;
+
+import java.util.Collection;
+import java.util.List;
+
+// One part of a ShardedMetricSearch: an independent index over some of its
+// elements, which may live in this process (LocalShard) or elsewhere
+// (ProcessShard). A shard may describe a ball around center that holds all
+// of its elements, which lets queries that cannot reach the ball skip it.
+public interface Shard<V>{
+  public int size();
+
+  // The center and radius of a ball holding every element of the shard, or
+  // a null center if it has none.
+  public V center();
+  public double radius();
+
+  // The nearest n elements to v that are no further away than bound,
+  // closest first, with their distances written to distances. Searches of
+  // other shards for the same query share bound, and this one lowers it as
+  // it finds things.
+  public List<V> nearestN(V v, int n, SharedBound bound, double[] distances);
+  public Collection<V> allWithinEpsilon(V v, double e);
+  public int countWithinEpsilon(V v, double e);
+  public boolean anyWithinEpsilon(V v, double e);
+
+  public boolean contains(Object x);
+  public boolean add(V v);
+  public boolean remove(Object x);
+
+  // Every element of the shard, as a new list.
+  public List<V> elements();
+}
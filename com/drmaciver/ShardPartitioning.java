@@ -0,0 +1,20 @@
+package com.drmaciver;
+
+// How a ShardedMetricSearch divides its elements between shards. RANDOM
+// deals them out evenly at random, so every query has to go to every shard
+// but the shards are always the same size. PIVOTS picks one well spread
+// pivot per shard and gives each element to its nearest pivot, so each shard
+// is a ball around its pivot that queries far from it can skip, at the price
+// of shards whose sizes follow the data.
+public final class ShardPartitioning{
+  public static final ShardPartitioning RANDOM = new ShardPartitioning("random");
+  public static final ShardPartitioning PIVOTS = new ShardPartitioning("pivots");
+
+  private final String name;
+
+  private ShardPartitioning(String name){
+    this.name = name;
+  }
+
+  public String toString(){ return name; }
+}
@@ -0,0 +1,284 @@
+package com.drmaciver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+// A MetricSearch over several independent shards, each an index over part
+// of the elements, so that no one tree has to hold or build everything.
+// Queries are scattered to every shard that might hold an answer, in
+// parallel on pool if it is not null, and the answers gathered together.
+// Shards that describe a ball around a center are skipped by queries that
+// cannot reach it. nearestN searches share a SharedBound, so that each shard
+// prunes with the best n found by all of them so far, and goes to the
+// shards whose balls are nearest first.
+//
+// Shards can be replaced one at a time with setShard, for instance by one
+// rebuilt or reloaded from a file, while queries go on against the rest.
+// Queries may run concurrently with each other and with setShard; as for
+// VantageTree, add and remove may not.
+public class ShardedMetricSearch<V> extends AbstractMetricSearch<V>{
+  // How many sample elements per shard PIVOTS picks its pivots from.
+  static final int PIVOT_SAMPLE_PER_SHARD = 32;
+  static final int PARALLEL_ASSIGNMENT_GRAIN = 4096;
+
+  final Metric<V> metric;
+  final ForkJoinPool pool;
+  final List<Shard<V>> shards;
+
+  public ShardedMetricSearch(Metric<V> metric, List<V> items, int shards, ShardPartitioning partitioning){
+    this(metric, items, shards, partitioning, null, new Random().nextLong(), BuildOptions.DEFAULT);
+  }
+
+  // Divides items between the given number of shards and builds a
+  // LocalShard for each with options. If pool is not null the shards are
+  // built in parallel on it, and queries use it too. PIVOTS may make fewer
+  // shards than asked for if there are not that many distinct elements.
+  public ShardedMetricSearch(Metric<V> metric, List<V> items, int shards, ShardPartitioning partitioning, ForkJoinPool pool, long seed, BuildOptions options){
+    this(metric, buildShards(metric, items, shards, partitioning, pool, seed, options), pool);
+  }
+
+  // A search over shards that already exist, with queries run on pool if it
+  // is not null.
+  public ShardedMetricSearch(Metric<V> metric, List<? extends Shard<V>> shards, ForkJoinPool pool){
+    this.metric = metric;
+    this.pool = pool;
+    this.shards = new CopyOnWriteArrayList<Shard<V>>(shards);
+  }
+
+  static <V> List<Shard<V>> buildShards(final Metric<V> metric, final List<V> items, int count, ShardPartitioning partitioning, ForkJoinPool pool, final long seed, final BuildOptions options){
+    if(count < 1) throw new IllegalArgumentException("Expected at least one shard but got " + count);
+    Random random = new Random(seed);
+    final List<List<V>> parts = new ArrayList<List<V>>();
+    final List<V> centers = new ArrayList<V>();
+    final double[] radii;
+
+    if(partitioning == ShardPartitioning.RANDOM){
+      List<V> shuffled = new ArrayList<V>(items);
+      Collections.shuffle(shuffled, random);
+      for(int s = 0; s < count; s++){
+        parts.add(new ArrayList<V>());
+        centers.add(null);
+      }
+      for(int i = 0; i < shuffled.size(); i++) parts.get(i % count).add(shuffled.get(i));
+      radii = new double[count];
+    } else if(partitioning == ShardPartitioning.PIVOTS){
+      centers.addAll(pivots(metric, items, count, random));
+      if(centers.isEmpty()) centers.add(null);
+      final int m = centers.size();
+      final int[] owners = new int[items.size()];
+      final double[] distances = new double[items.size()];
+      new ParallelRange(){
+        void run(int from, int to){
+          for(int i = from; i < to; i++){
+            V x = items.get(i);
+            double best = Double.POSITIVE_INFINITY;
+            for(int s = 0; s < m; s++){
+              double d = metric.distanceWithCutoff(x, centers.get(s), best);
+              if(d < best){
+                best = d;
+                owners[i] = s;
+              }
+            }
+            distances[i] = best;
+          }
+        }
+      }.invoke(pool, 0, items.size(), PARALLEL_ASSIGNMENT_GRAIN);
+
+      radii = new double[m];
+      for(int s = 0; s < m; s++) parts.add(new ArrayList<V>());
+      for(int i = 0; i < owners.length; i++){
+        parts.get(owners[i]).add(items.get(i));
+        radii[owners[i]] = Math.max(radii[owners[i]], distances[i]);
+      }
+    } else throw new IllegalArgumentException("Unknown partitioning " + partitioning);
+
+    final List<Shard<V>> built = new ArrayList<Shard<V>>(Collections.<Shard<V>>nCopies(parts.size(), null));
+    new ParallelRange(){
+      void run(int from, int to){
+        for(int s = from; s < to; s++) built.set(s, new LocalShard<V>(metric, parts.get(s), centers.get(s), radii[s], VantageTree.childSeed(seed, s), options));
+      }
+    }.invoke(pool, 0, parts.size(), 1);
+    return built;
+  }
+
+  // Up to count distinct pivots, picked farthest first from a random sample
+  // of items, as MultiPartition picks its centers, so that they are spread
+  // out without being drawn to outliers in the whole set.
+  static <V> List<V> pivots(Metric<V> metric, List<V> items, int count, Random random){
+    List<V> pivots = new ArrayList<V>();
+    if(items.isEmpty()) return pivots;
+    int n = Math.min(items.size(), count * PIVOT_SAMPLE_PER_SHARD);
+    List<V> sample = new ArrayList<V>(n);
+    for(int i = 0; i < n; i++) sample.add(items.get(random.nextInt(items.size())));
+
+    double[] nearest = new double[n];
+    Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+    V pivot = sample.get(0);
+    while(true){
+      pivots.add(pivot);
+      if(pivots.size() == count) break;
+      int furthest = 0;
+      for(int i = 0; i < n; i++){
+        nearest[i] = Math.min(nearest[i], metric.distance(sample.get(i), pivot));
+        if(nearest[i] > nearest[furthest]) furthest = i;
+      }
+      if(!(nearest[furthest] > 0.0)) break;
+      pivot = sample.get(furthest);
+    }
+    return pivots;
+  }
+
+  public int shardCount(){ return shards.size(); }
+
+  public Shard<V> shard(int i){ return shards.get(i); }
+
+  // Puts shard in place of the i-th shard and returns the old one, which
+  // queries already under way may still be using.
+  public Shard<V> setShard(int i, Shard<V> shard){
+    return shards.set(i, shard);
+  }
+
+  public int size(){
+    int size = 0;
+    for(Shard<V> s : shards) size += s.size();
+    return size;
+  }
+
+  public Iterator<V> iterator(){
+    List<V> all = new ArrayList<V>();
+    for(Shard<V> s : shards) all.addAll(s.elements());
+    return Collections.unmodifiableList(all).iterator();
+  }
+
+  public boolean contains(Object x){
+    for(Shard<V> s : shards) if(s.contains(x)) return true;
+    return false;
+  }
+
+  // Goes to the shard with the nearest center, as PIVOTS would have put it,
+  // or to the smallest shard if they have no centers.
+  public boolean add(V v){
+    Shard<V> target = null;
+    double best = Double.POSITIVE_INFINITY;
+    for(Shard<V> s : shards){
+      double score = s.center() == null ? s.size() : metric.distance(v, s.center());
+      if(target == null || score < best){
+        target = s;
+        best = score;
+      }
+    }
+    if(target == null) throw new IllegalStateException("Cannot add to a search with no shards");
+    return target.add(v);
+  }
+
+  public boolean remove(Object x){
+    for(Shard<V> s : shards) if(s.remove(x)) return true;
+    return false;
+  }
+
+  double distance(V x, V y){ return metric.distance(x, y); }
+
+  // A lower bound on the distance from v to anything in each of shards.
+  double[] lowerBounds(List<Shard<V>> shards, V v){
+    double[] lower = new double[shards.size()];
+    for(int s = 0; s < lower.length; s++){
+      Shard<V> shard = shards.get(s);
+      if(shard.center() != null) lower[s] = metric.unbound(metric.distance(v, shard.center()), shard.radius());
+    }
+    return lower;
+  }
+
+  @SuppressWarnings("unchecked")
+  public List<V> nearestN(final V v, final int n){
+    if(n <= 0) return new ArrayList<V>();
+    final List<Shard<V>> current = new ArrayList<Shard<V>>(shards);
+    final double[] lower = lowerBounds(current, v);
+    final Integer[] order = new Integer[current.size()];
+    for(int s = 0; s < order.length; s++) order[s] = s;
+    Arrays.sort(order, new Comparator<Integer>(){
+      public int compare(Integer x, Integer y){ return Double.compare(lower[x], lower[y]); }
+    });
+
+    final SharedBound bound = new SharedBound();
+    final Object[] found = new Object[current.size()];
+    final double[][] distances = new double[current.size()][];
+    ParallelRange search = new ParallelRange(){
+      void run(int from, int to){
+        for(int i = from; i < to; i++){
+          int s = order[i];
+          if(lower[s] > bound.get()) continue;
+          distances[s] = new double[n];
+          found[s] = current.get(s).nearestN(v, n, bound, distances[s]);
+        }
+      }
+    };
+    // The nearest shard is searched on its own first, so that the others all
+    // start with a bound rather than racing each other from none.
+    search.run(0, Math.min(1, order.length));
+    search.invoke(pool, 1, order.length, 1);
+
+    SmallestElements<V> q = new SmallestElements<V>(n);
+    for(int s = 0; s < found.length; s++){
+      if(found[s] == null) continue;
+      List<V> neighbours = (List<V>)found[s];
+      for(int j = 0; j < neighbours.size(); j++) q.add(neighbours.get(j), distances[s][j]);
+    }
+    return q.toList();
+  }
+
+  @SuppressWarnings("unchecked")
+  public Collection<V> allWithinEpsilon(final V v, final double e){
+    final List<Shard<V>> current = new ArrayList<Shard<V>>(shards);
+    final double[] lower = lowerBounds(current, v);
+    final Object[] found = new Object[current.size()];
+    new ParallelRange(){
+      void run(int from, int to){
+        for(int s = from; s < to; s++) if(lower[s] < e) found[s] = current.get(s).allWithinEpsilon(v, e);
+      }
+    }.invoke(pool, 0, current.size(), 1);
+
+    List<V> result = new ArrayList<V>();
+    for(Object f : found) if(f != null) result.addAll((Collection<V>)f);
+    return result;
+  }
+
+  public int countWithinEpsilon(final V v, final double e){
+    final List<Shard<V>> current = new ArrayList<Shard<V>>(shards);
+    final double[] lower = lowerBounds(current, v);
+    final int[] counts = new int[current.size()];
+    new ParallelRange(){
+      void run(int from, int to){
+        for(int s = from; s < to; s++) if(lower[s] < e) counts[s] = current.get(s).countWithinEpsilon(v, e);
+      }
+    }.invoke(pool, 0, current.size(), 1);
+
+    int count = 0;
+    for(int c : counts) count += c;
+    return count;
+  }
+
+  // Asks the shards one at a time, nearest first, as the one most likely
+  // to hold a hit, and stops at the first that has one.
+  public boolean anyWithinEpsilon(V v, double e){
+    List<Shard<V>> current = new ArrayList<Shard<V>>(shards);
+    final double[] lower = lowerBounds(current, v);
+    Integer[] order = new Integer[current.size()];
+    for(int s = 0; s < order.length; s++) order[s] = s;
+    Arrays.sort(order, new Comparator<Integer>(){
+      public int compare(Integer x, Integer y){ return Double.compare(lower[x], lower[y]); }
+    });
+    for(int s : order){
+      if(!(lower[s] < e)) break;
+      if(current.get(s).anyWithinEpsilon(v, e)) return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,42 @@
+package com.drmaciver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// An upper bound on the distance to the n-th nearest neighbour of a query,
+// shared by searches of different parts of the same data so that each can
+// prune with what the others have found. A search with n results in hand
+// lowers it to the furthest of them, which is at least the true n-th
+// nearest distance over all the parts put together. It only ever goes down,
+// and can be read and lowered from any number of threads.
+public class SharedBound{
+  // Non-negative doubles order the same way as their bits, so the bound is
+  // kept as bits and lowered by compare and set.
+  private final AtomicLong bits;
+
+  public SharedBound(){
+    this(Double.POSITIVE_INFINITY);
+  }
+
+  public SharedBound(double bound){
+    if(!(bound >= 0.0)) throw new IllegalArgumentException("Expected a bound of at least 0 but got " + bound);
+    this.bits = new AtomicLong(Double.doubleToLongBits(bound));
+  }
+
+  public double get(){
+    return Double.longBitsToDouble(bits.get());
+  }
+
+  // Sets the bound to d if that is lower than it is now.
+  public void lower(double d){
+    if(!(d >= 0.0)) return;
+    long next = Double.doubleToLongBits(d);
+    while(true){
+      long current = bits.get();
+      if(current <= next || bits.compareAndSet(current, next)) return;
+    }
+  }
+
+  public String toString(){
+    return "SharedBound(" + get() + ")";
+  }
+}
@@ -31,6 +31,12 @@ class SmallestElements<V>{
     }
   }
 
+  // Adds copies of v, all with the same score. Any beyond the number kept
+  // could only replace each other.
+  void add(V v, double score, int copies){
+    for(int c = Math.min(copies, heap.length); c > 0; c--) add(v, score);
+  }
+
   @SuppressWarnings("unchecked")
   public List<V> toList(){
     EWS[] h = heap.clone();
@@ -0,0 +1,82 @@
+package com.drmaciver;
+
+// The int counterpart of SmallestElements: keeps the n smallest scoring
+// indices in a pair of parallel primitive arrays, so that adding to it never
+// allocates.
+class SmallestIndices{
+  private int fill = 0;
+  private int capacity;
+  private int[] indices;
+  private double[] scores;
+
+  public SmallestIndices(int size){
+    indices = new int[size];
+    scores = new double[size];
+    capacity = size;
+  }
+
+  // Empties the heap and sets how many elements it keeps, growing the
+  // backing arrays only if they are too small.
+  void reset(int size){
+    if(size > indices.length){
+      indices = new int[size];
+      scores = new double[size];
+    }
+    capacity = size;
+    fill = 0;
+  }
+
+  int size(){ return fill; }
+  int capacity(){ return capacity; }
+
+  double bound(){
+    return fill < capacity ? Double.POSITIVE_INFINITY : scores[0];
+  }
+
+  void add(int index, double score){
+    if(capacity == 0 || score > bound()) return;
+
+    if(fill < capacity){
+      int n = fill++;
+      while(n > 0){
+        int p = (n - 1) / 2;
+        if(scores[p] >= score) break;
+        indices[n] = indices[p];
+        scores[n] = scores[p];
+        n = p;
+      }
+      indices[n] = index;
+      scores[n] = score;
+    } else siftDown(index, score, fill);
+  }
+
+  // Empties the heap into the given arrays in increasing order of score and
+  // returns how many elements were written.
+  int drainTo(int[] indicesOut, double[] scoresOut){
+    int n = fill;
+    for(int i = n - 1; i >= 0; i--){
+      int index = indices[0];
+      double score = scores[0];
+      fill--;
+      if(fill > 0) siftDown(indices[fill], scores[fill], fill);
+      if(i < indicesOut.length) indicesOut[i] = index;
+      if(scoresOut != null && i < scoresOut.length) scoresOut[i] = score;
+    }
+    return n;
+  }
+
+  private void siftDown(int index, double score, int limit){
+    int n = 0;
+    while(true){
+      int c = n * 2 + 1;
+      if(c >= limit) break;
+      if(c + 1 < limit && scores[c + 1] > scores[c]) c++;
+      if(scores[c] <= score) break;
+      indices[n] = indices[c];
+      scores[n] = scores[c];
+      n = c;
+    }
+    indices[n] = index;
+    scores[n] = score;
+  }
+}
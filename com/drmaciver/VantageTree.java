@@ -2,6 +2,7 @@ package com.drmaciver;
 
 import java.lang.Iterable;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.PriorityQueue;
 import java.util.Collection;
 import java.util.Collections;
@@ -9,125 +10,1163 @@ import java.util.AbstractCollection;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import com.drmaciver.Repeating.RepeatingIterator;
 
 public class VantageTree<V> extends AbstractMetricSearch<V>{
+  // The leaf size of BuildOptions.DEFAULT and of DoubleVectorVantageTree.
   public static final int MAXIMUM_LEAF_SIZE = 200;
 
+  // How many of its nearest ancestors' centers a leaf keeps the distances of
+  // its items to, so that queries can rule items out without comparing them.
+  static final int LEAF_PIVOTS = 4;
+
   final Metric<V> metric;
-  final Tree tree;
-  final int totalSize;
+  final long seed;
+  final BuildOptions options;
+  Tree tree;
+  int totalSize;
+  int rebuilds;
+  volatile QueryListener listener;
+  // Null unless options.equalityIndex is set.
+  final EqualityIndex equalityIndex;
+
+  // Subtrees smaller than this are built sequentially by a parallel build.
+  static final int PARALLEL_BUILD_CUTOFF = 10000;
+  static final int PARALLEL_DISTANCE_GRAIN = 4096;
+  static final int PARALLEL_SCORING_GRAIN = 8;
+
+  // How many other centers a build tries for a node before making a leaf of
+  // rows that its first center could not separate.
+  static final int DEGENERATE_RETRIES = 3;
 
   public VantageTree(Metric<V> metric, List<V> items){
+    this(metric, items, null, new Random().nextLong());
+  }
+
+  public VantageTree(Metric<V> metric, List<V> items, long seed){
+    this(metric, items, null, seed);
+  }
+
+  public VantageTree(Metric<V> metric, List<V> items, ForkJoinPool pool){
+    this(metric, items, pool, new Random().nextLong());
+  }
+
+  public VantageTree(Metric<V> metric, List<V> items, ForkJoinPool pool, long seed){
+    this(metric, items, pool, seed, BuildOptions.DEFAULT);
+  }
+
+  public VantageTree(Metric<V> metric, List<V> items, BuildOptions options){
+    this(metric, items, null, new Random().nextLong(), options);
+  }
+
+  // If pool is not null the tree is built on it, with large subtrees built as
+  // separate tasks. All the randomness in a build comes from seed, so two
+  // trees built from the same items with the same seed and options have
+  // exactly the same shape, whether either of them was built in parallel or
+  // not. Subtrees rebuilt by add and remove use the same options.
+  public VantageTree(Metric<V> metric, List<V> items, ForkJoinPool pool, long seed, BuildOptions options){
   	this.metric = metric;
+    this.seed = seed;
+    this.options = options;
     this.totalSize = items.size();
-  	this.tree 	= buildTree(items); 
+    this.equalityIndex = options.equalityIndex ? new EqualityIndex(items) : null;
+    if(pool == null) this.tree = buildTree(items, seed);
+    else {
+      Build build = new Build(items);
+      this.tree = pool.invoke(new BuildTask(build, 0, build.items.length, seed, Ancestors.NONE));
+    }
+  }
+
+  // A subtree is rebuilt from scratch when one side of it holds more than
+  // this fraction of its points, as in a scapegoat tree, as long as it holds
+  // at least REBALANCE_MINIMUM_LEAVES leaves' worth of points. Ties in
+  // distance can make a freshly built Split less balanced than this, in
+  // which case it is allowed to get half way from where it started to
+  // completely one sided.
+  static final double REBALANCE_ALPHA = 0.75;
+  static final int REBALANCE_MINIMUM_LEAVES = 4;
+
+  // Inserts v into the leaf that the existing thresholds route it to. This
+  // and remove are not safe to call concurrently with anything else, and
+  // collections previously returned by allWithinEpsilon may see the change.
+  public boolean add(V v){
+    tree = rebalance(insert(tree, v, new QueryPath()));
+    totalSize++;
+    if(equalityIndex != null) equalityIndex.add(v);
+    return true;
+  }
+
+  // path holds the distances from v to the centers above t.
+  Tree insert(Tree t, V v, QueryPath path){
+    if(t instanceof VantageTree.Leaf){
+      ((Leaf)t).add(v, path);
+      return t;
+    }
+    if(t instanceof VantageTree.MultiSplit) return insert((MultiSplit)t, v, path);
+
+    Split split = (Split)t;
+    if(v == split.center || EqualityIndex.same(v, split.center)) split.count++;
+    else {
+      double d = metric.distance(v, split.center);
+      if(d > split.radius) split.radius = d;
+      path.push(split.center, d);
+      if(d < split.threshold) split.in = rebalance(insert(split.in, v, path));
+      else split.out = rebalance(insert(split.out, v, path));
+      path.pop();
+    }
+    split.update();
+    return split;
+  }
+
+  // Goes down into the child whose distance ranges v is nearest to fitting,
+  // and widens them to fit it.
+  Tree insert(MultiSplit split, V v, QueryPath path){
+    for(int j = 0; j < split.centers.length; j++){
+      if(v == split.centers[j] || EqualityIndex.same(v, split.centers[j])){
+        split.counts[j]++;
+        split.update();
+        return split;
+      }
+    }
+
+    double[] d = new double[split.centers.length];
+    for(int j = 0; j < d.length; j++) d[j] = metric.distance(v, split.center(j));
+    int c = split.closestChild(d);
+    split.widen(c, d);
+    split.pushPath(path, d);
+    split.children.set(c, rebalance(insert(split.children.get(c), v, path)));
+    split.popPath(path);
+    split.update();
+    return split;
+  }
+
+  // Removes one element equal to x. Removing the center of a Split leaves it
+  // in place as a tombstone that still routes queries; subtrees are rebuilt
+  // once tombstones make up too much of them.
+  @SuppressWarnings("unchecked")
+  public boolean remove(Object x){
+    if(x == null || !delete(tree, (V)x)) return false;
+    tree = rebalance(tree);
+    totalSize--;
+    if(equalityIndex != null) equalityIndex.remove(x);
+    return true;
+  }
+
+  boolean delete(Tree t, V v){
+    if(t instanceof VantageTree.Leaf) return ((Leaf)t).delete(v);
+    if(t instanceof VantageTree.MultiSplit) return delete((MultiSplit)t, v);
+    if(!(t instanceof VantageTree.Split)) return false;
+
+    Split split = (Split)t;
+    if(split.count > 0 && EqualityIndex.same(split.center, v)) split.count--;
+    else {
+      double d = metric.distanceWithCutoff(v, split.center, split.radius);
+      if(d > split.radius) return false;
+      if(d < split.threshold){
+        if(!delete(split.in, v)) return false;
+        split.in = rebalance(split.in);
+      } else {
+        if(!delete(split.out, v)) return false;
+        split.out = rebalance(split.out);
+      }
+    }
+    split.update();
+    return true;
+  }
+
+  boolean delete(MultiSplit split, V v){
+    for(int j = 0; j < split.centers.length; j++){
+      if(split.counts[j] > 0 && EqualityIndex.same(split.centers[j], v)){
+        split.counts[j]--;
+        split.update();
+        return true;
+      }
+    }
+
+    double[] d = new double[split.centers.length];
+    for(int j = 0; j < d.length; j++){
+      d[j] = metric.distanceWithCutoff(v, split.center(j), split.radius[j]);
+      if(d[j] > split.radius[j]) return false;
+    }
+    for(int c = 0; c < split.children.size(); c++){
+      if(split.fits(c, d) && delete(split.children.get(c), v)){
+        split.children.set(c, rebalance(split.children.get(c)));
+        split.update();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Rebuilds t if it has become too big to be a leaf, too small to be worth
+  // splitting, too unbalanced or too full of tombstones, and otherwise
+  // returns it unchanged.
+  Tree rebalance(Tree t){
+    if(t instanceof VantageTree.Leaf){
+      Leaf leaf = (Leaf)t;
+      return leaf.items.size() > leaf.capacity ? rebuild(leaf) : leaf;
+    }
+    if(t instanceof VantageTree.MultiSplit){
+      MultiSplit split = (MultiSplit)t;
+      int size = split.size;
+      if(size <= options.leafSize) return rebuild(split);
+      if(size >= REBALANCE_MINIMUM_LEAVES * options.leafSize && split.largestChild() > split.balanceLimit * size) return rebuild(split);
+      if(split.dead * options.leafSize > size) return rebuild(split);
+      return split;
+    }
+    if(!(t instanceof VantageTree.Split)) return t;
+
+    Split split = (Split)t;
+    int size = split.size;
+    int largest = Math.max(split.in.size(), split.out.size());
+
+    if(size <= options.leafSize) return rebuild(split);
+    if(size >= REBALANCE_MINIMUM_LEAVES * options.leafSize && largest > split.balanceLimit * size) return rebuild(split);
+    if(split.dead * options.leafSize > size) return rebuild(split);
+    return split;
+  }
+
+  Tree rebuild(Tree t){
+    Tree result = buildTree(t, childSeed(seed, rebuilds++));
+    // A partition that cannot be split comes back as an oversized leaf. Give
+    // it room to grow before trying again, so that inserting into it does not
+    // rebuild it every time.
+    if(result instanceof VantageTree.Leaf){
+      Leaf leaf = (Leaf)result;
+      leaf.capacity = Math.max(options.leafSize, 2 * leaf.items.size());
+    }
+    return result;
   }
 
   public Iterator<V> iterator(){ return tree.iterator(); }
+  // Splits along the tree's own subtrees, so parallelStream divides the work
+  // by subtree size. As with iterator, the tree should not be changed while
+  // one is in use.
+  public Spliterator<V> spliterator(){ return tree.spliterator(); }
+  public void forEach(Consumer<? super V> action){ tree.forEach(action); }
   public int size(){ return tree.size(); }
   public List<V> toList(){ return new ArrayList<V>(this); }
 
+  // Whether an element equal to x is present, comparing arrays by their
+  // contents. With an equality index this is a hash lookup, and otherwise a
+  // search.
   @SuppressWarnings("unchecked")
-  public boolean contains(Object x){
+  public boolean contains(final Object x){
     if(x == null) return false;
-    // Stupid hack working around lack of <= queries
-    Iterator<V> it = allWithinEpsilon((V)x, 0.001).iterator();
-    while(it.hasNext()) if(it.next().equals(x)) return true;
-    return false;
+    if(equalityIndex != null) return equalityIndex.contains(x);
+    // Anything equal to x is exactly as far from it as x is from itself,
+    // which is usually zero but may be a rounding error more, so nothing
+    // further away needs looking at.
+    V v = (V)x;
+    return !tree.visitWithinEpsilon(v, Math.nextUp(metric.distance(v, v)), new Predicate<V>(){
+      public boolean test(V w){ return !EqualityIndex.same(w, x); }
+    }, null, new QueryPath());
+  }
+
+  // Reports the work done by each nearestN and allWithinEpsilon query to
+  // listener, or stops reporting if it is null. Queries do not gather any
+  // statistics while there is no listener.
+  public void setQueryListener(QueryListener listener){
+    this.listener = listener;
   }
 
   public Collection<V> allWithinEpsilon(V v, double e){
-  	return this.tree.allWithinEpsilon(v, e);
+    QueryListener l = listener;
+    if(l == null) return this.tree.allWithinEpsilon(v, e);
+
+    QueryStats stats = new QueryStats(QueryStats.EPSILON);
+    long start = System.nanoTime();
+    Collection<V> result = this.tree.allWithinEpsilon(v, e, stats, new QueryPath());
+    report(l, stats, start, result.size());
+    return result;
   }
 
+  public int countWithinEpsilon(V v, double e){
+    QueryListener l = listener;
+    if(l == null) return this.tree.countWithinEpsilon(v, e, null, new QueryPath());
+
+    QueryStats stats = new QueryStats(QueryStats.EPSILON);
+    long start = System.nanoTime();
+    int result = this.tree.countWithinEpsilon(v, e, stats, new QueryPath());
+    report(l, stats, start, result);
+    return result;
+  }
+
+  public boolean anyWithinEpsilon(V v, double e){
+    Predicate<V> stop = new Predicate<V>(){
+      public boolean test(V w){ return false; }
+    };
+    QueryListener l = listener;
+    if(l == null) return !this.tree.visitWithinEpsilon(v, e, stop, null, new QueryPath());
+
+    QueryStats stats = new QueryStats(QueryStats.EPSILON);
+    long start = System.nanoTime();
+    boolean result = !this.tree.visitWithinEpsilon(v, e, stop, stats, new QueryPath());
+    report(l, stats, start, result ? 1 : 0);
+    return result;
+  }
+
+  public void forEachWithinEpsilon(V v, double e, final Consumer<? super V> consumer){
+    final long[] found = new long[1];
+    Predicate<V> visitor = new Predicate<V>(){
+      public boolean test(V w){
+        found[0]++;
+        consumer.accept(w);
+        return true;
+      }
+    };
+    QueryListener l = listener;
+    if(l == null){
+      this.tree.visitWithinEpsilon(v, e, visitor, null, new QueryPath());
+      return;
+    }
+
+    QueryStats stats = new QueryStats(QueryStats.EPSILON);
+    long start = System.nanoTime();
+    this.tree.visitWithinEpsilon(v, e, visitor, stats, new QueryPath());
+    report(l, stats, start, found[0]);
+  }
+
+  // Goes through a searcher, which reports to the listener itself.
+  @SuppressWarnings("unchecked")
   public List<V> nearestN(V v, int n){
-    List<V> result = this.tree.nearestN(v, n);
+    n = Math.max(Math.min(n, size()), 0);
+    V[] result = (V[])new Object[n];
+    int found = searcher().nearestN(v, n, result);
+    return new ArrayList<V>(Arrays.asList(result).subList(0, found));
+  }
+
+  private static void report(QueryListener l, QueryStats stats, long start, long resultSize){
+    stats.nanos = System.nanoTime() - start;
+    stats.resultSize = resultSize;
+    l.queryCompleted(stats);
+  }
+
+  // Searches the most promising subtrees first, stopping once budget is used
+  // up, and reports whether the search got far enough to be exact.
+  @SuppressWarnings("unchecked")
+  public NearestResult<V> nearestN(V v, int n, SearchBudget budget){
+    n = Math.max(Math.min(n, size()), 0);
+    NearestNeighbourSearcher<V> searcher = searcher();
+    V[] result = (V[])new Object[n];
+    int found = searcher.nearestN(v, n, budget, result, null);
+    return new NearestResult<V>(new ArrayList<V>(Arrays.asList(result).subList(0, found)), searcher.lastSearchExact());
+  }
+
+  // Queries in a batch are answered in blocks of this many, each block walking
+  // the tree together.
+  static final int BATCH_BLOCK_SIZE = 64;
+
+  public List<List<V>> nearestNBatch(List<V> queries, int n){
+    return nearestNBatch(queries, n, null);
+  }
+
+  // Like calling nearestN for each query, but each block of queries walks the
+  // tree once between them, so every node and leaf is loaded once per block
+  // rather than once per query. If pool is not null the blocks are spread
+  // across it.
+  public List<List<V>> nearestNBatch(List<V> queries, final int n, ForkJoinPool pool){
+    final List<V> qs = queries instanceof RandomAccess ? queries : new ArrayList<V>(queries);
+    final List<List<V>> results = new ArrayList<List<V>>(Collections.<List<V>>nCopies(qs.size(), null));
+
+    new ParallelRange(){
+      void run(int from, int to){
+        List<SmallestElements<V>> heaps = new ArrayList<SmallestElements<V>>(to - from);
+        for(int i = from; i < to; i++) heaps.add(new SmallestElements<V>(n));
+        if(n > 0) nearestNBatch(tree, qs.subList(from, to), allOf(to - from), to - from, heaps);
+        for(int i = from; i < to; i++) results.set(i, heaps.get(i - from).toList());
+      }
+    }.invoke(pool, 0, qs.size(), BATCH_BLOCK_SIZE);
+
+    return results;
+  }
+
+  // Searches t for the queries whose indices are the first count entries of
+  // active, visiting each query's nearer child first.
+  void nearestNBatch(Tree t, List<V> queries, int[] active, int count, List<SmallestElements<V>> heaps){
+    if(count == 0) return;
+
+    if(t instanceof VantageTree.Leaf){
+      Leaf leaf = (Leaf)t;
+      for(int k = 0, size = leaf.items.size(); k < size; k++){
+        V w = leaf.items.get(k);
+        for(int i = 0; i < count; i++){
+          int q = active[i];
+          SmallestElements<V> heap = heaps.get(q);
+          double d = metric.distanceWithCutoff(queries.get(q), w, heap.bound());
+          heap.add(w, d, leaf.count(k));
+        }
+      }
+      return;
+    }
+    if(t instanceof VantageTree.MultiSplit){
+      MultiSplit split = (MultiSplit)t;
+      double[][] d = new double[queries.size()][];
+      for(int i = 0; i < count; i++){
+        int q = active[i];
+        d[q] = new double[split.centers.length];
+        split.distances(queries.get(q), heaps.get(q).bound(), d[q], null);
+        for(int j = 0; j < split.centers.length; j++) heaps.get(q).add(split.center(j), d[q][j], split.counts[j]);
+      }
+
+      int[] next = new int[count];
+      for(int c = 0; c < split.children.size(); c++){
+        int nextCount = 0;
+        for(int i = 0; i < count; i++){
+          int q = active[i];
+          if(split.mayHit(c, d[q], heaps.get(q).bound())) next[nextCount++] = q;
+        }
+        nearestNBatch(split.children.get(c), queries, next, nextCount, heaps);
+      }
+      return;
+    }
+    if(!(t instanceof VantageTree.Split)) return;
+
+    Split split = (Split)t;
+    double[] r = new double[queries.size()];
+    for(int i = 0; i < count; i++){
+      int q = active[i];
+      r[q] = metric.distanceWithCutoff(queries.get(q), split.center, metric.bound(heaps.get(q).bound(), split.radius));
+      heaps.get(q).add(split.center, r[q], split.count);
+    }
+
+    int[] next = new int[count];
+    int nextCount = 0;
+    for(int i = 0; i < count; i++){
+      int q = active[i];
+      if(r[q] < split.threshold && split.mayHitIn(r[q], heaps.get(q).bound())) next[nextCount++] = q;
+    }
+    nearestNBatch(split.in, queries, next, nextCount, heaps);
+
+    nextCount = 0;
+    for(int i = 0; i < count; i++){
+      int q = active[i];
+      if(split.mayHitOut(r[q], heaps.get(q).bound())) next[nextCount++] = q;
+    }
+    nearestNBatch(split.out, queries, next, nextCount, heaps);
+
+    nextCount = 0;
+    for(int i = 0; i < count; i++){
+      int q = active[i];
+      if(r[q] >= split.threshold && split.mayHitIn(r[q], heaps.get(q).bound())) next[nextCount++] = q;
+    }
+    nearestNBatch(split.in, queries, next, nextCount, heaps);
+  }
+
+  public List<Collection<V>> allWithinEpsilonBatch(List<V> queries, double e){
+    return allWithinEpsilonBatch(queries, e, null);
+  }
+
+  // Like calling allWithinEpsilon for each query, with the queries walking the
+  // tree together in blocks as for nearestNBatch.
+  public List<Collection<V>> allWithinEpsilonBatch(List<V> queries, final double e, ForkJoinPool pool){
+    final List<V> qs = queries instanceof RandomAccess ? queries : new ArrayList<V>(queries);
+    final List<Collection<V>> results = new ArrayList<Collection<V>>(Collections.<Collection<V>>nCopies(qs.size(), null));
+
+    new ParallelRange(){
+      void run(int from, int to){
+        List<List<V>> found = new ArrayList<List<V>>(to - from);
+        for(int i = from; i < to; i++) found.add(new ArrayList<V>());
+        allWithinEpsilonBatch(tree, qs.subList(from, to), allOf(to - from), to - from, e, found);
+        for(int i = from; i < to; i++) results.set(i, found.get(i - from));
+      }
+    }.invoke(pool, 0, qs.size(), BATCH_BLOCK_SIZE);
+
+    return results;
+  }
+
+  void allWithinEpsilonBatch(Tree t, List<V> queries, int[] active, int count, double e, List<List<V>> found){
+    if(count == 0) return;
+
+    if(t instanceof VantageTree.Leaf){
+      Leaf leaf = (Leaf)t;
+      for(int k = 0, size = leaf.items.size(); k < size; k++){
+        V w = leaf.items.get(k);
+        for(int i = 0; i < count; i++){
+          int q = active[i];
+          if(metric.distanceWithCutoff(queries.get(q), w, e) < e) for(int c = leaf.count(k); c > 0; c--) found.get(q).add(w);
+        }
+      }
+      return;
+    }
+    if(t instanceof VantageTree.MultiSplit){
+      MultiSplit split = (MultiSplit)t;
+      double[][] d = new double[queries.size()][];
+      int[] searching = new int[count];
+      int searchingCount = 0;
+      for(int i = 0; i < count; i++){
+        int q = active[i];
+        d[q] = new double[split.centers.length];
+        split.distances(queries.get(q), e, d[q], null);
+        for(int j = 0; j < split.centers.length; j++) if(d[q][j] < e) for(int c = 0; c < split.counts[j]; c++) found.get(q).add(split.center(j));
+        if(split.coversChildren(d[q], e)) for(Tree child : split.children) found.get(q).addAll(child);
+        else searching[searchingCount++] = q;
+      }
+
+      int[] next = new int[count];
+      for(int c = 0; c < split.children.size(); c++){
+        int nextCount = 0;
+        for(int i = 0; i < searchingCount; i++){
+          int q = searching[i];
+          if(split.mayHit(c, d[q], e)) next[nextCount++] = q;
+        }
+        allWithinEpsilonBatch(split.children.get(c), queries, next, nextCount, e, found);
+      }
+      return;
+    }
+    if(!(t instanceof VantageTree.Split)) return;
+
+    Split split = (Split)t;
+    double[] r = new double[queries.size()];
+    int[] in = new int[count];
+    int[] out = new int[count];
+    int inCount = 0;
+    int outCount = 0;
+
+    for(int i = 0; i < count; i++){
+      int q = active[i];
+      r[q] = metric.distanceWithCutoff(queries.get(q), split.center, metric.bound(e, split.radius));
+      if(metric.bound(r[q], split.radius) < e){
+        found.get(q).addAll(split);
+        continue;
+      }
+      if(r[q] < e) for(int c = 0; c < split.count; c++) found.get(q).add(split.center);
+      if(split.mayHitIn(r[q], e)) in[inCount++] = q;
+      if(split.mayHitOut(r[q], e)) out[outCount++] = q;
+    }
+
+    allWithinEpsilonBatch(split.in, queries, in, inCount, e, found);
+    allWithinEpsilonBatch(split.out, queries, out, outCount, e, found);
+  }
+
+  static int[] allOf(int count){
+    int[] result = new int[count];
+    for(int i = 0; i < count; i++) result[i] = i;
     return result;
   }
 
-  V pickAPivot(List<V> items){
-    return (new RecursiveSampler<V>(){
-      public double score(V candidate, List<V> sample){
-        double[] distances = new double[sample.size()];
-        int i = 0;
-        for(V v : sample) distances[i++] = metric.distance(v, candidate);
-        Arrays.sort(distances);
-        double median = distances[distances.length / 2];
-        
-        double spread = 0;
-        for(double d : distances) spread += Math.pow(d - median, 2);
-        return -spread; 
+  public void selfJoin(double e, BiConsumer<? super V, ? super V> consumer){
+    selfJoin(e, consumer, null);
+  }
+
+  // Passes every pair of elements strictly within e of each other to
+  // consumer, each pair once and in no particular order, as it finds them.
+  // Copies of an element are separate elements. This walks pairs of
+  // subtrees, as described in DualTreeJoin, rather than searching once per
+  // element. If pool is not null the work is spread across it, and
+  // consumer must be safe to call from several threads at once.
+  public void selfJoin(double e, BiConsumer<? super V, ? super V> consumer, ForkJoinPool pool){
+    new DualTreeJoin<V>(this, pool).selfJoin(e, consumer);
+  }
+
+  public void knnGraph(int k, BiConsumer<? super V, ? super List<V>> consumer){
+    knnGraph(k, consumer, null);
+  }
+
+  // Passes each element to consumer along with its k nearest neighbours
+  // among the other elements, nearest first, as it finds them. Each copy
+  // of an element is passed separately, and has the other copies among
+  // its neighbours. The elements of a leaf search the tree together, as
+  // described in DualTreeJoin. pool is as for selfJoin.
+  public void knnGraph(int k, BiConsumer<? super V, ? super List<V>> consumer, ForkJoinPool pool){
+    new DualTreeJoin<V>(this, pool).knnGraph(k, consumer);
+  }
+
+  public Iterator<V> nearestIterator(V v){
+    return tree.nearestIterator(v);
+  }
+
+  double distance(V x, V y){ return metric.distance(x, y); }
+
+  // A reusable, allocation free way of running nearestN queries against this
+  // tree from a single thread.
+  public NearestNeighbourSearcher<V> searcher(){
+    return new NearestNeighbourSearcher<V>(this);
+  }
+
+  V pickAPivot(List<V> items, Random random){
+    return options.pivotSelector.select(metric, items, random, options.pivotBudget);
+  }
+
+  Tree buildTree(Collection<V> items, long seed){
+    Build build = new Build(items);
+    return build.tree(0, build.items.length, seed, Ancestors.NONE);
+  }
+
+  // Derives the seed for one of the children of a node from the node's own
+  // seed, so that every node's randomness depends only on its position in
+  // the tree and not on the order in which nodes get built.
+  static long childSeed(long seed, int child){
+    long z = seed + (child + 1) * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  // The value that would be at a[k] if a[from, to) were sorted, found by
+  // quickselect. a[from, to) is left reordered so that nothing before k is
+  // bigger than a[k] and nothing after it is smaller. If the pivots keep
+  // coming out badly the rest is sorted instead, so the worst case is
+  // O(n log n).
+  static double select(double[] a, int from, int to, int k){
+    int rounds = 2 * (32 - Integer.numberOfLeadingZeros(to - from));
+    while(to - from > 16 && rounds-- > 0){
+      double x = a[from];
+      double y = a[(from + to) >>> 1];
+      double z = a[to - 1];
+      double pivot = Math.max(Math.min(x, y), Math.min(Math.max(x, y), z));
+
+      // Three way, so that runs of equal distances are dealt with at once.
+      int lt = from;
+      int i = from;
+      int gt = to;
+      while(i < gt){
+        double d = a[i];
+        if(d < pivot){
+          a[i++] = a[lt];
+          a[lt++] = d;
+        } else if(d > pivot){
+          a[i] = a[--gt];
+          a[gt] = d;
+        } else i++;
       }
-    }).pickBestCandidate(items);
+      if(k < lt) to = lt;
+      else if(k >= gt) from = gt;
+      else return pivot;
+    }
+    Arrays.sort(a, from, to);
+    return a[k];
   }
 
-  Tree buildTree(List<V> items){
-  	if(items.size() <= MAXIMUM_LEAF_SIZE) {
-      return new Leaf(items);
+  // The centers of the nearest few nodes above a subtree being built, most
+  // recent first, and for each of them the column of Build.columns holding
+  // the distances from the subtree's items to it.
+  static class Ancestors{
+    static final Ancestors NONE = new Ancestors(new Object[0], new int[0]);
+
+    final Object[] centers;
+    final int[] slots;
+
+    Ancestors(Object[] centers, int[] slots){
+      this.centers = centers;
+      this.slots = slots;
     }
-  	else {
-  		V pivot = pickAPivot(items);
-  		double[] distances = new double[items.size()];
-  		int i = 0;
-  		for(V v : items) distances[i++] = metric.distance(v, pivot);
-  		Arrays.sort(distances);
-  		double median = distances[distances.length / 2];
-  		double max = distances[distances.length - 1];
 
-      if(max <= 0.0 || median >= max){
-        // TODO: Optimise this case more sensibly. 
-        return new Leaf(items);
+    // The ancestors of the children of a node with the given centers, most
+    // recent first: as many of those as fit in LEAF_PIVOTS followed by as
+    // many of these as still fit. These keep their columns and the new
+    // centers take over the ones that are no longer needed.
+    Ancestors below(Object[] newest){
+      int width = Math.min(newest.length + centers.length, LEAF_PIVOTS);
+      int fresh = Math.min(newest.length, width);
+      Object[] c = new Object[width];
+      int[] s = new int[width];
+      boolean[] used = new boolean[LEAF_PIVOTS];
+      for(int t = fresh; t < width; t++){
+        c[t] = centers[t - fresh];
+        s[t] = slots[t - fresh];
+        used[s[t]] = true;
+      }
+      int free = 0;
+      for(int t = 0; t < fresh; t++){
+        while(used[free]) free++;
+        c[t] = newest[t];
+        s[t] = free++;
       }
+      return new Ancestors(c, s);
+    }
+  }
 
-  		List<V> in = new ArrayList<V>();	
-  		List<V> out = new ArrayList<V>();	
+  // The working state of a build. All the items are in one array, next to
+  // LEAF_PIVOTS columns of distances from each of them to the centers of its
+  // nearest ancestors, which the leaves keep for pivot filtering. A subtree
+  // is built over a range of positions in these, reordering its rows in
+  // place so that each child's items are a range of their own, so nothing
+  // is allocated per node beyond the nodes and leaves themselves. Parallel
+  // builds share one Build, as their ranges never overlap.
+  class Build{
+    final Object[] items;
+    final double[][] columns;
+    // Room for a node's distances to its center, and a copy of them to run
+    // quickselect over, at the same positions as its rows.
+    final double[] distances;
+    final double[] selection;
+    // Room for MultiPartition to reorder rows through.
+    final Object[] spare;
 
-      int c = 0;
+    Build(Collection<V> items){
+      this.items = items.toArray();
+      int n = this.items.length;
+      this.columns = new double[LEAF_PIVOTS][n];
+      this.distances = new double[n];
+      this.selection = new double[n];
+      this.spare = options.binary() ? null : new Object[n];
+    }
 
-  		for(V v : items){
-        if(v == pivot) c++;
-        else if(metric.distance(v, pivot) < median) in.add(v);
-  			else out.add(v);
-  		}
+    @SuppressWarnings("unchecked")
+    V item(int i){ return (V)items[i]; }
 
-  		assert(in.size() + out.size() == items.size());
+    @SuppressWarnings("unchecked")
+    List<V> range(int start, int end){
+      return (List<V>)(List<?>)Arrays.asList(items).subList(start, end);
+    }
 
-  		Tree result = new Split(pivot, median, max, c, in, out);
-      return result;
-  	}
+    void swap(int i, int j, Ancestors ancestors){
+      Object o = items[i]; items[i] = items[j]; items[j] = o;
+      double d = distances[i]; distances[i] = distances[j]; distances[j] = d;
+      for(int s : ancestors.slots){
+        double[] column = columns[s];
+        d = column[i]; column[i] = column[j]; column[j] = d;
+      }
+    }
+
+    // Folds copies among rows [start, end) together, moving the first row
+    // of each distinct item to the front in turn, and returns how many times
+    // each of those is present, or null if no item is present twice.
+    int[] fold(int start, int end, Ancestors ancestors){
+      if(end - start < 2) return null;
+      HashMap<Object, Integer> seen = new HashMap<Object, Integer>();
+      int[] counts = new int[end - start];
+      int distinct = 0;
+      for(int i = start; i < end; i++){
+        Object key = EqualityIndex.key(items[i]);
+        Integer at = seen.get(key);
+        if(at != null){
+          counts[at]++;
+          continue;
+        }
+        seen.put(key, distinct);
+        swap(i, start + distinct, ancestors);
+        counts[distinct++] = 1;
+      }
+      return distinct == end - start ? null : Arrays.copyOf(counts, distinct);
+    }
+
+    Leaf leaf(int start, int end, Ancestors ancestors){
+      int[] counts = fold(start, end, ancestors);
+      if(counts != null) end = start + counts.length;
+      double[][] pivotDistances = new double[ancestors.centers.length][];
+      for(int j = 0; j < pivotDistances.length; j++) pivotDistances[j] = Arrays.copyOfRange(columns[ancestors.slots[j]], start, end);
+      List<V> points = new ArrayList<V>(range(start, end));
+      return new Leaf(points, ancestors.centers, pivotDistances, LeafBlock.pack(metric, points, options.leafLayout, options.normCache), counts);
+    }
+
+    Tree tree(int start, int end, long seed, Ancestors ancestors){
+      if(end - start <= options.leafSize) return leaf(start, end, ancestors);
+
+      V pivot = pickAPivot(range(start, end), new Random(seed));
+      if(!options.binary()){
+        MultiPartition p = multiPartition(start, end, pivot, ancestors);
+        if(p.degenerate) return leaf(start, end, ancestors);
+
+        List<Tree> children = new ArrayList<Tree>(p.starts.length);
+        for(int c = 0; c < p.starts.length; c++) children.add(tree(p.starts[c], p.ends[c], childSeed(seed, c), p.ancestors));
+        return p.node(children);
+      }
+
+      Partition p = partition(start, end, pivot, ancestors, false);
+      if(p.degenerate) return leaf(start, end, ancestors);
+      return new Split(p.pivot, p.threshold, p.max, p.count, tree(p.in, p.mid, childSeed(seed, 0), p.ancestors), tree(p.mid, end, childSeed(seed, 1), p.ancestors));
+    }
+
+    // Partitions rows [start, end) about pivot. Rows that are all one
+    // distance from pivot, such as points on a sphere around it, may still
+    // be far apart from each other, so while the partition is degenerate
+    // and not every row is a copy of pivot, the row furthest from the last
+    // center is tried in its place. That stops after DEGENERATE_RETRIES
+    // tries, or when measuring the rows again would go over
+    // options.pivotBudget, so the result is degenerate only if no center
+    // tried separated the rows.
+    Partition partition(int start, int end, V pivot, Ancestors ancestors, boolean parallel){
+      Partition p = new Partition(this, start, end, pivot, ancestors, parallel);
+      long spent = 0;
+      for(int retry = 0; p.degenerate && p.furthest >= 0 && retry < DEGENERATE_RETRIES && spent + (end - start) <= options.pivotBudget; retry++){
+        spent += end - start;
+        p = new Partition(this, start, end, item(p.furthest), ancestors, parallel);
+      }
+      return p;
+    }
+
+    // As partition, for nodes with several centers.
+    MultiPartition multiPartition(int start, int end, V first, Ancestors ancestors){
+      MultiPartition p = new MultiPartition(this, start, end, first, ancestors);
+      long spent = 0;
+      for(int retry = 0; p.degenerate && p.furthest >= 0 && retry < DEGENERATE_RETRIES && spent + (end - start) <= options.pivotBudget; retry++){
+        spent += end - start;
+        p = new MultiPartition(this, start, end, item(p.furthest), ancestors);
+      }
+      return p;
+    }
+  }
+
+  // Splits a Build's rows [start, end) about pivot at the median of their
+  // distances to it: copies of pivot first, then the rows closer than the
+  // threshold from in to mid, then the rest from mid to end. The threshold
+  // is chosen among the rows that are not copies, as splitThreshold does,
+  // so that a run of equal distances stays on one side. The partition is
+  // degenerate if no threshold separates them, either because they are all
+  // copies of pivot or because they are all the same distance from it, and
+  // then the rows are left as they are but for the copies moving to the
+  // front. The children's ancestors are pivot followed by as many of the
+  // parent's as still fit in LEAF_PIVOTS. furthest is the row that is not a
+  // copy furthest from pivot, or -1 if there are none.
+  class Partition{
+    final V pivot;
+    final int furthest;
+    final double median;
+    final double threshold;
+    final double max;
+    final boolean degenerate;
+    final int count;
+    final int in;
+    int mid;
+    Ancestors ancestors;
+
+    Partition(final Build build, int start, int end, final V pivot, Ancestors parent, boolean parallel){
+      this.pivot = pivot;
+      final double[] distances = build.distances;
+      ParallelRange measure = new ParallelRange(){
+        void run(int from, int to){
+          for(int i = from; i < to; i++) distances[i] = metric.distance(build.item(i), pivot);
+        }
+      };
+      if(parallel) measure.invoke(start, end, PARALLEL_DISTANCE_GRAIN);
+      else measure.run(start, end);
+
+      // A copy of pivot is exactly as far from it as pivot is from itself,
+      // so only rows that close need comparing.
+      double self = metric.distance(pivot, pivot);
+      int front = start;
+      for(int i = start; i < end; i++){
+        Object x = build.items[i];
+        if(x == pivot || (distances[i] <= self && EqualityIndex.same(x, pivot))) build.swap(i, front++, parent);
+      }
+      this.count = front - start;
+      this.in = front;
+
+      double largest = 0.0;
+      int furthest = -1;
+      for(int i = front; i < end; i++){
+        if(furthest < 0 || distances[i] > largest) furthest = i;
+        largest = Math.max(largest, distances[i]);
+      }
+      this.furthest = furthest;
+      System.arraycopy(distances, front, build.selection, front, end - front);
+      this.median = front == end ? 0.0 : select(build.selection, front, end, front + (end - front) / 2);
+      this.max = largest;
+      this.threshold = splitThreshold(distances, front, end, median);
+      this.degenerate = Double.isNaN(threshold);
+
+      if(degenerate) return;
+
+      this.ancestors = parent.below(new Object[]{ pivot });
+      Ancestors kept = new Ancestors(null, Arrays.copyOfRange(ancestors.slots, 1, ancestors.slots.length));
+
+      int split = front;
+      for(int i = front; i < end; i++) if(distances[i] < threshold) build.swap(i, split++, kept);
+      this.mid = split;
+
+      System.arraycopy(distances, front, build.columns[ancestors.slots[0]], front, end - front);
+    }
+  }
+
+  // Where to split rows [from, to) with the given distances to a center
+  // and the given median of them: at median, so that rows at it go out, or
+  // just above it, so that they go in, whichever leaves the two sides
+  // nearer the same size. On data with few distinct distances the median
+  // is often shared by many rows, and cutting strictly below it can leave
+  // nothing in, or everything. Returns NaN if neither leaves both sides
+  // non-empty, which is when every row is at the same distance.
+  static double splitThreshold(double[] distances, int from, int to, double median){
+    int below = 0;
+    int at = 0;
+    for(int i = from; i < to; i++){
+      if(distances[i] < median) below++;
+      else if(distances[i] == median) at++;
+    }
+    int above = to - from - below - at;
+    if(below == 0 && above == 0) return Double.NaN;
+    if(above == 0) return median;
+    if(below == 0) return Math.nextUp(median);
+    return Math.abs(below - at - above) <= Math.abs(below + at - above) ? median : Math.nextUp(median);
+  }
+
+  // Picks up to options.vantagePoints centers for a MultiSplit over a
+  // Build's rows [start, end), the first given and each one after that the
+  // point furthest from the one before, then cuts the rest of the rows into
+  // options.fanOut groups by their distance to the first center, each of
+  // those by their distance to the second, and so on. The cuts are at
+  // quantiles of the distances, with ties kept on the same side, and empty
+  // groups are dropped. The rows are then reordered so that copies of the
+  // centers come first and each group after that is the range starts[c] to
+  // ends[c]. furthest is the row that is not a copy furthest from the first
+  // center, or -1 if there are none.
+  class MultiPartition{
+    final int furthest;
+    final Object[] centers;
+    final int[] counts;
+    int[] starts;
+    int[] ends;
+    Ancestors ancestors;
+    double[] lower;
+    double[] upper;
+    final double[] radius;
+    final boolean degenerate;
+
+    MultiPartition(Build build, int start, int end, V first, Ancestors parent){
+      Object[] points = build.items;
+      int n = end - start;
+      int[] live = new int[n];
+      for(int i = 0; i < n; i++) live[i] = start + i;
+      int liveCount = n;
+      int[] order = new int[n];
+      int ordered = 0;
+
+      Object[] chosen = new Object[options.vantagePoints];
+      int[] chosenCounts = new int[options.vantagePoints];
+      double[][] distances = new double[options.vantagePoints][];
+      int m = 0;
+      int furthestFromFirst = -1;
+      V center = first;
+      while(true){
+        // As in Partition, copies of center are as far from it as it is
+        // from itself.
+        double self = metric.distance(center, center);
+        double[] d = new double[n];
+        int count = 0;
+        int kept = 0;
+        for(int r = 0; r < liveCount; r++){
+          Object x = points[live[r]];
+          double dx = metric.distance(build.item(live[r]), center);
+          if(x == center || (dx <= self && EqualityIndex.same(x, center))){
+            count++;
+            order[ordered++] = live[r];
+          } else {
+            d[live[r] - start] = dx;
+            live[kept++] = live[r];
+          }
+        }
+        liveCount = kept;
+
+        chosen[m] = center;
+        chosenCounts[m] = count;
+        distances[m++] = d;
+        if(liveCount == 0) break;
+
+        int furthest = live[0];
+        for(int r = 1; r < liveCount; r++) if(d[live[r] - start] > d[furthest - start]) furthest = live[r];
+        if(m == 1) furthestFromFirst = furthest;
+        if(m == chosen.length) break;
+        center = build.item(furthest);
+      }
+      this.furthest = furthestFromFirst;
+      this.centers = Arrays.copyOf(chosen, m);
+      this.counts = Arrays.copyOf(chosenCounts, m);
+      this.radius = new double[m];
+
+      List<int[]> cells = new ArrayList<int[]>();
+      if(liveCount > 0) cells.add(Arrays.copyOf(live, liveCount));
+      boolean separated = false;
+      for(int j = 0; j < m; j++){
+        List<int[]> next = new ArrayList<int[]>();
+        for(int[] cell : cells){
+          int before = next.size();
+          cut(cell, distances[j], start, next);
+          if(next.size() - before > 1) separated = true;
+        }
+        cells = next;
+      }
+      this.degenerate = !separated;
+      if(degenerate) return;
+
+      Object[] newest = new Object[m];
+      for(int t = 0; t < m; t++) newest[t] = centers[m - 1 - t];
+      this.ancestors = parent.below(newest);
+      int fresh = Math.min(m, ancestors.centers.length);
+
+      starts = new int[cells.size()];
+      ends = new int[cells.size()];
+      lower = new double[cells.size() * m];
+      upper = new double[cells.size() * m];
+      for(int c = 0; c < cells.size(); c++){
+        int[] cell = cells.get(c);
+        starts[c] = start + ordered;
+        for(int j = 0; j < m; j++){
+          lower[c * m + j] = Double.POSITIVE_INFINITY;
+          upper[c * m + j] = 0.0;
+        }
+        for(int i : cell){
+          order[ordered++] = i;
+          for(int j = 0; j < m; j++){
+            double d = distances[j][i - start];
+            lower[c * m + j] = Math.min(lower[c * m + j], d);
+            upper[c * m + j] = Math.max(upper[c * m + j], d);
+          }
+        }
+        ends[c] = start + ordered;
+        for(int j = 0; j < m; j++) radius[j] = Math.max(radius[j], upper[c * m + j]);
+      }
+
+      // Row start + r is to hold what was at order[r]. The parent's columns
+      // that the children keep move with their rows, and the new centers'
+      // columns are filled in afterwards, as they may take over columns
+      // that were only moved out of the way.
+      for(int r = 0; r < n; r++) build.spare[start + r] = points[order[r]];
+      System.arraycopy(build.spare, start, points, start, n);
+      for(int t = fresh; t < ancestors.centers.length; t++){
+        double[] column = build.columns[ancestors.slots[t]];
+        for(int r = 0; r < n; r++) build.selection[start + r] = column[order[r]];
+        System.arraycopy(build.selection, start, column, start, n);
+      }
+      for(int t = 0; t < fresh; t++){
+        double[] column = build.columns[ancestors.slots[t]];
+        double[] d = distances[m - 1 - t];
+        for(int r = 0; r < n; r++) column[start + r] = d[order[r] - start];
+      }
+    }
+
+    // Adds the non-empty pieces of cell, cut at the fanOut quantiles of the
+    // distances, to into. distances are indexed by row less start.
+    private void cut(int[] cell, double[] distances, int start, List<int[]> into){
+      int k = options.fanOut;
+      double[] selected = new double[cell.length];
+      for(int r = 0; r < cell.length; r++) selected[r] = distances[cell[r] - start];
+      double[] thresholds = new double[k];
+      int from = 0;
+      for(int c = 1; c < k; c++){
+        int at = c * cell.length / k;
+        thresholds[c] = select(selected, from, cell.length, at);
+        from = at;
+      }
+
+      int[] piece = new int[cell.length];
+      int[] sizes = new int[k];
+      for(int r = 0; r < cell.length; r++){
+        int c = 0;
+        double d = distances[cell[r] - start];
+        while(c + 1 < k && thresholds[c + 1] <= d) c++;
+        piece[r] = c;
+        sizes[c]++;
+      }
+      for(int c = 0; c < k; c++){
+        if(sizes[c] == 0) continue;
+        int[] part = new int[sizes[c]];
+        int filled = 0;
+        for(int r = 0; r < cell.length; r++) if(piece[r] == c) part[filled++] = cell[r];
+        into.add(part);
+      }
+    }
+
+    MultiSplit node(List<Tree> children){
+      return new MultiSplit(centers, counts, children, lower, upper, radius);
+    }
+  }
+
+  class BuildTask extends RecursiveTask<Tree>{
+    private static final long serialVersionUID = 1L;
+    final Build build;
+    final int start;
+    final int end;
+    final long seed;
+    final Ancestors ancestors;
+
+    BuildTask(Build build, int start, int end, long seed, Ancestors ancestors){
+      this.build = build;
+      this.start = start;
+      this.end = end;
+      this.seed = seed;
+      this.ancestors = ancestors;
+    }
+
+    protected Tree compute(){
+      if(end - start <= PARALLEL_BUILD_CUTOFF) return build.tree(start, end, seed, ancestors);
+
+      V pivot = options.pivotSelector.select(metric, build.range(start, end), new Random(seed), options.pivotBudget, true);
+
+      if(!options.binary()){
+        MultiPartition p = build.multiPartition(start, end, pivot, ancestors);
+        if(p.degenerate) return build.leaf(start, end, ancestors);
+
+        List<BuildTask> tasks = new ArrayList<BuildTask>(p.starts.length);
+        for(int c = 0; c < p.starts.length; c++) tasks.add(new BuildTask(build, p.starts[c], p.ends[c], childSeed(seed, c), p.ancestors));
+        invokeAll(tasks);
+        List<Tree> children = new ArrayList<Tree>(tasks.size());
+        for(BuildTask task : tasks) children.add(task.join());
+        return p.node(children);
+      }
+
+      Partition p = build.partition(start, end, pivot, ancestors, true);
+      if(p.degenerate) return build.leaf(start, end, ancestors);
+
+      BuildTask in = new BuildTask(build, p.in, p.mid, childSeed(seed, 0), p.ancestors);
+      BuildTask out = new BuildTask(build, p.mid, end, childSeed(seed, 1), p.ancestors);
+      invokeAll(in, out);
+      return new Split(p.pivot, p.threshold, p.max, p.count, in.join(), out.join());
+    }
   }
 
-  private abstract class Tree extends AbstractMetricSearch<V>{
+  abstract class Tree extends AbstractMetricSearch<V>{
     abstract int depth();
-    abstract public Tree allWithinEpsilon(V v, double e);
+    int dead(){ return 0; }
+    public Tree allWithinEpsilon(V v, double e){ return allWithinEpsilon(v, e, null, new QueryPath()); }
+    // stats, if not null, is updated with the work done. path holds the
+    // distances from v to the centers above this subtree.
+    abstract Tree allWithinEpsilon(V v, double e, QueryStats stats, QueryPath path);
+
+    // Passes each point strictly within e of v to visitor, stopping as soon
+    // as it returns false. Returns false if it was stopped early.
+    abstract boolean visitWithinEpsilon(V v, double e, Predicate<? super V> visitor, QueryStats stats, QueryPath path);
+    abstract int countWithinEpsilon(V v, double e, QueryStats stats, QueryPath path);
 
     abstract Collection<V> ownElements();
-    Collection<Tree> subtreesHitting(V v, double e){ return subtrees(); }
+    public Spliterator<V> spliterator(){ return new TreeSpliterator(this); }
+    public void forEach(Consumer<? super V> action){ spliterator().forEachRemaining(action); }
+    Collection<Tree> subtreesHitting(V v, double e, QueryStats stats){ return subtrees(); }
     abstract Collection<Tree> subtrees();
 
-    public List<V> nearestN(final V v, int n){
+    public List<V> nearestN(V v, int n){ return nearestN(v, n, (QueryStats)null); }
+
+    public Iterator<V> nearestIterator(V v){ return new NearestIterator(this, v); }
+    double distance(V x, V y){ return metric.distance(x, y); }
+
+    List<V> nearestN(final V v, int n, final QueryStats stats){
       final SmallestElements<V> q = new SmallestElements<V>(n);
-      final PriorityQueue<ValueWithDistance<Split>> treesToSearch = new PriorityQueue<ValueWithDistance<Split>>();
+      final PriorityQueue<ValueWithDistance<Tree>> treesToSearch = new PriorityQueue<ValueWithDistance<Tree>>();
 
       AbstractTreeIterator searchIterator = new AbstractTreeIterator(){
         @Override Collection<VantageTree.Tree> subtreesFrom(VantageTree.Tree tree){
-          return tree.subtreesHitting(v, q.bound());
+          return tree.subtreesHitting(v, q.bound(), stats);
         }
 
         void pushTrees(Collection<VantageTree.Tree> trees){
-          for(VantageTree.Tree tree : trees){
+          for(VantageTree.Tree raw : trees){
+            Tree tree = (Tree)raw;
             if(tree instanceof VantageTree.Split){
               Split split = (Split)tree;
-              treesToSearch.add(new ValueWithDistance(tree, metric.unbound(metric.distance(v, split.center), split.radius)));
-            } else consumeTree(tree);
+              if(stats != null) stats.distanceCalls++;
+              // A cut off distance is still a lower bound, which is all the
+              // priority needs to be.
+              double r = metric.distanceWithCutoff(v, split.center, metric.bound(q.bound(), split.radius));
+              treesToSearch.add(new ValueWithDistance<Tree>(split, metric.unbound(r, split.radius)));
+            } else treesToSearch.add(new ValueWithDistance<Tree>(tree, 0.0));
           }
+          if(stats != null) stats.queued(treesToSearch.size());
         }
 
         VantageTree.Tree popTree(){
-          ValueWithDistance<Split> vs = treesToSearch.poll();
+          ValueWithDistance<Tree> vs = treesToSearch.poll();
           if(vs == null) return null;
           if(vs.distance > q.bound()) return null;
+          if(stats != null && vs.value instanceof VantageTree.Leaf) stats.leavesVisited++;
           return vs.value;
         }
       };
@@ -136,46 +1175,251 @@ public class VantageTree<V> extends AbstractMetricSearch<V>{
 
       while(searchIterator.hasNext()){
         V w = (V)searchIterator.next();
-        q.add(w, metric.distance(v, w));
+        q.add(w, metric.distanceWithCutoff(v, w, q.bound()));
+        if(stats != null){
+          stats.distanceCalls++;
+          stats.pointsScanned++;
+        }
       }
 
       return q.toList();
     }
   }
 
-  private class Leaf extends Tree{
-  	private final List<V> items;
+  class Leaf extends Tree{
+  	final List<V> items;
+
+    // The centers of up to LEAF_PIVOTS of this leaf's nearest ancestors, most
+    // recent first, and a column of distances to each of them, indexed like
+    // items.
+    final Object[] pivots;
+    final double[][] pivotDistances;
+
+    // The items' coordinates packed as options.leafLayout says, or null if
+    // they are only held as objects.
+    LeafBlock block;
+
+    // How big this leaf may grow through add before it is rebuilt.
+    int capacity = options.leafSize;
+
+    // How many times each item is present, indexed like items, or null if
+    // each is present once. Copies are folded together when the leaf is
+    // built, so a scan measures each distinct item once however often it is
+    // repeated. add gives every element a row of its own until the next
+    // rebuild.
+    int[] counts;
+    // How many elements there are beyond one per item.
+    int copies;
 
     int depth(){ return 0; }
 
   	Leaf(List<V> items){
-  		this.items = items;
+  		this(items, Ancestors.NONE.centers, new double[0][]);
   	}
 
-    Collection<V> ownElements(){ return items; }
+    Leaf(List<V> items, Object[] pivots, double[][] pivotDistances){
+      this.items = items;
+      this.pivots = pivots;
+      this.pivotDistances = pivotDistances;
+    }
+
+    Leaf(List<V> items, Object[] pivots, double[][] pivotDistances, LeafBlock block, int[] counts){
+      this(items, pivots, pivotDistances);
+      this.block = block;
+      this.counts = counts;
+      if(counts != null) for(int c : counts) copies += c - 1;
+    }
+
+    int count(int i){ return counts == null ? 1 : counts[i]; }
+
+    Collection<V> ownElements(){
+      if(counts == null) return items;
+      List<V> result = new ArrayList<V>(size());
+      for(int i = 0; i < items.size(); i++) result.addAll(new Repeating<V>(items.get(i), counts[i]));
+      return result;
+    }
     Collection<Tree> subtrees(){ return Collections.emptyList(); }
 
-  	public int size(){ return items.size(); }
-  	public Iterator<V> iterator(){ return items.iterator(); }	
+  	public int size(){ return items.size() + copies; }
+  	public Iterator<V> iterator(){ return ownElements().iterator(); }	
+
+    // Distances to pivots that path went through are reused rather than
+    // computed again.
+    @SuppressWarnings("unchecked")
+    void add(V v, QueryPath path){
+      int row = items.size();
+      items.add(v);
+      if(counts != null){
+        if(row == counts.length) counts = Arrays.copyOf(counts, Math.max(2 * row, 16));
+        counts[row] = 1;
+      }
+      if(block != null){
+        if(block.fits(v)) block.add((double[])v);
+        else block = null;
+      }
+
+      int known = knownPivots(path);
+      for(int j = 0, k = 0; j < pivots.length; j++){
+        if(row == pivotDistances[j].length) pivotDistances[j] = Arrays.copyOf(pivotDistances[j], Math.max(2 * row, 16));
+        if(k < known && path.columns[k] == j) pivotDistances[j][row] = path.known[k++];
+        else pivotDistances[j][row] = metric.distance(v, (V)pivots[j]);
+      }
+    }
 
-  	public Tree allWithinEpsilon(V v, double e){
+    boolean delete(V v){
+      int i = 0;
+      int size = items.size();
+      while(i < size && !EqualityIndex.same(items.get(i), v)) i++;
+      if(i == size) return false;
+      if(counts != null && counts[i] > 1){
+        counts[i]--;
+        copies--;
+        return true;
+      }
+      items.remove(i);
+      if(counts != null) System.arraycopy(counts, i + 1, counts, i, size - 1 - i);
+      if(block != null) block.remove(i);
+      for(double[] column : pivotDistances) System.arraycopy(column, i + 1, column, i, items.size() - i);
+      return true;
+    }
+
+    // Puts the distances from the query to those of pivots that path went
+    // through into path's scratch arrays, and returns how many there are.
+    // A query only goes below a Split once it knows its exact distance to
+    // the center, so these are exact.
+    int knownPivots(QueryPath path){
+      int known = 0;
+      for(int j = 0; j < pivots.length; j++){
+        int at = path.depth - 1 - j;
+        if(at < 0) break;
+        if(path.centers[at] != pivots[j]) continue;
+        path.columns[known] = j;
+        path.known[known++] = path.distances[at];
+      }
+      return known;
+    }
+
+    // Sets path up for a scan of this leaf for v, and returns the number of
+    // pivots whose distances it knows, as knownPivots. A dimension-major
+    // block works out every squared distance now, into path.scan.
+    @SuppressWarnings("unchecked")
+    int prepare(V v, QueryPath path){
+      path.packed = block != null && block.fits(v);
+      if(!path.packed) return knownPivots(path);
+      double[] x = (double[])v;
+      if(block.dimensionMajor){
+        if(path.scan.length < items.size()) path.scan = new double[Math.max(items.size(), 2 * path.scan.length)];
+        block.squaredDistances(x, path.scan);
+        return 0;
+      }
+      if(block.norms != null) path.norm = block.norm(x);
+      return knownPivots(path);
+    }
+
+    // As metric.distanceWithCutoff(v, item i, e) for a scan that prepare set
+    // path up for, or -1 if item i is ruled out without working it out.
+    double scan(V v, int i, double e, int known, QueryPath path){
+      if(!path.packed){
+        if(known > 0 && ruledOut(path, known, i, e)) return -1.0;
+        return metric.distanceWithCutoff(v, items.get(i), e);
+      }
+      if(block.dimensionMajor){
+        if(block.beyond(path.scan[i], e)) return -1.0;
+        return metric.distanceWithCutoff(v, items.get(i), e);
+      }
+      if(known > 0 && ruledOut(path, known, i, e)) return -1.0;
+      if(block.norms != null && block.normRulesOut(path.norm, i, e)) return -1.0;
+      return block.distance((double[])v, i, e);
+    }
+
+    // Whether the first known of path's scratch distances show that item i
+    // is further than e from the query, by the same tests as Split.mayHitIn
+    // with the pivot in place of the center. Every pivot is tried rather
+    // than stopping at the first that rules the item out, as the branches
+    // cost more than the arithmetic.
+    boolean ruledOut(QueryPath path, int known, int i, double e){
+      boolean result = false;
+      for(int k = 0; k < known; k++){
+        double q = path.known[k];
+        double w = pivotDistances[path.columns[k]][i];
+        result |= (metric.bound(e, w) < q) | (metric.bound(e, q) < w);
+      }
+      return result;
+    }
+
+  	Tree allWithinEpsilon(V v, double e, QueryStats stats, QueryPath path){
   		List<V> result = new ArrayList<V>();
+      int known = prepare(v, path);
+      int compared = 0;
 
-  		for(V w: this.items){
-  			if(metric.distance(v, w) < e) result.add(w);
+  		for(int i = 0, size = items.size(); i < size; i++){
+        double d = scan(v, i, e, known, path);
+        if(d < 0) continue;
+        compared++;
+  			if(d < e) for(int c = count(i); c > 0; c--) result.add(items.get(i));
   		}
+      if(stats != null){
+        stats.leavesVisited++;
+        stats.distanceCalls += compared;
+        stats.pointsScanned += compared;
+        stats.pointsFiltered += items.size() - compared;
+      }
   		return new Leaf(result);
   	}
+
+    boolean visitWithinEpsilon(V v, double e, Predicate<? super V> visitor, QueryStats stats, QueryPath path){
+      if(stats != null) stats.leavesVisited++;
+      int known = prepare(v, path);
+      for(int i = 0, size = items.size(); i < size; i++){
+        double d = scan(v, i, e, known, path);
+        if(d < 0){
+          if(stats != null) stats.pointsFiltered++;
+          continue;
+        }
+        if(stats != null){
+          stats.distanceCalls++;
+          stats.pointsScanned++;
+        }
+        if(d < e) for(int c = count(i); c > 0; c--) if(!visitor.test(items.get(i))) return false;
+      }
+      return true;
+    }
+
+    int countWithinEpsilon(V v, double e, QueryStats stats, QueryPath path){
+      int count = 0;
+      int known = prepare(v, path);
+      int compared = 0;
+      for(int i = 0, size = items.size(); i < size; i++){
+        double d = scan(v, i, e, known, path);
+        if(d < 0) continue;
+        compared++;
+        if(d < e) count += count(i);
+      }
+      if(stats != null){
+        stats.leavesVisited++;
+        stats.distanceCalls += compared;
+        stats.pointsScanned += compared;
+        stats.pointsFiltered += items.size() - compared;
+      }
+      return count;
+    }
   }
 
-  private class Split extends Tree{
+  class Split extends Tree{
   	final V center;
   	final double threshold;
-  	final double radius;
-  	final Tree in;
-  	final Tree out;
-    final int count;
-  	final int size;
+  	double radius;
+  	Tree in;
+  	Tree out;
+    // How many times center is present. Zero once it has been removed.
+    int count;
+  	int size;
+    // How many Splits in this subtree, including this one, have had their
+    // center removed.
+    int dead;
+    // The largest fraction of size that one child may hold before add or
+    // remove rebuild this subtree.
+    final double balanceLimit;
 
     int depth(){
       int r = in.depth();
@@ -191,45 +1435,87 @@ public class VantageTree<V> extends AbstractMetricSearch<V>{
   		this.in = in;
   		this.out = out;
       this.count = count;
-  		this.size = this.in.size() + this.count + this.out.size();
-  	}
+      update();
 
-  	Split(V center, double threshold, double bound, int count, List<V> in, List<V> out){
-      this(center, threshold, bound,count, buildTree(in), buildTree(out));
+      double built = Math.max(in.size(), out.size()) / (double)Math.max(size, 1);
+      this.balanceLimit = Math.max(REBALANCE_ALPHA, (1 + built) / 2);
   	}
 
+    void update(){
+  		this.size = this.in.size() + this.count + this.out.size();
+      this.dead = this.in.dead() + this.out.dead() + (this.count == 0 ? 1 : 0);
+    }
+
+    int dead(){ return dead; }
+
+    // Whether a point at distance r from center could be within e of
+    // something in the in or out subtree respectively.
+    boolean mayHitIn(double r, double e){
+      return !(metric.bound(e, this.radius) < r) && !(metric.bound(e, this.threshold) < r);
+    }
+
+    boolean mayHitOut(double r, double e){
+      return !(metric.bound(e, this.radius) < r) && !(metric.bound(e, r) < this.threshold);
+    }
+
     Collection<V> ownElements(){ return new Repeating(center, count); }
     Collection<Tree> subtrees(){ return Arrays.asList(in, out); }
-    Collection<Tree> subtreesHitting(V v, double e){
-  		double r = metric.distance(v, center);
+    Collection<Tree> subtreesHitting(V v, double e, QueryStats stats){
+      // Anything past bound(e, radius) prunes both children, so there is no
+      // need to know exactly how far past it is.
+  		double r = metric.distanceWithCutoff(v, center, metric.bound(e, this.radius));
+      if(stats != null){
+        stats.distanceCalls++;
+        stats.splitsVisited++;
+      }
 
   		if(metric.bound(r, this.radius) < e) return Arrays.asList(in, out);
-  		if(metric.bound(e, this.radius) < r) return Collections.emptyList();
-  		if(metric.bound(e, this.threshold) < r) return Arrays.asList(out);
-  		if(metric.bound(e, this.threshold) < r) return Arrays.asList(in);
+  		if(metric.bound(e, this.radius) < r) return pruned(stats, 2, Collections.<Tree>emptyList());
+  		if(metric.bound(e, this.threshold) < r) return pruned(stats, 1, Arrays.asList(out));
+  		if(metric.bound(e, r) < this.threshold) return pruned(stats, 1, Arrays.asList(in));
   		return Arrays.asList(in, out);
     }
 
+    private <T> T pruned(QueryStats stats, int subtrees, T result){
+      if(stats != null) stats.subtreesPruned += subtrees;
+      return result;
+    }
+
   	public int size(){ return size; }
 
   	public Iterator<V> iterator(){ return new TreeIterator(this); }
 
-  	public Tree allWithinEpsilon(V v, double e){
-  		double r = metric.distance(v, center);
+  	Tree allWithinEpsilon(V v, double e, QueryStats stats, QueryPath path){
+  		double r = metric.distanceWithCutoff(v, center, metric.bound(e, this.radius));
+      if(stats != null){
+        stats.distanceCalls++;
+        stats.splitsVisited++;
+        stats.pointsScanned++;
+      }
+
+  		if(metric.bound(r, this.radius) < e) return this;
+  		if(metric.bound(e, this.radius) < r) return pruned(stats, 2, new Empty());
+
+      // Past here r is within the cut off, so is exact.
+      path.push(center, r);
+      Tree result = childrenWithinEpsilon(v, e, r, stats, path);
+      path.pop();
+      return result;
+    }
 
+    private Tree childrenWithinEpsilon(V v, double e, double r, QueryStats stats, QueryPath path){
       boolean centerHits = r < e;
 
-  		if(metric.bound(r, this.radius) < e) return this;
-  		if(metric.bound(e, this.radius) < r) return new Empty();
-  		if(metric.bound(e, this.threshold) < r) return out.allWithinEpsilon(v, e);
+  		if(metric.bound(e, this.threshold) < r) return pruned(stats, 1, out.allWithinEpsilon(v, e, stats, path));
   		if(metric.bound(e, r) < this.threshold){
-        Tree newIn = in.allWithinEpsilon(v, e);
-        if(centerHits) new Split(center, threshold, radius, count, newIn, new Empty());
+        Tree newIn = in.allWithinEpsilon(v, e, stats, path);
+        if(stats != null) stats.subtreesPruned++;
+        if(centerHits) return new Split(center, threshold, radius, count, newIn, new Empty());
         else return newIn;
       }
 
-      Tree newIn = in.allWithinEpsilon(v, e);
-      Tree newOut = out.allWithinEpsilon(v, e);
+      Tree newIn = in.allWithinEpsilon(v, e, stats, path);
+      Tree newOut = out.allWithinEpsilon(v, e, stats, path);
      
       if(!centerHits){ 
         if(newIn.isEmpty()) return newOut;
@@ -238,18 +1524,385 @@ public class VantageTree<V> extends AbstractMetricSearch<V>{
 
   		return new Split(center, threshold, radius, (centerHits ? count : 0), newIn, newOut);
   	}
+
+    boolean visitWithinEpsilon(V v, double e, Predicate<? super V> visitor, QueryStats stats, QueryPath path){
+      double r = visitCenter(v, e, stats);
+
+      if(metric.bound(r, this.radius) < e){
+        for(V w : this) if(!visitor.test(w)) return false;
+        return true;
+      }
+      if(r < e) for(int i = 0; i < count; i++) if(!visitor.test(center)) return false;
+
+      boolean hitsIn = mayHitIn(r, e);
+      boolean hitsOut = mayHitOut(r, e);
+      if(stats != null) stats.subtreesPruned += (hitsIn ? 0 : 1) + (hitsOut ? 0 : 1);
+      // Neither child is searched unless r was within the cut off.
+      path.push(center, r);
+      boolean result = (!hitsIn || in.visitWithinEpsilon(v, e, visitor, stats, path)) && (!hitsOut || out.visitWithinEpsilon(v, e, visitor, stats, path));
+      path.pop();
+      return result;
+    }
+
+    int countWithinEpsilon(V v, double e, QueryStats stats, QueryPath path){
+      double r = visitCenter(v, e, stats);
+
+      if(metric.bound(r, this.radius) < e) return size;
+
+      int result = r < e ? count : 0;
+      boolean hitsIn = mayHitIn(r, e);
+      boolean hitsOut = mayHitOut(r, e);
+      if(stats != null) stats.subtreesPruned += (hitsIn ? 0 : 1) + (hitsOut ? 0 : 1);
+      path.push(center, r);
+      if(hitsIn) result += in.countWithinEpsilon(v, e, stats, path);
+      if(hitsOut) result += out.countWithinEpsilon(v, e, stats, path);
+      path.pop();
+      return result;
+    }
+
+    private double visitCenter(V v, double e, QueryStats stats){
+      if(stats != null){
+        stats.distanceCalls++;
+        stats.splitsVisited++;
+        stats.pointsScanned++;
+      }
+      return metric.distanceWithCutoff(v, center, metric.bound(e, this.radius));
+    }
+  }
+
+  // A multi vantage point node. Every point in children.get(c) is between
+  // lower[c * m + j] and upper[c * m + j] from centers[j], where m is the
+  // number of centers, and radius[j] is the largest of the upper[c * m + j].
+  // add only ever widens these ranges, and remove leaves them alone.
+  class MultiSplit extends Tree{
+    final Object[] centers;
+    // How many times each center is present. Zero once it has been removed.
+    final int[] counts;
+    final List<Tree> children;
+    final double[] lower;
+    final double[] upper;
+    final double[] radius;
+    int size;
+    // How many centers in this subtree, including these, have been removed.
+    int dead;
+    // As for Split.
+    final double balanceLimit;
+
+    MultiSplit(Object[] centers, int[] counts, List<Tree> children, double[] lower, double[] upper, double[] radius){
+      this.centers = centers;
+      this.counts = counts;
+      this.children = children;
+      this.lower = lower;
+      this.upper = upper;
+      this.radius = radius;
+      update();
+
+      double built = largestChild() / (double)Math.max(size, 1);
+      this.balanceLimit = Math.max(REBALANCE_ALPHA, (1 + built) / 2);
+    }
+
+    void update(){
+      this.size = 0;
+      this.dead = 0;
+      for(int j = 0; j < centers.length; j++){
+        this.size += counts[j];
+        if(counts[j] == 0) this.dead++;
+      }
+      for(Tree child : children){
+        this.size += child.size();
+        this.dead += child.dead();
+      }
+    }
+
+    int dead(){ return dead; }
+  	public int size(){ return size; }
+
+    int depth(){
+      int r = 0;
+      for(Tree child : children) r = Math.max(r, child.depth());
+      return r + 1;
+    }
+
+    int largestChild(){
+      int r = 0;
+      for(Tree child : children) r = Math.max(r, child.size());
+      return r;
+    }
+
+    @SuppressWarnings("unchecked")
+    V center(int j){ return (V)centers[j]; }
+
+    // Fills d with the distances from v to the centers, cut off once they are
+    // too far for v to be within e of anything in the children.
+    void distances(V v, double e, double[] d, QueryStats stats){
+      for(int j = 0; j < centers.length; j++) d[j] = metric.distanceWithCutoff(v, center(j), metric.bound(e, radius[j]));
+      if(stats != null){
+        stats.distanceCalls += centers.length;
+        stats.splitsVisited++;
+        stats.pointsScanned += centers.length;
+      }
+    }
+
+    // Whether a point at distances d from the centers could be within e of
+    // something in child c. Only true if each d[j] was within its cut off.
+    boolean mayHit(int c, double[] d, double e){
+      int m = centers.length;
+      for(int j = 0; j < m; j++){
+        if(metric.bound(e, upper[c * m + j]) < d[j] || metric.bound(e, d[j]) < lower[c * m + j]) return false;
+      }
+      return true;
+    }
+
+    // A lower bound on the distance from a point at distances d from the
+    // centers to anything in child c.
+    double lowerBound(int c, double[] d){
+      int m = centers.length;
+      double result = 0.0;
+      for(int j = 0; j < m; j++){
+        result = Math.max(result, Math.max(metric.unbound(d[j], upper[c * m + j]), metric.unbound(lower[c * m + j], d[j])));
+      }
+      return result;
+    }
+
+    // Whether everything in the children is within e of a point at
+    // distances d from the centers.
+    boolean coversChildren(double[] d, double e){
+      for(int j = 0; j < centers.length; j++) if(metric.bound(d[j], radius[j]) < e) return true;
+      return false;
+    }
+
+    // Whether distances d lie within all of child c's ranges.
+    boolean fits(int c, double[] d){
+      int m = centers.length;
+      for(int j = 0; j < m; j++) if(d[j] < lower[c * m + j] || d[j] > upper[c * m + j]) return false;
+      return true;
+    }
+
+    int closestChild(double[] d){
+      int m = centers.length;
+      int best = 0;
+      double bestMiss = Double.POSITIVE_INFINITY;
+      for(int c = 0; c < children.size(); c++){
+        double miss = 0.0;
+        for(int j = 0; j < m; j++) miss += Math.max(0.0, Math.max(lower[c * m + j] - d[j], d[j] - upper[c * m + j]));
+        if(miss < bestMiss){
+          best = c;
+          bestMiss = miss;
+        }
+      }
+      return best;
+    }
+
+    void widen(int c, double[] d){
+      int m = centers.length;
+      for(int j = 0; j < m; j++){
+        lower[c * m + j] = Math.min(lower[c * m + j], d[j]);
+        upper[c * m + j] = Math.max(upper[c * m + j], d[j]);
+        radius[j] = Math.max(radius[j], d[j]);
+      }
+    }
+
+    void pushPath(QueryPath path, double[] d){
+      for(int j = 0; j < centers.length; j++) path.push(centers[j], d[j]);
+    }
+
+    void popPath(QueryPath path){
+      for(int j = 0; j < centers.length; j++) path.pop();
+    }
+
+    Collection<V> ownElements(){
+      List<V> result = new ArrayList<V>();
+      for(int j = 0; j < centers.length; j++) result.addAll(new Repeating<V>(center(j), counts[j]));
+      return result;
+    }
+
+    Collection<Tree> subtrees(){ return children; }
+
+    Collection<Tree> subtreesHitting(V v, double e, QueryStats stats){
+      double[] d = new double[centers.length];
+      distances(v, e, d, stats);
+      if(coversChildren(d, e)) return children;
+
+      List<Tree> result = new ArrayList<Tree>();
+      for(int c = 0; c < children.size(); c++){
+        if(mayHit(c, d, e)) result.add(children.get(c));
+        else if(stats != null) stats.subtreesPruned++;
+      }
+      return result;
+    }
+
+  	public Iterator<V> iterator(){ return new TreeIterator(this); }
+
+    // Keeps the ranges of the original, which still hold for the smaller
+    // children, with Empty in place of any child that was pruned.
+  	Tree allWithinEpsilon(V v, double e, QueryStats stats, QueryPath path){
+      double[] d = new double[centers.length];
+      distances(v, e, d, stats);
+
+      int[] hits = new int[centers.length];
+      boolean allCenters = true;
+      for(int j = 0; j < centers.length; j++){
+        hits[j] = d[j] < e ? counts[j] : 0;
+        if(hits[j] != counts[j]) allCenters = false;
+      }
+
+      List<Tree> found;
+      if(coversChildren(d, e)){
+        if(allCenters) return this;
+        found = children;
+      } else {
+        found = new ArrayList<Tree>(children.size());
+        pushPath(path, d);
+        for(int c = 0; c < children.size(); c++){
+          if(mayHit(c, d, e)) found.add(children.get(c).allWithinEpsilon(v, e, stats, path));
+          else {
+            if(stats != null) stats.subtreesPruned++;
+            found.add(new Empty());
+          }
+        }
+        popPath(path);
+      }
+      return new MultiSplit(centers, hits, found, lower, upper, radius);
+  	}
+
+    boolean visitWithinEpsilon(V v, double e, Predicate<? super V> visitor, QueryStats stats, QueryPath path){
+      double[] d = new double[centers.length];
+      distances(v, e, d, stats);
+
+      for(int j = 0; j < centers.length; j++){
+        if(d[j] < e) for(int i = 0; i < counts[j]; i++) if(!visitor.test(center(j))) return false;
+      }
+      if(coversChildren(d, e)){
+        for(Tree child : children) for(V w : child) if(!visitor.test(w)) return false;
+        return true;
+      }
+
+      boolean result = true;
+      pushPath(path, d);
+      for(int c = 0; c < children.size() && result; c++){
+        if(mayHit(c, d, e)) result = children.get(c).visitWithinEpsilon(v, e, visitor, stats, path);
+        else if(stats != null) stats.subtreesPruned++;
+      }
+      popPath(path);
+      return result;
+    }
+
+    int countWithinEpsilon(V v, double e, QueryStats stats, QueryPath path){
+      double[] d = new double[centers.length];
+      distances(v, e, d, stats);
+
+      int result = 0;
+      for(int j = 0; j < centers.length; j++) if(d[j] < e) result += counts[j];
+      if(coversChildren(d, e)){
+        for(Tree child : children) result += child.size();
+        return result;
+      }
+
+      pushPath(path, d);
+      for(int c = 0; c < children.size(); c++){
+        if(mayHit(c, d, e)) result += children.get(c).countWithinEpsilon(v, e, stats, path);
+        else if(stats != null) stats.subtreesPruned++;
+      }
+      popPath(path);
+      return result;
+    }
   }
 
   class Empty extends Tree{
     int depth(){ return 0; }
     public int size(){ return 0; }
     public Iterator<V> iterator(){ return Collections.<V>emptyList().iterator(); }
-  	public Tree allWithinEpsilon(V v, double e){ return this; }
+  	Tree allWithinEpsilon(V v, double e, QueryStats stats, QueryPath path){ return this; }
+    boolean visitWithinEpsilon(V v, double e, Predicate<? super V> visitor, QueryStats stats, QueryPath path){ return true; }
+    int countWithinEpsilon(V v, double e, QueryStats stats, QueryPath path){ return 0; }
 
     Collection<V> ownElements(){ return Collections.emptyList(); }
     Collection<Tree> subtrees(){ return Collections.emptyList(); }
   }
 
+  // The centers a query has gone down through and its distances to them,
+  // innermost last, with scratch space for Leaf.knownPivots.
+  static class QueryPath{
+    Object[] centers = new Object[32];
+    double[] distances = new double[32];
+    int depth;
+    final int[] columns = new int[LEAF_PIVOTS];
+    final double[] known = new double[LEAF_PIVOTS];
+    // Scratch for Leaf.prepare and scan.
+    boolean packed;
+    double norm;
+    double[] scan = new double[0];
+
+    void push(Object center, double distance){
+      if(depth == centers.length){
+        centers = Arrays.copyOf(centers, depth * 2);
+        distances = Arrays.copyOf(distances, depth * 2);
+      }
+      centers[depth] = center;
+      distances[depth++] = distance;
+    }
+
+    void pop(){
+      centers[--depth] = null;
+    }
+  }
+
+  // Walks a tree best first, with points waiting in one queue by their
+  // distance and subtrees in another by a lower bound on theirs. A subtree is
+  // only opened up once it might hold something closer than the nearest
+  // point waiting, so each next does no more work than it has to.
+  class NearestIterator implements Iterator<V>{
+    final V v;
+    final PriorityQueue<ValueWithDistance<Tree>> subtrees = new PriorityQueue<ValueWithDistance<Tree>>();
+    final PriorityQueue<ValueWithDistance<V>> points = new PriorityQueue<ValueWithDistance<V>>();
+
+    NearestIterator(Tree root, V v){
+      this.v = v;
+      subtrees.add(new ValueWithDistance<Tree>(root, 0.0));
+    }
+
+    public boolean hasNext(){
+      while(!subtrees.isEmpty() && (points.isEmpty() || subtrees.peek().distance < points.peek().distance)){
+        expand(subtrees.poll().value);
+      }
+      return !points.isEmpty();
+    }
+
+    public V next(){
+      if(!hasNext()) throw new NoSuchElementException();
+      return points.poll().value;
+    }
+
+    void expand(Tree t){
+      if(t instanceof VantageTree.Leaf){
+        Leaf leaf = (Leaf)t;
+        for(int k = 0; k < leaf.items.size(); k++){
+          V w = leaf.items.get(k);
+          double d = metric.distance(v, w);
+          for(int c = leaf.count(k); c > 0; c--) points.add(new ValueWithDistance<V>(w, d));
+        }
+      } else if(t instanceof VantageTree.Split){
+        Split split = (Split)t;
+        double r = metric.distance(v, split.center);
+        for(int i = 0; i < split.count; i++) points.add(new ValueWithDistance<V>(split.center, r));
+        // Everything in in is within threshold of center, and everything in
+        // out is between threshold and radius from it.
+        subtrees.add(new ValueWithDistance<Tree>(split.in, metric.unbound(r, split.threshold)));
+        subtrees.add(new ValueWithDistance<Tree>(split.out, Math.max(metric.unbound(r, split.radius), metric.unbound(split.threshold, r))));
+      } else if(t instanceof VantageTree.MultiSplit){
+        MultiSplit split = (MultiSplit)t;
+        double[] d = new double[split.centers.length];
+        for(int j = 0; j < d.length; j++){
+          d[j] = metric.distance(v, split.center(j));
+          for(int i = 0; i < split.counts[j]; i++) points.add(new ValueWithDistance<V>(split.center(j), d[j]));
+        }
+        for(int c = 0; c < split.children.size(); c++) subtrees.add(new ValueWithDistance<Tree>(split.children.get(c), split.lowerBound(c, d)));
+      }
+    }
+
+    public void remove(){ throw new UnsupportedOperationException(); }
+  }
+
   abstract class AbstractTreeIterator implements Iterator<V>{
     Iterator currentIterator;
 
@@ -303,11 +1956,173 @@ public class VantageTree<V> extends AbstractMetricSearch<V>{
 
     void pushTrees(Collection<VantageTree.Tree> treesToAdd){
       if(stackDepth + treesToAdd.size() > stack.length){
-        VantageTree.Tree[] newStack = new VantageTree.Tree[stack.length * 2];
+        VantageTree.Tree[] newStack = new VantageTree.Tree[Math.max(stack.length * 2, stackDepth + treesToAdd.size())];
         System.arraycopy(stack, 0, newStack, 0, stackDepth);
         stack = newStack;
       }
       for(VantageTree.Tree s : treesToAdd) stack[stackDepth++] = s;
     }
   }
+
+  // Hands out a subtree's elements without going through ownElements, a
+  // leaf at a time where it can. Subtrees still to go wait on a stack, and
+  // trySplit gives away those at the bottom, opening up the node on top
+  // first if that is all there is. The centers of the node being handed out
+  // wait in centers, each counts times over, as do the items of a leaf
+  // with copies folded together. Those of any other leaf being handed out
+  // are in items from index on.
+  // An array of subtrees. Arrays of a generic class's inner class can only
+  // be made raw, so this is the one place that is done.
+  @SuppressWarnings("unchecked")
+  Tree[] trees(int length){
+    return (Tree[])new VantageTree<?>.Tree[length];
+  }
+
+  Tree[] trees(Tree tree){
+    Tree[] trees = trees(4);
+    trees[0] = tree;
+    return trees;
+  }
+
+  class TreeSpliterator implements Spliterator<V>{
+    Tree[] stack;
+    int depth;
+    Object[] centers;
+    int[] counts;
+    int center;
+    int repeats;
+    List<V> items;
+    int index;
+    long remaining;
+
+    TreeSpliterator(Tree tree){
+      this(trees(tree), 1, tree.size());
+    }
+
+    TreeSpliterator(Tree[] stack, int depth, long remaining){
+      this.stack = stack;
+      this.depth = depth;
+      this.remaining = remaining;
+    }
+
+    public int characteristics(){ return SIZED | SUBSIZED; }
+    public long estimateSize(){ return remaining; }
+
+    public boolean tryAdvance(Consumer<? super V> action){
+      while(true){
+        if(items != null && index < items.size()){
+          remaining--;
+          action.accept(items.get(index++));
+          return true;
+        }
+        if(centers != null && nextCenter()){
+          remaining--;
+          action.accept(currentCenter());
+          return true;
+        }
+        if(depth == 0) return false;
+        Tree t = stack[--depth];
+        stack[depth] = null;
+        open(t);
+      }
+    }
+
+    public void forEachRemaining(Consumer<? super V> action){
+      if(items != null) for(int i = index, size = items.size(); i < size; i++) action.accept(items.get(i));
+      items = null;
+      if(centers != null) while(nextCenter()) action.accept(currentCenter());
+      centers = null;
+      while(depth > 0){
+        Tree t = stack[--depth];
+        stack[depth] = null;
+        if(t instanceof VantageTree.Leaf && ((Leaf)t).counts == null){
+          List<V> leafItems = ((Leaf)t).items;
+          for(int i = 0, size = leafItems.size(); i < size; i++) action.accept(leafItems.get(i));
+        } else {
+          open(t);
+          while(nextCenter()) action.accept(currentCenter());
+          centers = null;
+        }
+      }
+      remaining = 0;
+    }
+
+    public Spliterator<V> trySplit(){
+      if(depth == 1 && items == null && centers == null && !(stack[0] instanceof VantageTree.Leaf)){
+        Tree t = stack[0];
+        stack[0] = null;
+        depth = 0;
+        open(t);
+      }
+      if(depth < 2) return null;
+
+      // The bottom of the stack is handed out last, so giving it away leaves
+      // this spliterator's next elements where they were.
+      long target = remaining / 2;
+      long given = 0;
+      int k = 0;
+      while(k < depth - 1 && given < target) given += stack[k++].size();
+      Tree[] split = trees(Math.max(4, 2 * k));
+      System.arraycopy(stack, 0, split, 0, k);
+      System.arraycopy(stack, k, stack, 0, depth - k);
+      for(int i = depth - k; i < depth; i++) stack[i] = null;
+      depth -= k;
+      remaining -= given;
+      return new TreeSpliterator(split, k, given);
+    }
+
+    // Moves on to the next center to hand out, returning false once they
+    // have all been.
+    private boolean nextCenter(){
+      if(repeats > 0){
+        repeats--;
+        return true;
+      }
+      while(++center < centers.length){
+        if(counts[center] > 0){
+          repeats = counts[center] - 1;
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V currentCenter(){ return (V)centers[center]; }
+
+    // Starts handing out t's own elements and pushes its children.
+    private void open(Tree t){
+      items = null;
+      centers = null;
+      if(t instanceof VantageTree.Leaf){
+        Leaf leaf = (Leaf)t;
+        if(leaf.counts == null){
+          items = leaf.items;
+          index = 0;
+        } else setCenters(leaf.items.toArray(), leaf.counts);
+      } else if(t instanceof VantageTree.Split){
+        Split split = (Split)t;
+        setCenters(new Object[]{ split.center }, new int[]{ split.count });
+        push(split.out);
+        push(split.in);
+      } else if(t instanceof VantageTree.MultiSplit){
+        MultiSplit split = (MultiSplit)t;
+        setCenters(split.centers, split.counts);
+        for(int c = split.children.size() - 1; c >= 0; c--) push(split.children.get(c));
+      }
+    }
+
+    private void setCenters(Object[] centers, int[] counts){
+      this.centers = centers;
+      this.counts = counts;
+      this.center = -1;
+      this.repeats = 0;
+    }
+
+    private void push(Tree t){
+      if(t.size() == 0) return;
+      if(depth == stack.length) stack = Arrays.copyOf(stack, Math.max(4, depth * 2));
+      stack[depth++] = t;
+    }
+  }
 }
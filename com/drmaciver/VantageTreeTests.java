@@ -1,14 +1,28 @@
 package com.drmaciver;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Set;
+import java.util.Iterator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collectors;
 
 class VantageTreeTests{
-  final List<TestCase<?>> testCases = new ArrayList<TestCase<?>>();
+  final List<Case> testCases = new ArrayList<Case>();
   final Random random = new Random();
 
 
@@ -19,21 +33,155 @@ class VantageTreeTests{
     for(int i = 0; i < 1000; i++) largeDoubles.add(random.nextDouble());
     new TestCase<Double>("Large doubles", Metric.DOUBLE_DISTANCE, largeDoubles);
 
+    List<Double> manyDoubles = new ArrayList<Double>();
+    for(int i = 0; i < 30000; i++) manyDoubles.add(random.nextDouble());
+    new ParallelBuildTestCase<Double>("Parallel build", Metric.DOUBLE_DISTANCE, manyDoubles);
+
+    new DynamicTestCase("Adds and removes", largeDoubles);
+
+    BuildOptions mvp = BuildOptions.DEFAULT.withVantagePoints(2).withFanOut(3);
+    new TestCase<Double>("MVP doubles", Metric.DOUBLE_DISTANCE, largeDoubles, mvp);
+    new TestCase<double[]>("MVP vectors", Metric.L2_DISTANCE, randomVectors(3000, 4), mvp);
+    new ParallelBuildTestCase<Double>("MVP parallel build", Metric.DOUBLE_DISTANCE, manyDoubles, mvp);
+    new DynamicTestCase("MVP adds and removes", largeDoubles, mvp);
+
+    new ConcurrentTestCase("Concurrent index", largeDoubles);
+
+    new SpliteratorTestCase("Spliterator", manyDoubles, BuildOptions.DEFAULT);
+    new SpliteratorTestCase("MVP spliterator", manyDoubles, mvp);
+
+    new ContainsTestCase("Contains by search", BuildOptions.DEFAULT);
+    new ContainsTestCase("Contains by equality index", BuildOptions.DEFAULT.withEqualityIndex(true));
+
+    List<Double> repeatedDoubles = new ArrayList<Double>();
+    for(int i = 0; i < 2000; i++) repeatedDoubles.add((double)random.nextInt(5));
+    new TestCase<Double>("Repeated doubles", Metric.DOUBLE_DISTANCE, repeatedDoubles);
+    new TestCase<Double>("MVP repeated doubles", Metric.DOUBLE_DISTANCE, repeatedDoubles, mvp);
+    new DuplicatesTestCase("Duplicates and ties", BuildOptions.DEFAULT);
+    new DuplicatesTestCase("MVP duplicates and ties", mvp);
+
+    new JoinTestCase("Self-join and k-nearest-neighbour graph", BuildOptions.DEFAULT);
+    new JoinTestCase("MVP self-join and k-nearest-neighbour graph", mvp);
+
+    new ShardedTestCase("Random shards", ShardPartitioning.RANDOM);
+    new ShardedTestCase("Pivot shards", ShardPartitioning.PIVOTS);
+
+    new StatsTestCase("Query statistics", largeDoubles);
+
+    new PivotTestCase("Pivot filtering", randomVectors(5000, 2));
+
+    List<double[]> pivotVectors = randomVectors(1000, 4);
+    new TestCase<double[]>("Random pivots", Metric.L2_DISTANCE, pivotVectors, BuildOptions.DEFAULT.withPivotSelector(PivotSelector.RANDOM));
+    new TestCase<double[]>("Farthest-first pivots", Metric.L2_DISTANCE, pivotVectors, BuildOptions.DEFAULT.withPivotSelector(PivotSelector.FARTHEST_FIRST));
+    new TestCase<double[]>("Max-variance pivots", Metric.L2_DISTANCE, pivotVectors, BuildOptions.DEFAULT.withPivotSelector(PivotSelector.MAX_VARIANCE));
+    new TestCase<double[]>("Budgeted pivots", Metric.L2_DISTANCE, pivotVectors, BuildOptions.DEFAULT.withPivotBudget(500));
+    new ParallelBuildTestCase<Double>("Max-variance parallel build", Metric.DOUBLE_DISTANCE, manyDoubles, BuildOptions.DEFAULT.withPivotSelector(PivotSelector.MAX_VARIANCE));
+    new PivotBudgetTestCase("Pivot budgets", manyDoubles);
+    new SelectTestCase("Quickselect");
+
+    BuildOptions pointMajor = BuildOptions.DEFAULT.withLeafLayout(LeafLayout.POINT_MAJOR).withNormCache(true);
+    BuildOptions dimensionMajor = BuildOptions.DEFAULT.withLeafLayout(LeafLayout.DIMENSION_MAJOR).withLeafSize(64);
+    new TestCase<Double>("Small leaves", Metric.DOUBLE_DISTANCE, largeDoubles, BuildOptions.DEFAULT.withLeafSize(8));
+    new TestCase<double[]>("Point-major leaves", Metric.L2_DISTANCE, randomVectors(1000, 6), pointMajor);
+    new TestCase<double[]>("Dimension-major leaves", Metric.L2_DISTANCE, randomVectors(1000, 40), dimensionMajor);
+    new TestCase<double[]>("Packed squared L2", VectorMetrics.SQUARED_L2, randomVectors(500, 6), pointMajor.withLeafSize(32));
+    new PivotTestCase("Point-major adds and removes", randomVectors(5000, 2), pointMajor);
+    new PivotTestCase("Dimension-major adds and removes", randomVectors(5000, 2), dimensionMajor);
+    new LeafSizeTestCase("Tuned leaf sizes");
+
+    new ApproximateTestCase("Approximate search", randomVectors(3000, 10));
+
+    new VectorTestCase("Small vectors", randomVectors(3, 5));
+    new VectorTestCase("Large vectors", randomVectors(5000, 8));
+    new VectorTestCase("Wide vectors", randomVectors(1000, 100));
+    List<double[]> distinctVectors = randomVectors(20, 4);
+    List<double[]> repeatedVectors = new ArrayList<double[]>();
+    for(int i = 0; i < 20000; i++) repeatedVectors.add(distinctVectors.get(random.nextInt(distinctVectors.size())).clone());
+    new VectorTestCase("Repeated vectors", repeatedVectors, 200);
+
+    new MetricTestCase("Vector metrics");
+    new TestCase<double[]>("Squared L2", VectorMetrics.SQUARED_L2, randomVectors(500, 6));
+    new TestCase<double[]>("Angular", VectorMetrics.ANGULAR, randomVectors(500, 6));
+    new TestCase<double[]>("High dimensional L2", Metric.L2_DISTANCE, randomVectors(500, 100));
   }
 
-  class TestCase<V>{
+  List<double[]> randomVectors(int count, int dimension){
+    List<double[]> vectors = new ArrayList<double[]>();
+    for(int i = 0; i < count; i++){
+      double[] v = new double[dimension];
+      for(int j = 0; j < dimension; j++) v[j] = random.nextDouble();
+      vectors.add(v);
+    }
+    return vectors;
+  }
+
+  abstract class Case{
     final String name;
+    final List<String> errors = new ArrayList<String>();
+
+    Case(String name){
+      this.name = name;
+      testCases.add(this);
+    }
+
+    void check(boolean value, String message){
+      if(!value) errors.add(message);
+    }
+
+    // Checks that the counting, existence and visiting forms of an epsilon
+    // query agree with what allWithinEpsilon found.
+    <V> void checkLazyEpsilon(MetricSearch<V> search, V v, double e, Collection<V> within){
+      check(search.countWithinEpsilon(v, e) == within.size(), "Expected to count " + within.size() + " points within " + e + " of " + v + " but counted " + search.countWithinEpsilon(v, e));
+      check(search.anyWithinEpsilon(v, e) == !within.isEmpty(), "Expected anyWithinEpsilon to be " + !within.isEmpty() + " within " + e + " of " + v);
+      final List<V> visited = new ArrayList<V>();
+      search.forEachWithinEpsilon(v, e, new Consumer<V>(){
+        public void accept(V w){ visited.add(w); }
+      });
+      check(visited.size() == within.size() && new HashSet<V>(visited).equals(new HashSet<V>(within)), "Expected to visit the same " + within.size() + " points within " + e + " of " + v + " but visited " + visited.size());
+    }
+
+    // Checks that the first n elements of search's nearestIterator and
+    // nearestStream are at the same distances as its nearestN, and that the
+    // iterator goes on to produce everything else in order.
+    <V> void checkIterator(MetricSearch<V> search, Metric<V> metric, V v, int n){
+      List<V> expected = search.nearestN(v, n);
+      Iterator<V> it = search.nearestIterator(v);
+      double last = 0.0;
+      int count = 0;
+      while(it.hasNext()){
+        V w = it.next();
+        double d = metric.distance(v, w);
+        if(count < expected.size()) check(d == metric.distance(v, expected.get(count)), "Expected the iterator's " + count + "th neighbour to be at the same distance as nearestN's");
+        check(d >= last, "Expected the iterator to produce points in increasing order of distance");
+        last = d;
+        count++;
+      }
+      check(count == search.size(), "Expected the iterator to produce all " + search.size() + " points but it produced " + count);
+
+      List<V> streamed = search.nearestStream(v).limit(n).collect(Collectors.<V>toList());
+      check(streamed.size() == expected.size(), "Expected the stream to give " + expected.size() + " neighbours but it gave " + streamed.size());
+      for(int i = 0; i < streamed.size() && i < expected.size(); i++){
+        check(metric.distance(v, streamed.get(i)) == metric.distance(v, expected.get(i)), "Expected the stream's " + i + "th neighbour to be at the same distance as nearestN's");
+      }
+    }
+  }
+
+  class TestCase<V> extends Case{
     final Metric<V> metric;
     final List<V> points;
     final VantageTree<V> tree;
-    final List<String> errors = new ArrayList<String>();
+    final NearestNeighbourSearcher<V> searcher;
 
     TestCase(String name, Metric<V> metric, List<V> points){
-      this.name = name;
+      this(name, metric, points, BuildOptions.DEFAULT);
+    }
+
+    TestCase(String name, Metric<V> metric, List<V> points, BuildOptions options){
+      super(name);
       this.metric = metric;
       this.points = points;
-      this.tree = new VantageTree<V>(metric, points);
-      testCases.add(this);
+      this.tree = new VantageTree<V>(metric, points, options);
+      this.searcher = tree.searcher();
       check(points.size() == tree.size(), "Expected tree to have " + points.size() + " points but it has " + tree.size());
       check(points.size() == tree.toList().size(), "Expected tree.toList() to have " + points.size() + " points but it has " + tree.toList().size());
 
@@ -41,16 +189,48 @@ class VantageTreeTests{
         for(int j = 0; j < 50; j++){
           sampleNearest(i);
           testNearest(this.points.get(random.nextInt(points.size())), i);
+          testSearcher(this.points.get(random.nextInt(points.size())), i);
         }
       }
 
+      for(int i = 0; i < 10; i++) checkIterator(tree, metric, points.get(random.nextInt(points.size())), 1 + random.nextInt(20));
+
       for(int i = 1; i < 1000; i++){
         testEpsilon(this.points.get(random.nextInt(points.size())), random.nextDouble());
       }
 
+      testBatch(null);
+      ForkJoinPool pool = new ForkJoinPool(4);
+      testBatch(pool);
+      pool.shutdown();
+
       for(V v : points) check(tree.contains(v), "Expected tree to contain " + v);
     }
 
+    void testBatch(ForkJoinPool pool){
+      List<V> queries = new ArrayList<V>();
+      for(int i = 0; i < 200; i++) queries.add(points.get(random.nextInt(points.size())));
+      int n = 1 + random.nextInt(4);
+      double e = random.nextDouble();
+
+      List<List<V>> nearest = tree.nearestNBatch(queries, n, pool);
+      List<Collection<V>> within = tree.allWithinEpsilonBatch(queries, e, pool);
+      check(nearest.size() == queries.size(), "Expected " + queries.size() + " nearestN results but got " + nearest.size());
+      check(within.size() == queries.size(), "Expected " + queries.size() + " allWithinEpsilon results but got " + within.size());
+
+      for(int i = 0; i < queries.size(); i++){
+        V q = queries.get(i);
+        List<V> expected = tree.nearestN(q, n);
+        check(nearest.get(i).size() == expected.size(), "Expected the batch to find " + expected.size() + " neighbours of " + q + " but it found " + nearest.get(i).size());
+        for(int j = 0; j < expected.size() && j < nearest.get(i).size(); j++){
+          check(metric.distance(q, expected.get(j)) == metric.distance(q, nearest.get(i).get(j)), "Expected the batch's " + j + "th neighbour of " + q + " to be " + expected.get(j) + " but it was " + nearest.get(i).get(j));
+        }
+
+        check(new HashSet<V>(within.get(i)).equals(new HashSet<V>(tree.allWithinEpsilon(q, e))), "Expected the batch to find the same points within " + e + " of " + q);
+        check(within.get(i).size() == tree.allWithinEpsilon(q, e).size(), "Expected the batch to find each point within " + e + " of " + q + " once");
+      }
+    }
+
     void sampleNearest(int n){
       V sample = points.get(random.nextInt(points.size()));
       V nearest = tree.nearestN(sample, n).iterator().next();
@@ -58,6 +238,21 @@ class VantageTreeTests{
       check(nearest.equals(sample), "Expected the first of the nearest " + n + " points to " + sample + " to be itself but it was " + nearest);
     }
 
+    @SuppressWarnings("unchecked")
+    void testSearcher(V v, int n){
+      List<V> expected = tree.nearestN(v, n);
+      V[] result = (V[])new Object[n + 1];
+      double[] distances = new double[n + 1];
+      int found = searcher.nearestN(v, n, result, distances);
+
+      check(found == expected.size(), "Expected the searcher to find " + expected.size() + " neighbours of " + v + " but it found " + found);
+      for(int i = 0; i < found && i < expected.size(); i++){
+        double d = metric.distance(v, expected.get(i));
+        check(distances[i] == d, "Expected the searcher's " + i + "th neighbour of " + v + " to be at distance " + d + " but it was at " + distances[i]);
+        check(metric.distance(v, result[i]) == distances[i], "Expected the searcher to report the distance to " + result[i] + " correctly");
+      }
+    }
+
     void testNearest(V v, int n){
       List<V> nearest = tree.nearestN(v, n);
 
@@ -71,17 +266,1135 @@ class VantageTreeTests{
     }
 
     void testEpsilon(V v, double e){
-      Set<V> nearest = new HashSet<V>(tree.allWithinEpsilon(v, e));
+      Collection<V> within = tree.allWithinEpsilon(v, e);
+      Set<V> nearest = new HashSet<V>(within);
 
       for(V pt : points){
         if(nearest.contains(pt)) check(metric.distance(v, pt) < e, "Expected distance(" + v + ", " + pt + ") to be < " + e);
         else check(metric.distance(v, pt) > e, "Expected distance(" + v + ", " + pt + ") to be > " + e);
       }
 
+      checkLazyEpsilon(tree, v, e, within);
+    }
+  }
+
+  class ParallelBuildTestCase<V> extends Case{
+    ParallelBuildTestCase(String name, Metric<V> metric, List<V> points){
+      this(name, metric, points, BuildOptions.DEFAULT);
     }
 
-    void check(boolean value, String message){
-      if(!value) errors.add(message);
+    ParallelBuildTestCase(String name, Metric<V> metric, List<V> points, BuildOptions options){
+      super(name);
+      long seed = random.nextLong();
+      ForkJoinPool pool = new ForkJoinPool(4);
+      VantageTree<V> sequential = new VantageTree<V>(metric, points, null, seed, options);
+      VantageTree<V> parallel = new VantageTree<V>(metric, points, pool, seed, options);
+      VantageTree<V> parallelAgain = new VantageTree<V>(metric, points, pool, seed, options);
+      pool.shutdown();
+
+      check(parallel.size() == points.size(), "Expected tree to have " + points.size() + " points but it has " + parallel.size());
+      check(parallel.tree.depth() == sequential.tree.depth(), "Expected the parallel build to have depth " + sequential.tree.depth() + " but it has " + parallel.tree.depth());
+      check(parallel.toList().equals(sequential.toList()), "Expected the parallel build to have the same shape as the sequential one");
+      check(parallel.toList().equals(parallelAgain.toList()), "Expected two parallel builds with the same seed to have the same shape");
+    }
+  }
+
+  class DynamicTestCase extends Case{
+    final Metric<Double> metric = Metric.DOUBLE_DISTANCE;
+
+    DynamicTestCase(String name, List<Double> initial){
+      this(name, initial, BuildOptions.DEFAULT);
+    }
+
+    DynamicTestCase(String name, List<Double> initial, BuildOptions options){
+      super(name);
+      List<Double> points = new ArrayList<Double>(initial);
+      VantageTree<Double> tree = new VantageTree<Double>(metric, initial, options);
+
+      for(int i = 0; i < 20000; i++){
+        if(random.nextInt(3) > 0 || points.isEmpty()){
+          // Skew the inserts towards one end so that rebalancing gets exercised.
+          Double v = Math.pow(random.nextDouble(), 4);
+          points.add(v);
+          tree.add(v);
+        } else {
+          Double v = points.remove(random.nextInt(points.size()));
+          check(tree.remove(v), "Expected to be able to remove " + v);
+        }
+      }
+      check(!tree.remove(-1.0), "Expected removing a missing point to fail");
+
+      check(points.size() == tree.size(), "Expected tree to have " + points.size() + " points but it has " + tree.size());
+      List<Double> expected = new ArrayList<Double>(points);
+      List<Double> actual = tree.toList();
+      Collections.sort(expected);
+      Collections.sort(actual);
+      check(expected.equals(actual), "Expected tree to contain exactly the points added and not removed");
+
+      for(int i = 0; i < 200; i++){
+        Double v = random.nextDouble();
+        Double nearest = tree.nearest(v);
+        for(Double w : points) check(metric.distance(v, nearest) <= metric.distance(v, w), "The element " + w + " is closer to " + v + " than its supposed nearest neighbour " + nearest);
+
+        double e = random.nextDouble() / 10;
+        int within = 0;
+        for(Double w : points) if(metric.distance(v, w) < e) within++;
+        check(tree.allWithinEpsilon(v, e).size() == within, "Expected " + within + " points within " + e + " of " + v);
+        checkLazyEpsilon(tree, v, e, tree.allWithinEpsilon(v, e));
+      }
+
+      int freshDepth = new VantageTree<Double>(metric, points, options).tree.depth();
+      check(tree.tree.depth() <= 2 * freshDepth + 2, "Expected tree depth " + tree.tree.depth() + " to stay close to that of a fresh tree, " + freshDepth);
+    }
+  }
+
+  class SpliteratorTestCase extends Case{
+    SpliteratorTestCase(String name, List<Double> points, BuildOptions options){
+      super(name);
+      // Repeats and removed centers are handed out as many times as they
+      // are present.
+      List<Double> items = new ArrayList<Double>(points);
+      for(int i = 0; i < 100; i++) items.add(points.get(i));
+      VantageTree<Double> tree = new VantageTree<Double>(Metric.DOUBLE_DISTANCE, items, options);
+      List<Double> expected = new ArrayList<Double>(items);
+      for(int i = 0; i < 300; i++){
+        Double x = expected.remove(random.nextInt(expected.size()));
+        tree.remove(x);
+      }
+      Collections.sort(expected);
+
+      List<Double> iterated = new ArrayList<Double>();
+      for(Double x : tree) iterated.add(x);
+      Collections.sort(iterated);
+      check(iterated.equals(expected), "Expected iteration to produce the " + expected.size() + " points in the tree");
+
+      final List<Double> visited = new ArrayList<Double>();
+      tree.forEach(new Consumer<Double>(){
+        public void accept(Double x){ visited.add(x); }
+      });
+      Collections.sort(visited);
+      check(visited.equals(expected), "Expected forEach to visit the " + expected.size() + " points in the tree");
+
+      // Splits all the way down, alternating tryAdvance and
+      // forEachRemaining, and checks the sizes add up at each split.
+      List<Spliterator<Double>> parts = new ArrayList<Spliterator<Double>>();
+      parts.add(tree.spliterator());
+      check(parts.get(0).getExactSizeIfKnown() == expected.size(), "Expected the spliterator to know it has " + expected.size() + " points");
+      final List<Double> split = new ArrayList<Double>();
+      Consumer<Double> collect = new Consumer<Double>(){
+        public void accept(Double x){ split.add(x); }
+      };
+      int pieces = 0;
+      while(!parts.isEmpty()){
+        Spliterator<Double> part = parts.remove(parts.size() - 1);
+        long before = part.estimateSize();
+        if(pieces % 3 == 0 && part.tryAdvance(collect)){
+          check(part.estimateSize() == before - 1, "Expected a spliterator's size to go down by one on tryAdvance");
+          before--;
+        }
+        Spliterator<Double> other = part.trySplit();
+        if(other != null){
+          check(part.estimateSize() + other.estimateSize() == before, "Expected split sizes " + part.estimateSize() + " and " + other.estimateSize() + " to add up to " + before);
+          parts.add(part);
+          parts.add(other);
+        } else {
+          while(pieces % 2 == 0 && part.tryAdvance(collect)) { }
+          part.forEachRemaining(collect);
+          check(part.estimateSize() == 0, "Expected a finished spliterator to be empty");
+          pieces++;
+        }
+      }
+      Collections.sort(split);
+      check(split.equals(expected), "Expected the split spliterators to produce the " + expected.size() + " points in the tree");
+      check(pieces > 10, "Expected the spliterator to split into many pieces but got " + pieces);
+
+      List<Double> streamed = tree.parallelStream().collect(Collectors.<Double>toList());
+      Collections.sort(streamed);
+      check(streamed.equals(expected), "Expected parallelStream to produce the " + expected.size() + " points in the tree");
+      double sum = 0.0;
+      for(Double x : expected) sum += x;
+      double parallelSum = tree.parallelStream().mapToDouble(new ToDoubleFunction<Double>(){
+        public double applyAsDouble(Double x){ return x; }
+      }).sum();
+      check(Math.abs(parallelSum - sum) < 1e-6, "Expected parallelStream to sum to " + sum + " but got " + parallelSum);
+    }
+  }
+
+  class ContainsTestCase extends Case{
+    ContainsTestCase(String name, BuildOptions options){
+      super(name);
+      for(Metric<double[]> metric : Arrays.asList(Metric.L2_DISTANCE, VectorMetrics.ANGULAR)){
+        List<double[]> points = randomVectors(2000, 5);
+        VantageTree<double[]> tree = new VantageTree<double[]>(metric, points, options);
+        for(int i = 0; i < points.size(); i += 7){
+          check(tree.contains(points.get(i).clone()), "Expected the tree to contain a copy of " + Arrays.toString(points.get(i)));
+        }
+        for(double[] v : randomVectors(100, 5)) check(!tree.contains(v), "Expected the tree not to contain " + Arrays.toString(v));
+
+        // Two copies are present until both have been removed.
+        double[] p = points.get(0);
+        double[] copy = p.clone();
+        tree.add(copy);
+        tree.remove(p);
+        check(tree.contains(p), "Expected the tree to still contain a copy of " + Arrays.toString(p));
+        tree.remove(copy);
+        check(!tree.contains(p), "Expected the tree to contain no copies of " + Arrays.toString(p));
+        tree.add(p);
+        check(tree.contains(copy), "Expected the tree to contain " + Arrays.toString(p) + " again");
+      }
+
+      List<Double> doubles = new ArrayList<Double>();
+      for(int i = 0; i < 1000; i++) doubles.add((double)random.nextInt(500));
+      VantageTree<Double> tree = new VantageTree<Double>(Metric.DOUBLE_DISTANCE, doubles, options);
+      List<Double> present = new ArrayList<Double>(doubles);
+      for(int i = 0; i < 2000; i++){
+        Double x = (double)random.nextInt(600);
+        if(random.nextBoolean()){
+          tree.add(x);
+          present.add(x);
+        } else if(tree.remove(x)) present.remove(x);
+        Double y = (double)random.nextInt(600);
+        check(tree.contains(y) == present.contains(y), "Expected contains(" + y + ") to be " + present.contains(y));
+      }
+    }
+  }
+
+  // Points repeated many times over, as separate but equal arrays, and
+  // points on a small grid, with many equal distances between them. The
+  // answers are checked against a linear scan, and a search among few
+  // distinct points should take few distance calls however many copies
+  // there are.
+  class DuplicatesTestCase extends Case{
+    long calls;
+
+    DuplicatesTestCase(String name, BuildOptions options){
+      super(name);
+      final Metric<double[]> counting = new Metric<double[]>(){
+        public double distance(double[] x, double[] y){
+          calls++;
+          return Metric.L2_DISTANCE.distance(x, y);
+        }
+      };
+
+      List<double[]> distinct = randomVectors(20, 3);
+      List<double[]> copies = new ArrayList<double[]>();
+      for(int i = 0; i < 20000; i++) copies.add(distinct.get(random.nextInt(distinct.size())).clone());
+      VantageTree<double[]> tree = new VantageTree<double[]>(counting, copies, options);
+      checkAgainstScan(tree, counting, copies, randomVectors(50, 3), 200);
+
+      double[] p = distinct.get(0);
+      int present = 0;
+      for(double[] v : copies) if(Arrays.equals(v, p)) present++;
+      for(int i = 0; i < 10; i++) tree.add(p.clone());
+      for(int i = 0; i < present + 10; i++) check(tree.remove(p.clone()), "Expected to be able to remove copy " + i + " of " + Arrays.toString(p));
+      check(!tree.remove(p), "Expected no copies of " + Arrays.toString(p) + " to be left");
+      check(tree.size() == copies.size() - present, "Expected " + (copies.size() - present) + " points once " + present + " copies were removed but there are " + tree.size());
+
+      List<double[]> grid = new ArrayList<double[]>();
+      for(int i = 0; i < 5000; i++){
+        double[] v = new double[4];
+        for(int j = 0; j < v.length; j++) v[j] = random.nextInt(4);
+        grid.add(v);
+      }
+      Metric<double[]> l1 = new Metric<double[]>(){
+        public double distance(double[] x, double[] y){
+          calls++;
+          return VectorMetrics.L1.distance(x, y);
+        }
+      };
+      // The queries are on a finer grid, so that every distance is exact and
+      // rounding cannot move a point to the other side of e.
+      List<double[]> queries = new ArrayList<double[]>();
+      for(int i = 0; i < 50; i++){
+        double[] q = new double[4];
+        for(int j = 0; j < q.length; j++) q[j] = random.nextInt(16) * 0.25;
+        queries.add(q);
+      }
+      checkAgainstScan(new VantageTree<double[]>(l1, grid, options), l1, grid, queries, Integer.MAX_VALUE);
+
+      // Every point but the first is on a sphere around it, so a first
+      // center there separates nothing and the build has to try others. The
+      // queries are just off the sphere, a quarter step from a point on it.
+      List<double[]> sphere = new ArrayList<double[]>();
+      sphere.add(new double[3]);
+      for(int x = -30; x <= 30; x++){
+        for(int y = Math.abs(x) - 30; y <= 30 - Math.abs(x); y++){
+          int z = 30 - Math.abs(x) - Math.abs(y);
+          sphere.add(new double[]{ x, y, z });
+          if(z > 0) sphere.add(new double[]{ x, y, -z });
+        }
+      }
+      PivotSelector first = new PivotSelector("first"){
+        public <V> V select(Metric<V> metric, List<V> items, Random random, long budget){
+          return items.get(0);
+        }
+      };
+      List<double[]> sphereQueries = new ArrayList<double[]>();
+      for(int i = 0; i < 50; i++){
+        double[] q = sphere.get(random.nextInt(sphere.size())).clone();
+        q[random.nextInt(q.length)] += 0.25;
+        sphereQueries.add(q);
+      }
+      VantageTree<double[]> around = new VantageTree<double[]>(l1, sphere, options.withPivotSelector(first));
+      checkAgainstScan(around, l1, sphere, sphereQueries, Integer.MAX_VALUE);
+      for(double[] q : sphereQueries){
+        calls = 0;
+        around.nearestN(q, 5);
+        check(calls <= sphere.size() / 4, "Expected nearestN on a sphere to take at most " + sphere.size() / 4 + " distance calls but it took " + calls);
+      }
+    }
+
+    void checkAgainstScan(VantageTree<double[]> tree, Metric<double[]> metric, List<double[]> points, List<double[]> queries, long maximumCalls){
+      check(tree.size() == points.size(), "Expected tree to have " + points.size() + " points but it has " + tree.size());
+      int iterated = 0;
+      for(double[] v : tree) iterated++;
+      check(iterated == points.size(), "Expected to iterate over " + points.size() + " points but got " + iterated);
+      check(tree.stream().count() == points.size(), "Expected to stream " + points.size() + " points");
+
+      for(double[] q : queries){
+        double[] d = new double[points.size()];
+        for(int i = 0; i < d.length; i++) d[i] = metric.distance(q, points.get(i));
+        Arrays.sort(d);
+
+        int n = 1 + random.nextInt(20);
+        calls = 0;
+        List<double[]> nearest = tree.nearestN(q, n);
+        check(calls <= maximumCalls, "Expected nearestN to take at most " + maximumCalls + " distance calls but it took " + calls);
+        check(nearest.size() == n, "Expected " + n + " neighbours but got " + nearest.size());
+        for(int i = 0; i < nearest.size(); i++) check(metric.distance(q, nearest.get(i)) == d[i], "Expected the " + i + "th neighbour to be at distance " + d[i]);
+        List<double[]> batch = tree.nearestNBatch(Collections.singletonList(q), n).get(0);
+        for(int i = 0; i < batch.size(); i++) check(metric.distance(q, batch.get(i)) == d[i], "Expected the batch's " + i + "th neighbour to be at distance " + d[i]);
+
+        double e = d[random.nextInt(d.length)];
+        int within = 0;
+        while(within < d.length && d[within] < e) within++;
+        calls = 0;
+        int counted = tree.countWithinEpsilon(q, e);
+        check(calls <= maximumCalls, "Expected countWithinEpsilon to take at most " + maximumCalls + " distance calls but it took " + calls);
+        check(counted == within, "Expected to count " + within + " points within " + e + " but counted " + counted);
+        check(tree.allWithinEpsilon(q, e).size() == within, "Expected to find " + within + " points within " + e);
+        check(tree.allWithinEpsilonBatch(Collections.singletonList(q), e).get(0).size() == within, "Expected the batch to find " + within + " points within " + e);
+      }
+    }
+  }
+
+  // The pairs a self-join reports and the neighbours in a k-nearest-
+  // neighbour graph are compared with a linear scan by their distances, as
+  // copies of a point may be reported as one another.
+  class JoinTestCase extends Case{
+    JoinTestCase(String name, BuildOptions options){
+      super(name);
+      final Metric<double[]> metric = Metric.L2_DISTANCE;
+      List<double[]> points = randomVectors(1500, 3);
+      for(int i = 0; i < 300; i++) points.add(points.get(random.nextInt(100)).clone());
+      VantageTree<double[]> tree = new VantageTree<double[]>(metric, points, options);
+
+      double e = 0.1;
+      List<Double> expected = new ArrayList<Double>();
+      for(int i = 0; i < points.size(); i++){
+        for(int j = i + 1; j < points.size(); j++){
+          double d = metric.distance(points.get(i), points.get(j));
+          if(d < e) expected.add(d);
+        }
+      }
+      Collections.sort(expected);
+
+      ForkJoinPool pool = new ForkJoinPool(4);
+      for(ForkJoinPool p : Arrays.asList(null, pool)){
+        final List<Double> found = new ArrayList<Double>();
+        tree.selfJoin(e, new BiConsumer<double[], double[]>(){
+          public void accept(double[] x, double[] y){
+            synchronized(found){ found.add(metric.distance(x, y)); }
+          }
+        }, p);
+        Collections.sort(found);
+        check(found.equals(expected), "Expected the self-join " + (p == null ? "" : "in parallel ") + "to find " + expected.size() + " pairs within " + e + " but it found " + found.size());
+      }
+
+      final int k = 5;
+      final List<double[]> sources = new ArrayList<double[]>();
+      final List<List<double[]>> neighbours = new ArrayList<List<double[]>>();
+      tree.knnGraph(k, new BiConsumer<double[], List<double[]>>(){
+        public void accept(double[] v, List<double[]> nearest){
+          synchronized(sources){
+            sources.add(v);
+            neighbours.add(nearest);
+          }
+        }
+      }, pool);
+      pool.shutdown();
+      check(sources.size() == points.size(), "Expected the graph to have " + points.size() + " points but it had " + sources.size());
+      for(int i = 0; i < sources.size(); i++){
+        double[] v = sources.get(i);
+        double[] d = new double[points.size()];
+        for(int j = 0; j < d.length; j++) d[j] = metric.distance(v, points.get(j));
+        Arrays.sort(d);
+        List<double[]> nearest = neighbours.get(i);
+        check(nearest.size() == k, "Expected " + k + " neighbours of " + Arrays.toString(v) + " but got " + nearest.size());
+        // d[0] is v itself.
+        for(int j = 0; j < nearest.size(); j++) check(metric.distance(v, nearest.get(j)) == d[j + 1], "Expected the " + j + "th neighbour of " + Arrays.toString(v) + " to be at distance " + d[j + 1]);
+      }
+    }
+  }
+
+  class ShardedTestCase extends Case{
+    final Metric<double[]> metric = Metric.L2_DISTANCE;
+    double farAway = 0.0;
+
+    ShardedTestCase(String name, ShardPartitioning partitioning){
+      super(name);
+      List<double[]> points = randomVectors(6000, 3);
+      for(int i = 0; i < 500; i++) points.add(points.get(random.nextInt(points.size())).clone());
+      VantageTree<double[]> tree = new VantageTree<double[]>(metric, points);
+
+      ForkJoinPool pool = new ForkJoinPool(4);
+      ShardedMetricSearch<double[]> sequential = new ShardedMetricSearch<double[]>(metric, points, 5, partitioning, null, random.nextLong(), BuildOptions.DEFAULT);
+      ShardedMetricSearch<double[]> parallel = new ShardedMetricSearch<double[]>(metric, points, 5, partitioning, pool, random.nextLong(), BuildOptions.DEFAULT);
+      check(parallel.shardCount() == 5, "Expected 5 shards but got " + parallel.shardCount());
+      checkAgainst(sequential, tree, "in sequence");
+      checkAgainst(parallel, tree, "in parallel");
+
+      // Nearly everything is within 1 of a point in the unit cube, so this
+      // should stop at the first point it finds rather than count them all.
+      final long[] calls = { 0 };
+      Metric<double[]> counting = new Metric<double[]>(){
+        public double distance(double[] x, double[] y){
+          calls[0]++;
+          return metric.distance(x, y);
+        }
+      };
+      ShardedMetricSearch<double[]> counted = new ShardedMetricSearch<double[]>(counting, points, 5, partitioning, null, random.nextLong(), BuildOptions.DEFAULT);
+      for(int i = 0; i < 20; i++){
+        calls[0] = 0;
+        check(counted.anyWithinEpsilon(points.get(random.nextInt(points.size())), 1.0), "Expected a point to have others within 1 of it");
+        check(calls[0] <= 100, "Expected anyWithinEpsilon to stop at the first hit but it took " + calls[0] + " distance calls");
+      }
+
+      List<File> files = new ArrayList<File>();
+      List<ProcessShard<double[]>> processes = new ArrayList<ProcessShard<double[]>>();
+      try {
+        for(int s = 0; s < parallel.shardCount(); s++){
+          File file = File.createTempFile("vantage", ".shard");
+          file.deleteOnExit();
+          ((LocalShard<double[]>)parallel.shard(s)).write(file);
+          files.add(file);
+        }
+
+        parallel.setShard(0, LocalShard.read(metric, files.get(0)));
+        checkAgainst(parallel, tree, "with a reloaded shard");
+
+        for(File file : files) processes.add(new ProcessShard<double[]>("com.drmaciver.Metric.L2_DISTANCE", file));
+        ShardedMetricSearch<double[]> remote = new ShardedMetricSearch<double[]>(metric, processes, pool);
+        checkAgainst(remote, tree, "in other processes");
+      } catch(IOException e){
+        check(false, "Expected writing, reading and serving shards to work but got " + e);
+      } finally {
+        for(ProcessShard<double[]> p : processes){
+          try {
+            p.close();
+          } catch(IOException e){ }
+        }
+        pool.shutdown();
+      }
+    }
+
+    // Distances are compared rather than points, as shards in another
+    // process hand back copies.
+    void checkAgainst(ShardedMetricSearch<double[]> sharded, VantageTree<double[]> tree, String how){
+      check(sharded.size() == tree.size(), "Expected " + tree.size() + " points " + how + " but got " + sharded.size());
+      List<double[]> all = new ArrayList<double[]>(sharded);
+      check(all.size() == tree.size(), "Expected to iterate over " + tree.size() + " points " + how + " but got " + all.size());
+
+      for(int i = 0; i < 100; i++){
+        double[] q = i % 2 == 0 ? randomVectors(1, 3).get(0) : all.get(random.nextInt(all.size()));
+        int n = 1 + random.nextInt(20);
+        List<double[]> expected = tree.nearestN(q, n);
+        List<double[]> found = sharded.nearestN(q, n);
+        check(found.size() == expected.size(), "Expected " + expected.size() + " neighbours of " + Arrays.toString(q) + " " + how + " but got " + found.size());
+        for(int j = 0; j < expected.size() && j < found.size(); j++){
+          check(metric.distance(q, found.get(j)) == metric.distance(q, expected.get(j)), "Expected the " + j + "th neighbour of " + Arrays.toString(q) + " " + how + " to be at distance " + metric.distance(q, expected.get(j)));
+        }
+
+        double e = random.nextDouble() * 0.3;
+        List<Double> inTree = distances(q, tree.allWithinEpsilon(q, e));
+        List<Double> inShards = distances(q, sharded.allWithinEpsilon(q, e));
+        check(inShards.equals(inTree), "Expected to find " + inTree.size() + " points within " + e + " of " + Arrays.toString(q) + " " + how + " but found " + inShards.size());
+        check(sharded.countWithinEpsilon(q, e) == inTree.size(), "Expected to count " + inTree.size() + " points within " + e + " " + how);
+        check(sharded.anyWithinEpsilon(q, e) == !inTree.isEmpty(), "Expected anyWithinEpsilon to be " + !inTree.isEmpty() + " " + how);
+      }
+
+      double[] extra = randomVectors(1, 3).get(0);
+      check(!sharded.contains(extra), "Expected not to contain a point that was never added " + how);
+      sharded.add(extra.clone());
+      check(sharded.contains(extra) && sharded.size() == tree.size() + 1, "Expected an added point to be found " + how);
+      check(sharded.remove(extra) && !sharded.contains(extra) && sharded.size() == tree.size(), "Expected a removed point to be gone " + how);
+
+      // Far outside every pivot shard's ball, so it is only found if the
+      // shard it went to has widened its radius to take it in. Each call
+      // goes further out than the last, as a shard written to a file keeps
+      // the radius an earlier call widened it to.
+      farAway += 10.0;
+      double[] far = new double[]{ farAway, farAway, farAway };
+      sharded.add(far.clone());
+      List<double[]> nearest = sharded.nearestN(far, 1);
+      check(nearest.size() == 1 && Arrays.equals(nearest.get(0), far), "Expected a point added far from every shard to be its own nearest neighbour " + how);
+      check(sharded.allWithinEpsilon(far, 0.5).size() == 1 && sharded.countWithinEpsilon(far, 0.5) == 1, "Expected to find a point added far from every shard within 0.5 of itself " + how);
+      check(sharded.contains(far) && sharded.remove(far) && sharded.size() == tree.size(), "Expected to remove a point added far from every shard " + how);
+    }
+
+    List<Double> distances(double[] q, Collection<double[]> points){
+      List<Double> result = new ArrayList<Double>();
+      for(double[] p : points) result.add(metric.distance(q, p));
+      Collections.sort(result);
+      return result;
+    }
+  }
+
+  class ConcurrentTestCase extends Case{
+    final Metric<Double> metric = Metric.DOUBLE_DISTANCE;
+    volatile boolean stop;
+
+    ConcurrentTestCase(String name, List<Double> initial){
+      super(name);
+      final List<Double> points = new ArrayList<Double>(initial);
+      // Compact on the updating thread, so the test can see exactly when it happens.
+      final ConcurrentMetricIndex<Double> index = new ConcurrentMetricIndex<Double>(metric, initial, 100, new Executor(){
+        public void execute(Runnable r){ r.run(); }
+      });
+
+      for(int i = 0; i < 2000; i++){
+        if(random.nextInt(3) > 0 || points.isEmpty()){
+          Double v = random.nextDouble();
+          points.add(v);
+          index.add(v);
+        } else {
+          Double v = points.remove(random.nextInt(points.size()));
+          check(index.remove(v), "Expected to be able to remove " + v);
+        }
+        check(index.snapshot.get().deltaSize() < 100, "Expected the delta to be compacted once it reached 100 updates");
+        if(i % 100 == 0) compare(index, points);
+      }
+      check(!index.remove(-1.0), "Expected removing a missing point to fail");
+      compare(index, points);
+      index.compact();
+      check(index.snapshot.get().deltaSize() == 0, "Expected compact to leave an empty delta");
+      compare(index, points);
+
+      // Query from another thread while the index is updated and rebuilt.
+      final List<String> readerErrors = Collections.synchronizedList(new ArrayList<String>());
+      Thread reader = new Thread(){
+        public void run(){
+          Random r = new Random();
+          while(!stop){
+            try {
+              Double v = r.nextDouble();
+              List<Double> nearest = index.nearestN(v, 3);
+              if(nearest.size() != 3) readerErrors.add("Expected 3 nearest neighbours but got " + nearest.size());
+              index.allWithinEpsilon(v, 0.01);
+            } catch(RuntimeException e){
+              readerErrors.add("Query failed with " + e);
+              return;
+            }
+          }
+        }
+      };
+      reader.start();
+      for(int i = 0; i < 500; i++){
+        Double v = random.nextDouble();
+        points.add(v);
+        index.add(v);
+        if(i % 100 == 0) index.replaceAll(points);
+      }
+      stop = true;
+      try { reader.join(); } catch(InterruptedException e){ Thread.currentThread().interrupt(); }
+      for(String error : readerErrors) check(false, error);
+      compare(index, points);
+
+      testArrays();
+    }
+
+    // Arrays are equal by their contents, as in VantageTree, so a copy of a
+    // point is found and removed whether the point is in the tree or in the
+    // delta.
+    void testArrays(){
+      List<double[]> vectors = randomVectors(500, 3);
+      ConcurrentMetricIndex<double[]> index = new ConcurrentMetricIndex<double[]>(Metric.L2_DISTANCE, vectors, 100, new Executor(){
+        public void execute(Runnable r){ r.run(); }
+      });
+      List<double[]> present = new ArrayList<double[]>(vectors);
+      for(int i = 0; i < 300; i++){
+        if(random.nextBoolean()){
+          double[] v = random.nextInt(4) == 0 ? present.get(random.nextInt(present.size())).clone() : randomVectors(1, 3).get(0);
+          index.add(v);
+          present.add(v.clone());
+        } else {
+          double[] v = present.remove(random.nextInt(present.size()));
+          check(index.remove(v.clone()), "Expected to be able to remove a copy of " + Arrays.toString(v));
+          check(index.contains(v) == containsCopy(present, v), "Expected contains after removing a copy of " + Arrays.toString(v) + " to be " + containsCopy(present, v));
+        }
+        double[] w = present.get(random.nextInt(present.size()));
+        check(index.contains(w.clone()), "Expected the index to contain a copy of " + Arrays.toString(w));
+      }
+      check(index.size() == present.size(), "Expected the index to have " + present.size() + " arrays but it has " + index.size());
+      check(!index.remove(randomVectors(1, 3).get(0)), "Expected removing a missing array to fail");
+      index.compact();
+      for(double[] w : present) check(index.contains(w.clone()), "Expected the compacted index to contain a copy of " + Arrays.toString(w));
+    }
+
+    boolean containsCopy(List<double[]> points, double[] v){
+      for(double[] w : points) if(Arrays.equals(v, w)) return true;
+      return false;
+    }
+
+    void compare(ConcurrentMetricIndex<Double> index, List<Double> points){
+      check(points.size() == index.size(), "Expected the index to have " + points.size() + " points but it has " + index.size());
+      List<Double> expected = new ArrayList<Double>(points);
+      List<Double> actual = new ArrayList<Double>(index);
+      Collections.sort(expected);
+      Collections.sort(actual);
+      check(expected.equals(actual), "Expected the index to contain exactly the points added and not removed");
+
+      for(int i = 0; i < 20; i++){
+        Double v = random.nextDouble();
+        int n = 1 + random.nextInt(5);
+        List<Double> nearest = index.nearestN(v, n);
+        List<Double> sorted = new ArrayList<Double>(points);
+        final Double q = v;
+        Collections.sort(sorted, new Comparator<Double>(){
+          public int compare(Double x, Double y){ return Double.compare(metric.distance(q, x), metric.distance(q, y)); }
+        });
+        check(nearest.size() == Math.min(n, points.size()), "Expected " + n + " nearest neighbours but got " + nearest.size());
+        for(int j = 0; j < nearest.size(); j++){
+          check(metric.distance(v, nearest.get(j)) == metric.distance(v, sorted.get(j)), "Expected the index's " + j + "th neighbour of " + v + " to be " + sorted.get(j) + " but it was " + nearest.get(j));
+        }
+
+        double e = random.nextDouble() / 10;
+        int within = 0;
+        for(Double w : points) if(metric.distance(v, w) < e) within++;
+        check(index.allWithinEpsilon(v, e).size() == within, "Expected " + within + " points within " + e + " of " + v);
+        checkLazyEpsilon(index, v, e, index.allWithinEpsilon(v, e));
+        check(index.contains(points.get(random.nextInt(points.size()))), "Expected the index to contain all its points");
+      }
+      checkIterator(index, metric, random.nextDouble(), 10);
+    }
+  }
+
+  class StatsTestCase extends Case{
+    long calls;
+    QueryStats last;
+
+    StatsTestCase(String name, List<Double> points){
+      super(name);
+      Metric<Double> counting = new Metric<Double>(){
+        public double distance(Double x, Double y){
+          calls++;
+          return Metric.DOUBLE_DISTANCE.distance(x, y);
+        }
+      };
+      VantageTree<Double> tree = new VantageTree<Double>(counting, points);
+      NearestNeighbourSearcher<Double> searcher = tree.searcher();
+      QueryStatsAggregator aggregator = new QueryStatsAggregator();
+      Double[] result = new Double[5];
+
+      tree.setQueryListener(new QueryListener(){
+        public void queryCompleted(QueryStats stats){ last = stats; }
+      });
+
+      for(int i = 0; i < 100; i++){
+        Double v = random.nextDouble();
+
+        calls = 0;
+        int found = tree.nearestN(v, 5).size();
+        checkStats(QueryStats.NEAREST, found);
+
+        calls = 0;
+        found = searcher.nearestN(v, 5, result);
+        checkStats(QueryStats.NEAREST, found);
+
+        calls = 0;
+        found = tree.allWithinEpsilon(v, random.nextDouble() / 10).size();
+        checkStats(QueryStats.EPSILON, found);
+
+        calls = 0;
+        found = tree.countWithinEpsilon(v, random.nextDouble() / 10);
+        checkStats(QueryStats.EPSILON, found);
+
+        calls = 0;
+        found = tree.anyWithinEpsilon(v, random.nextDouble() / 10) ? 1 : 0;
+        checkStats(QueryStats.EPSILON, found);
+      }
+
+      tree.setQueryListener(aggregator);
+      for(int i = 0; i < 100; i++) tree.nearestN(random.nextDouble(), 3);
+      check(aggregator.nearest.nanos.count() == 100, "Expected the aggregator to have seen 100 nearestN queries but it saw " + aggregator.nearest.nanos.count());
+      check(aggregator.nearest.distanceCalls.quantile(0.5) <= aggregator.nearest.distanceCalls.max(), "Expected the median distance count to be at most the maximum");
+
+      tree.setQueryListener(null);
+      last = null;
+      tree.nearestN(random.nextDouble(), 3);
+      check(last == null, "Expected no statistics once the listener is removed");
+    }
+
+    void checkStats(String kind, int found){
+      check(last != null && last.kind.equals(kind), "Expected statistics for a " + kind + " query");
+      if(last == null) return;
+      check(last.distanceCalls == calls, "Expected " + kind + " to report " + calls + " distance calls but it reported " + last.distanceCalls);
+      check(last.resultSize == found, "Expected " + kind + " to report " + found + " results but it reported " + last.resultSize);
+      check(last.pointsScanned <= last.distanceCalls, "Expected " + kind + " to scan no more points than it made distance calls");
+      last = null;
+    }
+  }
+
+  class PivotTestCase extends Case{
+    final Metric<double[]> metric = Metric.L2_DISTANCE;
+    long filtered;
+
+    PivotTestCase(String name, List<double[]> initial){
+      this(name, initial, BuildOptions.DEFAULT);
+    }
+
+    PivotTestCase(String name, List<double[]> initial, BuildOptions options){
+      super(name);
+      List<double[]> points = new ArrayList<double[]>(initial);
+      VantageTree<double[]> tree = new VantageTree<double[]>(metric, initial, options);
+      tree.setQueryListener(new QueryListener(){
+        public void queryCompleted(QueryStats stats){ filtered += stats.pointsFiltered; }
+      });
+
+      for(int round = 0; round < 3; round++){
+        for(int i = 0; i < 100; i++){
+          double[] v = randomVectors(1, 2).get(0);
+          double e = random.nextDouble() / 10;
+          int within = 0;
+          for(double[] w : points) if(metric.distance(v, w) < e) within++;
+          Collection<double[]> found = tree.allWithinEpsilon(v, e);
+          check(found.size() == within, "Expected " + within + " points within " + e + " but found " + found.size());
+          checkLazyEpsilon(tree, v, e, found);
+
+          List<double[]> nearest = tree.nearestN(v, 5);
+          double worst = metric.distance(v, nearest.get(nearest.size() - 1));
+          int closer = 0;
+          for(double[] w : points) if(metric.distance(v, w) < worst) closer++;
+          check(closer < 5, "Expected nothing closer than the 5th nearest neighbour but there were " + closer + " points");
+        }
+
+        // Added points have their pivot distances filled in on the way down,
+        // and removed ones take their rows with them.
+        for(int i = 0; i < 2000; i++){
+          if(random.nextBoolean()){
+            double[] v = randomVectors(1, 2).get(0);
+            points.add(v);
+            tree.add(v);
+          } else check(tree.remove(points.remove(random.nextInt(points.size()))), "Expected to be able to remove a point");
+        }
+      }
+      check(filtered > 0, "Expected some points to be ruled out by their pivot distances");
+      if(options.leafLayout != LeafLayout.OBJECTS) check(allPacked(tree.tree), "Expected every leaf to have packed its points");
+    }
+
+    boolean allPacked(VantageTree<double[]>.Tree t){
+      if(t instanceof VantageTree.Leaf) return ((VantageTree<double[]>.Leaf)t).block != null;
+      for(VantageTree<double[]>.Tree child : t.subtrees()) if(!allPacked(child)) return false;
+      return true;
+    }
+  }
+
+  class PivotBudgetTestCase extends Case{
+    long calls;
+
+    PivotBudgetTestCase(String name, List<Double> points){
+      super(name);
+      Metric<Double> counting = new Metric<Double>(){
+        public double distance(Double x, Double y){
+          calls++;
+          return Metric.DOUBLE_DISTANCE.distance(x, y);
+        }
+      };
+      PivotSelector[] selectors = { PivotSelector.RANDOM, PivotSelector.FARTHEST_FIRST, PivotSelector.MAX_VARIANCE, PivotSelector.RECURSIVE };
+      long[] budgets = { 0, 1, 10, 100, 1000, 10000 };
+      for(PivotSelector selector : selectors){
+        for(long budget : budgets){
+          calls = 0;
+          Double pivot = selector.select(counting, points, random, budget);
+          check(points.contains(pivot), "Expected " + selector + " to pick one of the items");
+          check(calls <= budget, "Expected " + selector + " to make at most " + budget + " distance calls but it made " + calls);
+        }
+      }
+    }
+  }
+
+  class SelectTestCase extends Case{
+    SelectTestCase(String name){
+      super(name);
+      for(int round = 0; round < 200; round++){
+        int n = 1 + random.nextInt(round < 100 ? 50 : 5000);
+        // Few distinct values in some rounds, to exercise runs of ties.
+        int distinct = random.nextBoolean() ? 1 + random.nextInt(5) : Integer.MAX_VALUE;
+        double[] values = new double[n];
+        for(int i = 0; i < n; i++) values[i] = distinct == Integer.MAX_VALUE ? random.nextDouble() : random.nextInt(distinct);
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+
+        int k = random.nextInt(n);
+        double found = VantageTree.select(values, 0, n, k);
+        check(found == sorted[k], "Expected the " + k + "th smallest of " + n + " values to be " + sorted[k] + " but got " + found);
+        boolean ordered = true;
+        for(int i = 0; i < k; i++) ordered &= values[i] <= found;
+        for(int i = k + 1; i < n; i++) ordered &= values[i] >= found;
+        check(ordered, "Expected select to leave smaller values before " + k + " and larger ones after");
+      }
+    }
+  }
+
+  class LeafSizeTestCase extends Case{
+    LeafSizeTestCase(String name){
+      super(name);
+      int last = Integer.MAX_VALUE;
+      for(double nanos = 0.5; nanos < 1e7; nanos *= 3){
+        int size = BuildOptions.leafSizeFor(nanos, LeafLayout.OBJECTS);
+        check(size <= last, "Expected a slower metric to get leaves no bigger, but " + nanos + "ns got " + size + " after " + last);
+        check(size >= BuildOptions.MINIMUM_TUNED_LEAF_SIZE && size <= BuildOptions.MAXIMUM_TUNED_LEAF_SIZE, "Expected a tuned leaf size in bounds but got " + size);
+        check(BuildOptions.leafSizeFor(nanos, LeafLayout.DIMENSION_MAJOR) >= size, "Expected packed leaves to be no smaller at " + nanos + "ns");
+        last = size;
+      }
+
+      List<double[]> vectors = randomVectors(1000, 8);
+      BuildOptions options = BuildOptions.DEFAULT.withLeafLayout(LeafLayout.POINT_MAJOR).withLeafSizeFor(Metric.L2_DISTANCE, vectors);
+      check(options.leafSize >= BuildOptions.MINIMUM_TUNED_LEAF_SIZE && options.leafSize <= BuildOptions.MAXIMUM_TUNED_LEAF_SIZE, "Expected a tuned leaf size in bounds but got " + options.leafSize);
+      VantageTree<double[]> tree = new VantageTree<double[]>(Metric.L2_DISTANCE, vectors, options);
+      check(tree.size() == vectors.size(), "Expected a tree of " + vectors.size() + " points but got " + tree.size());
+      check(tree.contains(vectors.get(0)), "Expected the tree built with tuned options to contain its points");
+    }
+  }
+
+  class ApproximateTestCase extends Case{
+    final Metric<double[]> metric = Metric.L2_DISTANCE;
+    final VantageTree<double[]> tree;
+    long calls;
+
+    ApproximateTestCase(String name, List<double[]> points){
+      super(name);
+      this.tree = new VantageTree<double[]>(metric, points);
+      tree.setQueryListener(new QueryListener(){
+        public void queryCompleted(QueryStats stats){ calls = stats.distanceCalls; }
+      });
+
+      for(int i = 0; i < 100; i++){
+        double[] v = randomVectors(1, 10).get(0);
+        int n = 1 + random.nextInt(10);
+        List<double[]> expected = tree.nearestN(v, n);
+
+        NearestResult<double[]> exact = tree.nearestN(v, n, SearchBudget.EXACT);
+        check(exact.exact, "Expected an unlimited search to be exact");
+        sameDistances(v, expected, exact.neighbours);
+
+        NearestResult<double[]> slack = tree.nearestN(v, n, SearchBudget.EXACT.withSlack(0.5));
+        check(slack.neighbours.size() == expected.size(), "Expected a search with slack to find " + expected.size() + " neighbours but it found " + slack.neighbours.size());
+        for(int j = 0; j < expected.size() && j < slack.neighbours.size(); j++){
+          double d = metric.distance(v, slack.neighbours.get(j));
+          check(d <= 1.5 * metric.distance(v, expected.get(j)), "Expected the " + j + "th neighbour found with slack to be within a factor of 1.5 of the true one");
+        }
+        if(slack.exact) sameDistances(v, expected, slack.neighbours);
+
+        NearestResult<double[]> limited = tree.nearestN(v, n, SearchBudget.EXACT.withMaxDistanceCalls(300));
+        check(calls < 300 + VantageTree.MAXIMUM_LEAF_SIZE, "Expected at most " + (300 + VantageTree.MAXIMUM_LEAF_SIZE) + " distance calls but the search made " + calls);
+        if(limited.exact) sameDistances(v, expected, limited.neighbours);
+
+        NearestResult<double[]> oneLeaf = tree.nearestN(v, n, SearchBudget.EXACT.withMaxLeaves(1));
+        check(!oneLeaf.exact, "Expected a search of one leaf of " + tree.size() + " points not to be exact");
+        check(oneLeaf.neighbours.size() <= n, "Expected a search of one leaf to find at most " + n + " neighbours");
+
+        NearestResult<double[]> late = tree.nearestN(v, n, SearchBudget.EXACT.withMaxNanos(0));
+        check(!late.exact && late.neighbours.isEmpty(), "Expected a search with no time at all to find nothing");
+      }
+
+      // As for the plain nearestN, asking for more than there are gets all
+      // of them.
+      NearestResult<double[]> all = tree.nearestN(randomVectors(1, 10).get(0), Integer.MAX_VALUE, SearchBudget.EXACT);
+      check(all.exact && all.neighbours.size() == tree.size(), "Expected a search for every neighbour to find all " + tree.size() + " but it found " + all.neighbours.size());
+    }
+
+    void sameDistances(double[] v, List<double[]> expected, List<double[]> found){
+      check(expected.size() == found.size(), "Expected " + expected.size() + " neighbours but got " + found.size());
+      for(int j = 0; j < expected.size() && j < found.size(); j++){
+        check(metric.distance(v, expected.get(j)) == metric.distance(v, found.get(j)), "Expected the " + j + "th neighbour to be at the same distance as the exact one");
+      }
+    }
+  }
+
+  class VectorTestCase extends Case{
+    final Metric<double[]> metric = Metric.L2_DISTANCE;
+    final List<double[]> points;
+    final DoubleVectorVantageTree tree;
+
+    long calls;
+
+    VectorTestCase(String name, List<double[]> points){
+      this(name, points, Integer.MAX_VALUE);
+    }
+
+    // No query should need more than maximumCalls distances to rows.
+    VectorTestCase(String name, List<double[]> points, int maximumCalls){
+      super(name);
+      this.points = points;
+      this.tree = new DoubleVectorVantageTree(points){
+        double distanceToRow(double[] v, int row){
+          calls++;
+          return super.distanceToRow(v, row);
+        }
+      };
+      check(points.size() == tree.size(), "Expected tree to have " + points.size() + " points but it has " + tree.size());
+
+      for(int id = 0; id < points.size(); id++){
+        check(Arrays.equals(points.get(id), tree.point(id)), "Expected point " + id + " to be " + Arrays.toString(points.get(id)));
+        check(tree.contains(points.get(id)), "Expected tree to contain " + Arrays.toString(points.get(id)));
+      }
+
+      for(int i = 1; i < 5; i++){
+        for(int j = 0; j < 50; j++){
+          testNearest(randomVectors(1, tree.dimension()).get(0), i);
+          testNearest(points.get(random.nextInt(points.size())), i);
+        }
+      }
+
+      for(int i = 0; i < 5; i++) checkIterator(tree, metric, points.get(random.nextInt(points.size())), 1 + random.nextInt(40));
+
+      for(int i = 1; i < 200; i++){
+        testEpsilon(points.get(random.nextInt(points.size())), random.nextDouble());
+      }
+
+      for(int i = 0; i < 50; i++){
+        double[] v = i % 2 == 0 ? randomVectors(1, tree.dimension()).get(0) : points.get(random.nextInt(points.size()));
+        calls = 0;
+        tree.nearestIds(v, 10);
+        check(calls <= maximumCalls, "Expected at most " + maximumCalls + " distances for the nearest neighbours of " + Arrays.toString(v) + " but got " + calls);
+        calls = 0;
+        tree.allIdsWithinEpsilon(v, 0.5);
+        check(calls <= maximumCalls, "Expected at most " + maximumCalls + " distances for the points within 0.5 of " + Arrays.toString(v) + " but got " + calls);
+      }
+
+      testMapped();
+      testTooLarge();
+    }
+
+    // More coordinates than an array can hold should be turned away before
+    // anything is allocated for them.
+    void testTooLarge(){
+      double[] wide = new double[300];
+      List<double[]> many = Collections.nCopies(10000000, wide);
+      try {
+        new DoubleVectorVantageTree(many);
+        check(false, "Expected building a tree of " + many.size() + " points of dimension " + wide.length + " to fail");
+      } catch(IllegalArgumentException expected){ }
+    }
+
+    void testMapped(){
+      try {
+        File file = File.createTempFile("vantage", ".tree");
+        file.deleteOnExit();
+        tree.write(file);
+        MappedVectorTree mapped = MappedVectorTree.map(file);
+
+        check(mapped.size() == tree.size(), "Expected the mapped tree to have " + tree.size() + " points but it has " + mapped.size());
+        check(mapped.dimension() == tree.dimension(), "Expected the mapped tree to have dimension " + tree.dimension());
+        for(int id = 0; id < points.size(); id++){
+          check(Arrays.equals(points.get(id), mapped.point(id)), "Expected mapped point " + id + " to be " + Arrays.toString(points.get(id)));
+        }
+
+        for(int i = 0; i < 100; i++){
+          double[] v = randomVectors(1, tree.dimension()).get(0);
+          int n = 1 + random.nextInt(5);
+          double e = random.nextDouble();
+          check(Arrays.equals(tree.nearestIds(v, n), mapped.nearestIds(v, n)), "Expected the mapped tree to find the same " + n + " nearest neighbours of " + Arrays.toString(v));
+          check(Arrays.equals(tree.allIdsWithinEpsilon(v, e), mapped.allIdsWithinEpsilon(v, e)), "Expected the mapped tree to find the same points within " + e + " of " + Arrays.toString(v));
+        }
+
+        // Queries must measure rows exactly as the build did, or they can
+        // land on the wrong side of a threshold.
+        for(int i = 0; i < 100; i++){
+          double[] v = randomVectors(1, tree.dimension()).get(0);
+          int id = random.nextInt(points.size());
+          double d = metric.distance(v, points.get(id));
+          check(tree.distanceToRow(v, tree.rowOf(id)) == d, "Expected the tree's distance from " + Arrays.toString(v) + " to point " + id + " to be exactly " + d);
+          check(mapped.distanceToRow(v, mapped.rowOf(id)) == d, "Expected the mapped tree's distance from " + Arrays.toString(v) + " to point " + id + " to be exactly " + d);
+        }
+
+        testQuantized(new QuantizedVectorTree(mapped, Quantization.FLOAT));
+        testQuantized(new QuantizedVectorTree(mapped, Quantization.INT8));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 8);
+        raf.close();
+        try {
+          MappedVectorTree.map(file);
+          check(false, "Expected mapping a truncated file to fail");
+        } catch(IOException expected){ }
+      } catch(IOException e){
+        check(false, "Expected writing and mapping the tree to work but got " + e);
+      }
+    }
+
+    // Quantized copies should give exactly the same answers as the tree.
+    void testQuantized(QuantizedVectorTree quantized){
+      check(quantized.size() == tree.size(), "Expected the " + quantized.quantization + " tree to have " + tree.size() + " points but it has " + quantized.size());
+      for(int id = 0; id < points.size(); id += 1 + points.size() / 50){
+        check(Arrays.equals(points.get(id), quantized.point(id)), "Expected " + quantized.quantization + " point " + id + " to be exact");
+        check(quantized.contains(points.get(id)), "Expected the " + quantized.quantization + " tree to contain " + Arrays.toString(points.get(id)));
+      }
+
+      for(int i = 0; i < 100; i++){
+        double[] v = i % 2 == 0 ? randomVectors(1, tree.dimension()).get(0) : points.get(random.nextInt(points.size()));
+        int n = 1 + random.nextInt(10);
+        double e = random.nextDouble();
+        check(samePoints(tree.nearestIds(v, n), quantized.nearestIds(v, n)), "Expected the " + quantized.quantization + " tree to find the same " + n + " nearest neighbours of " + Arrays.toString(v));
+        int[] expected = tree.allIdsWithinEpsilon(v, e);
+        int[] found = quantized.allIdsWithinEpsilon(v, e);
+        Arrays.sort(expected);
+        Arrays.sort(found);
+        check(Arrays.equals(expected, found), "Expected the " + quantized.quantization + " tree to find the same points within " + e + " of " + Arrays.toString(v));
+      }
+    }
+
+    // Copies of a point are interchangeable, so ids are compared by the
+    // points they name.
+    boolean samePoints(int[] x, int[] y){
+      if(x.length != y.length) return false;
+      for(int i = 0; i < x.length; i++) if(!Arrays.equals(points.get(x[i]), points.get(y[i]))) return false;
+      return true;
+    }
+
+    void testNearest(double[] v, int n){
+      int[] nearest = tree.nearestIds(v, n);
+      check(nearest.length == Math.min(n, points.size()), "Expected " + n + " nearest neighbours but got " + nearest.length);
+
+      Set<Integer> found = new HashSet<Integer>();
+      double worst = 0.0;
+      for(int i = 0; i < nearest.length; i++){
+        double d = metric.distance(v, points.get(nearest[i]));
+        check(d >= worst, "Expected nearest neighbours to be in increasing order of distance");
+        worst = d;
+        found.add(nearest[i]);
+      }
+
+      for(int id = 0; id < points.size(); id++){
+        if(!found.contains(id)){
+          check(worst <= metric.distance(v, points.get(id)), "The point " + id + " is closer to " + Arrays.toString(v) + " than one of its supposed " + n + " nearest neighbours");
+        }
+      }
+    }
+
+    void testEpsilon(double[] v, double e){
+      Set<Integer> within = new HashSet<Integer>();
+      for(int id : tree.allIdsWithinEpsilon(v, e)){
+        check(within.add(id), "Expected point " + id + " to be reported only once");
+      }
+
+      for(int id = 0; id < points.size(); id++){
+        boolean hit = metric.distance(v, points.get(id)) < e;
+        check(hit == within.contains(id), "Expected point " + id + (hit ? "" : " not") + " to be within " + e + " of " + Arrays.toString(v));
+      }
+      check(tree.countWithinEpsilon(v, e) == within.size(), "Expected to count " + within.size() + " points within " + e + " of " + Arrays.toString(v));
+    }
+  }
+
+  // Checks the VectorMetrics against naive implementations, at lengths on
+  // either side of the vector width and with mismatched lengths.
+  class MetricTestCase extends Case{
+    MetricTestCase(String name){
+      super(name);
+      int[] lengths = {0, 1, 3, 7, 8, 9, 16, 31, 100};
+      for(int a : lengths){
+        for(int b : lengths){
+          double[] x = randomVectors(1, a).get(0);
+          double[] y = randomVectors(1, b).get(0);
+          for(int i = 0; i < y.length; i += 3) y[i] = -y[i];
+          compare(x, y);
+        }
+      }
+      double[] x = randomVectors(1, 5).get(0);
+      check(VectorMetrics.ANGULAR.distance(x, x) < 1e-6, "Expected the angle between a vector and itself to be 0");
+      check(VectorMetrics.ANGULAR.distance(x, new double[5]) == 0.5, "Expected a zero vector to be at right angles to " + Arrays.toString(x));
+
+      for(int n : new int[]{ 5, 100, 4099 }) compareFloatKernels(n);
+    }
+
+    // The float kernels work in double, so whether or not they are SIMD they
+    // should agree with the scalar double kernels on the same values to
+    // double precision, however long the vectors.
+    void compareFloatKernels(int n){
+      DistanceKernels scalar = new DistanceKernels();
+      DistanceKernels kernels = DistanceKernels.INSTANCE;
+      float[] fx = new float[n];
+      float[] fy = new float[n];
+      double[] dx = new double[n];
+      double[] dy = new double[n];
+      for(int i = 0; i < n; i++){
+        fx[i] = random.nextFloat();
+        fy[i] = -random.nextFloat();
+        dx[i] = fx[i];
+        dy[i] = fy[i];
+      }
+      double inf = Double.POSITIVE_INFINITY;
+      String at = " for float vectors of length " + n + (kernels.vectorized() ? " with SIMD" : "");
+      close(scalar.squaredL2(dx, dy, n, inf), kernels.squaredL2(fx, fy, n, inf), 1e-12, "float squared L2" + at);
+      close(scalar.l1(dx, dy, n, inf), kernels.l1(fx, fy, n, inf), 1e-12, "float L1" + at);
+      close(scalar.lInfinity(dx, dy, n, inf), kernels.lInfinity(fx, fy, n, inf), 1e-12, "float L infinity" + at);
+      close(scalar.dot(dx, dy, n), kernels.dot(fx, fy, n), 1e-12, "float dot product" + at);
+    }
+
+    void compare(double[] x, double[] y){
+      int n = Math.max(x.length, y.length);
+      double[] px = Arrays.copyOf(x, n);
+      double[] py = Arrays.copyOf(y, n);
+      float[] fx = new float[x.length];
+      float[] fy = new float[y.length];
+      for(int i = 0; i < x.length; i++) fx[i] = (float)x[i];
+      for(int i = 0; i < y.length; i++) fy[i] = (float)y[i];
+
+      double l2 = 0, l1 = 0, linf = 0, dot = 0, xx = 0, yy = 0;
+      for(int i = 0; i < n; i++){
+        l2 += Math.pow(px[i] - py[i], 2);
+        l1 += Math.abs(px[i] - py[i]);
+        linf = Math.max(linf, Math.abs(px[i] - py[i]));
+        dot += px[i] * py[i];
+        xx += px[i] * px[i];
+        yy += py[i] * py[i];
+      }
+      double angle = xx == 0 || yy == 0 ? (xx == yy ? 0.0 : 0.5) : Math.acos(Math.max(-1.0, Math.min(1.0, dot / Math.sqrt(xx * yy)))) / Math.PI;
+
+      String at = " for vectors of length " + x.length + " and " + y.length;
+      close(l2, VectorMetrics.SQUARED_L2.distance(x, y), 1e-9, "squared L2" + at);
+      close(Math.sqrt(l2), VectorMetrics.L2.distance(x, y), 1e-9, "L2" + at);
+      close(Math.sqrt(l2), Metric.L2_DISTANCE.distance(x, y), 1e-9, "Metric.L2_DISTANCE" + at);
+      close(l1, VectorMetrics.L1.distance(x, y), 1e-9, "L1" + at);
+      close(linf, VectorMetrics.L_INFINITY.distance(x, y), 1e-9, "L infinity" + at);
+      close(angle, VectorMetrics.ANGULAR.distance(x, y), 1e-6, "angular" + at);
+
+      close(l2, VectorMetrics.FLOAT_SQUARED_L2.distance(fx, fy), 1e-3, "float squared L2" + at);
+      close(Math.sqrt(l2), VectorMetrics.FLOAT_L2.distance(fx, fy), 1e-3, "float L2" + at);
+      close(l1, VectorMetrics.FLOAT_L1.distance(fx, fy), 1e-3, "float L1" + at);
+      close(linf, VectorMetrics.FLOAT_L_INFINITY.distance(fx, fy), 1e-3, "float L infinity" + at);
+      close(angle, VectorMetrics.FLOAT_ANGULAR.distance(fx, fy), 1e-3, "float angular" + at);
+
+      for(Metric<double[]> m : Arrays.asList(VectorMetrics.L2, VectorMetrics.SQUARED_L2, VectorMetrics.L1, VectorMetrics.L_INFINITY, Metric.L2_DISTANCE)){
+        cutoff(m, x, y, at);
+      }
+      for(Metric<float[]> m : Arrays.asList(VectorMetrics.FLOAT_L2, VectorMetrics.FLOAT_SQUARED_L2, VectorMetrics.FLOAT_L1, VectorMetrics.FLOAT_L_INFINITY)){
+        cutoff(m, fx, fy, at);
+      }
+    }
+
+    <V> void cutoff(Metric<V> m, V x, V y, String at){
+      double d = m.distance(x, y);
+      for(double c : new double[]{ 0.0, d * random.nextDouble(), d, d * (1 + random.nextDouble()), Double.POSITIVE_INFINITY }){
+        double cut = m.distanceWithCutoff(x, y, c);
+        if(d <= c) check(cut == d, "Expected a cutoff of " + c + " not to change a distance of " + d + at + " but got " + cut);
+        else check(c < cut && cut <= d, "Expected a cutoff of " + c + " on a distance of " + d + at + " to give something between them but got " + cut);
+      }
+    }
+
+    void close(double expected, double actual, double tolerance, String what){
+      check(Math.abs(expected - actual) <= tolerance * Math.max(1.0, Math.abs(expected)), "Expected " + what + " to be " + expected + " but got " + actual);
     }
   }
 
@@ -89,7 +1402,7 @@ class VantageTreeTests{
 
   void run(){
     boolean failed = false;
-    for(TestCase<?> tc : testCases){
+    for(Case tc : testCases){
       if(!tc.errors.isEmpty()){
         System.err.println(tc.name + " failed");
        
@@ -0,0 +1,155 @@
+package com.drmaciver;
+
+// Metrics on double[] and float[] vectors, built on DistanceKernels so that
+// they use SIMD instructions where the VM supports it. As with
+// Metric.L2_DISTANCE, a vector shorter than the other is treated as if it
+// were padded with zeros.
+public class VectorMetrics{
+  private static final DistanceKernels KERNELS = DistanceKernels.INSTANCE;
+
+  // Whether the metrics here are using the Vector API rather than scalar loops.
+  public static boolean vectorized(){ return KERNELS.vectorized(); }
+
+  public static final Metric<double[]> L2 = new Metric<double[]>(){
+    public double distance(double[] x, double[] y){ return Math.sqrt(squaredL2(x, y, Double.POSITIVE_INFINITY)); }
+    public double distanceWithCutoff(double[] x, double[] y, double cutoff){ return Math.sqrt(squaredL2(x, y, squaredCutoff(cutoff))); }
+  };
+
+  // The square of L2. This is not itself a metric, but its bound and unbound
+  // work in terms of squared distances, so it can be used anywhere L2 can
+  // without taking a square root per distance.
+  public static final Metric<double[]> SQUARED_L2 = new SquaredMetric<double[]>(){
+    public double distance(double[] x, double[] y){ return squaredL2(x, y, Double.POSITIVE_INFINITY); }
+    public double distanceWithCutoff(double[] x, double[] y, double cutoff){ return squaredL2(x, y, cutoff); }
+  };
+
+  public static final Metric<double[]> L1 = new Metric<double[]>(){
+    public double distance(double[] x, double[] y){ return distanceWithCutoff(x, y, Double.POSITIVE_INFINITY); }
+
+    public double distanceWithCutoff(double[] x, double[] y, double cutoff){
+      int n = Math.min(x.length, y.length);
+      double tot = KERNELS.l1(x, y, n, cutoff);
+      if(tot > cutoff) return tot;
+      for(int i = n; i < x.length; i++) tot += Math.abs(x[i]);
+      for(int i = n; i < y.length; i++) tot += Math.abs(y[i]);
+      return tot;
+    }
+  };
+
+  public static final Metric<double[]> L_INFINITY = new Metric<double[]>(){
+    public double distance(double[] x, double[] y){ return distanceWithCutoff(x, y, Double.POSITIVE_INFINITY); }
+
+    public double distanceWithCutoff(double[] x, double[] y, double cutoff){
+      int n = Math.min(x.length, y.length);
+      double max = KERNELS.lInfinity(x, y, n, cutoff);
+      if(max > cutoff) return max;
+      for(int i = n; i < x.length; i++) max = Math.max(max, Math.abs(x[i]));
+      for(int i = n; i < y.length; i++) max = Math.max(max, Math.abs(y[i]));
+      return max;
+    }
+  };
+
+  // The angle between two vectors as a fraction of pi, which unlike cosine
+  // distance satisfies the triangle inequality. A zero vector is taken to be
+  // at right angles to everything but another zero vector.
+  public static final Metric<double[]> ANGULAR = new Metric<double[]>(){
+    public double distance(double[] x, double[] y){
+      int n = Math.min(x.length, y.length);
+      return angular(KERNELS.dot(x, y, n), KERNELS.dot(x, x, x.length), KERNELS.dot(y, y, y.length));
+    }
+  };
+
+  public static final Metric<float[]> FLOAT_L2 = new Metric<float[]>(){
+    public double distance(float[] x, float[] y){ return Math.sqrt(squaredL2(x, y, Double.POSITIVE_INFINITY)); }
+    public double distanceWithCutoff(float[] x, float[] y, double cutoff){ return Math.sqrt(squaredL2(x, y, squaredCutoff(cutoff))); }
+  };
+
+  public static final Metric<float[]> FLOAT_SQUARED_L2 = new SquaredMetric<float[]>(){
+    public double distance(float[] x, float[] y){ return squaredL2(x, y, Double.POSITIVE_INFINITY); }
+    public double distanceWithCutoff(float[] x, float[] y, double cutoff){ return squaredL2(x, y, cutoff); }
+  };
+
+  public static final Metric<float[]> FLOAT_L1 = new Metric<float[]>(){
+    public double distance(float[] x, float[] y){ return distanceWithCutoff(x, y, Double.POSITIVE_INFINITY); }
+
+    public double distanceWithCutoff(float[] x, float[] y, double cutoff){
+      int n = Math.min(x.length, y.length);
+      double tot = KERNELS.l1(x, y, n, cutoff);
+      if(tot > cutoff) return tot;
+      for(int i = n; i < x.length; i++) tot += Math.abs(x[i]);
+      for(int i = n; i < y.length; i++) tot += Math.abs(y[i]);
+      return tot;
+    }
+  };
+
+  public static final Metric<float[]> FLOAT_L_INFINITY = new Metric<float[]>(){
+    public double distance(float[] x, float[] y){ return distanceWithCutoff(x, y, Double.POSITIVE_INFINITY); }
+
+    public double distanceWithCutoff(float[] x, float[] y, double cutoff){
+      int n = Math.min(x.length, y.length);
+      double max = KERNELS.lInfinity(x, y, n, cutoff);
+      if(max > cutoff) return max;
+      for(int i = n; i < x.length; i++) max = Math.max(max, Math.abs(x[i]));
+      for(int i = n; i < y.length; i++) max = Math.max(max, Math.abs(y[i]));
+      return max;
+    }
+  };
+
+  public static final Metric<float[]> FLOAT_ANGULAR = new Metric<float[]>(){
+    public double distance(float[] x, float[] y){
+      int n = Math.min(x.length, y.length);
+      return angular(KERNELS.dot(x, y, n), KERNELS.dot(x, x, x.length), KERNELS.dot(y, y, y.length));
+    }
+  };
+
+  // The cutoff to use on a squared distance for a cutoff of c on its square
+  // root. It is a little generous, so that rounding can never make the square
+  // root of an abandoned sum come out at or below c.
+  static double squaredCutoff(double c){
+    return c * c * (1 + 1e-9);
+  }
+
+  static double squaredL2(double[] x, double[] y, double cutoff){
+    int n = Math.min(x.length, y.length);
+    double tot = KERNELS.squaredL2(x, y, n, cutoff);
+    if(tot > cutoff) return tot;
+    for(int i = n; i < x.length; i++) tot += x[i] * x[i];
+    for(int i = n; i < y.length; i++) tot += y[i] * y[i];
+    return tot;
+  }
+
+  static double squaredL2(float[] x, float[] y, double cutoff){
+    int n = Math.min(x.length, y.length);
+    double tot = KERNELS.squaredL2(x, y, n, cutoff);
+    if(tot > cutoff) return tot;
+    for(int i = n; i < x.length; i++) tot += x[i] * x[i];
+    for(int i = n; i < y.length; i++) tot += y[i] * y[i];
+    return tot;
+  }
+
+  static double angular(double dot, double xx, double yy){
+    if(xx == 0.0 || yy == 0.0) return xx == yy ? 0.0 : 0.5;
+    double cos = dot / Math.sqrt(xx * yy);
+    if(cos > 1.0) cos = 1.0;
+    if(cos < -1.0) cos = -1.0;
+    return Math.acos(cos) / Math.PI;
+  }
+
+  // A metric reporting squared distances, with the triangle inequality
+  // applied to their square roots.
+  abstract static class SquaredMetric<V> extends Metric<V>{
+    // The square of the sum of the roots is at least d1 + d2, but rounding
+    // can take it under when one of them is tiny, which would prune a point
+    // at exactly d2.
+    public double bound(double d1, double d2){
+      double r = Math.sqrt(d1) + Math.sqrt(d2);
+      return Math.max(r * r, d1 + d2);
+    }
+
+    public double unbound(double d1, double d2){
+      if(d1 <= d2) return 0.0;
+      double r = Math.sqrt(d1) - Math.sqrt(d2);
+      return r * r;
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package com.drmaciver;
+
+import java.nio.ByteOrder;
+
+// The on disk format of a flat vector tree, as written by
+// AbstractVectorTree.write and read by MappedVectorTree:
+//
+//   header (HEADER_SIZE bytes): MAGIC, VERSION, dimension, size, nodeCount
+//   int nodeStart[nodeCount], nodeEnd[nodeCount], nodeIn[nodeCount],
+//       nodeOut[nodeCount], ids[size], rows[size], then one int of padding
+//       if needed to keep what follows 8 byte aligned
+//   double nodeThreshold[nodeCount], nodeRadius[nodeCount]
+//   double coordinates[size * dimension], row-major in tree order
+//
+// Everything is little endian.
+class VectorTreeFormat{
+  static final int MAGIC = 0x56545245; // "VTRE"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 32;
+  static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  // Byte offsets of each section for a tree of the given shape.
+  static class Layout{
+    final long nodeStart;
+    final long nodeEnd;
+    final long nodeIn;
+    final long nodeOut;
+    final long ids;
+    final long rows;
+    final int intPadding;
+    final long nodeThreshold;
+    final long nodeRadius;
+    final long coordinates;
+    final long length;
+
+    Layout(int dimension, int size, int nodeCount){
+      nodeStart = HEADER_SIZE;
+      nodeEnd = nodeStart + 4L * nodeCount;
+      nodeIn = nodeEnd + 4L * nodeCount;
+      nodeOut = nodeIn + 4L * nodeCount;
+      ids = nodeOut + 4L * nodeCount;
+      rows = ids + 4L * size;
+      long intsEnd = rows + 4L * size;
+      intPadding = (int)(intsEnd % 8) / 4;
+      nodeThreshold = intsEnd + 4L * intPadding;
+      nodeRadius = nodeThreshold + 8L * nodeCount;
+      coordinates = nodeRadius + 8L * nodeCount;
+      length = coordinates + 8L * size * dimension;
+    }
+  }
+}
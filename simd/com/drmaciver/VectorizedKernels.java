@@ -0,0 +1,146 @@
+package com.drmaciver;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// SIMD versions of the DistanceKernels, using the incubating Vector API. This
+// needs JDK 16 or later and --add-modules jdk.incubator.vector both to compile
+// and to run (see the simd target in the Makefile). DistanceKernels picks it
+// up automatically when it can be loaded.
+class VectorizedKernels extends DistanceKernels{
+  static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+  static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+  // How many vectors of doubles a vector of floats widens into.
+  static final int WIDENING = FLOATS.length() / DOUBLES.length();
+
+  boolean vectorized(){ return true; }
+
+  double squaredL2Block(double[] x, double[] y, int from, int to){
+    DoubleVector acc = DoubleVector.zero(DOUBLES);
+    int i = from;
+    for(int bound = from + DOUBLES.loopBound(to - from); i < bound; i += DOUBLES.length()){
+      DoubleVector d = DoubleVector.fromArray(DOUBLES, x, i).sub(DoubleVector.fromArray(DOUBLES, y, i));
+      acc = d.fma(d, acc);
+    }
+    double tot = acc.reduceLanes(VectorOperators.ADD);
+    for(; i < to; i++){
+      double d = x[i] - y[i];
+      tot += d * d;
+    }
+    return tot;
+  }
+
+  double squaredL2Block(double[] x, double[] y, int offset, int from, int to){
+    DoubleVector acc = DoubleVector.zero(DOUBLES);
+    int i = from;
+    for(int bound = from + DOUBLES.loopBound(to - from); i < bound; i += DOUBLES.length()){
+      DoubleVector d = DoubleVector.fromArray(DOUBLES, x, i).sub(DoubleVector.fromArray(DOUBLES, y, offset + i));
+      acc = d.fma(d, acc);
+    }
+    double tot = acc.reduceLanes(VectorOperators.ADD);
+    for(; i < to; i++){
+      double d = x[i] - y[offset + i];
+      tot += d * d;
+    }
+    return tot;
+  }
+
+  double l1Block(double[] x, double[] y, int from, int to){
+    DoubleVector acc = DoubleVector.zero(DOUBLES);
+    int i = from;
+    for(int bound = from + DOUBLES.loopBound(to - from); i < bound; i += DOUBLES.length()){
+      acc = acc.add(DoubleVector.fromArray(DOUBLES, x, i).sub(DoubleVector.fromArray(DOUBLES, y, i)).abs());
+    }
+    double tot = acc.reduceLanes(VectorOperators.ADD);
+    for(; i < to; i++) tot += Math.abs(x[i] - y[i]);
+    return tot;
+  }
+
+  double lInfinityBlock(double[] x, double[] y, int from, int to){
+    DoubleVector acc = DoubleVector.zero(DOUBLES);
+    int i = from;
+    for(int bound = from + DOUBLES.loopBound(to - from); i < bound; i += DOUBLES.length()){
+      acc = acc.max(DoubleVector.fromArray(DOUBLES, x, i).sub(DoubleVector.fromArray(DOUBLES, y, i)).abs());
+    }
+    double max = acc.reduceLanes(VectorOperators.MAX);
+    for(; i < to; i++) max = Math.max(max, Math.abs(x[i] - y[i]));
+    return max;
+  }
+
+  double dot(double[] x, double[] y, int n){
+    DoubleVector acc = DoubleVector.zero(DOUBLES);
+    int i = 0;
+    for(int bound = DOUBLES.loopBound(n); i < bound; i += DOUBLES.length()){
+      acc = DoubleVector.fromArray(DOUBLES, x, i).fma(DoubleVector.fromArray(DOUBLES, y, i), acc);
+    }
+    double tot = acc.reduceLanes(VectorOperators.ADD);
+    for(; i < n; i++) tot += x[i] * y[i];
+    return tot;
+  }
+
+  // As in the scalar versions, floats are widened to double before any
+  // arithmetic, with each vector of them split into WIDENING of doubles.
+  static DoubleVector widen(FloatVector v, int part){
+    return (DoubleVector)v.convertShape(VectorOperators.F2D, DOUBLES, part);
+  }
+
+  double squaredL2Block(float[] x, float[] y, int from, int to){
+    DoubleVector acc = DoubleVector.zero(DOUBLES);
+    int i = from;
+    for(int bound = from + FLOATS.loopBound(to - from); i < bound; i += FLOATS.length()){
+      FloatVector fx = FloatVector.fromArray(FLOATS, x, i);
+      FloatVector fy = FloatVector.fromArray(FLOATS, y, i);
+      for(int part = 0; part < WIDENING; part++){
+        DoubleVector d = widen(fx, part).sub(widen(fy, part));
+        acc = d.fma(d, acc);
+      }
+    }
+    double tot = acc.reduceLanes(VectorOperators.ADD);
+    for(; i < to; i++){
+      double d = (double)x[i] - y[i];
+      tot += d * d;
+    }
+    return tot;
+  }
+
+  double l1Block(float[] x, float[] y, int from, int to){
+    DoubleVector acc = DoubleVector.zero(DOUBLES);
+    int i = from;
+    for(int bound = from + FLOATS.loopBound(to - from); i < bound; i += FLOATS.length()){
+      FloatVector fx = FloatVector.fromArray(FLOATS, x, i);
+      FloatVector fy = FloatVector.fromArray(FLOATS, y, i);
+      for(int part = 0; part < WIDENING; part++) acc = acc.add(widen(fx, part).sub(widen(fy, part)).abs());
+    }
+    double tot = acc.reduceLanes(VectorOperators.ADD);
+    for(; i < to; i++) tot += Math.abs((double)x[i] - y[i]);
+    return tot;
+  }
+
+  double lInfinityBlock(float[] x, float[] y, int from, int to){
+    DoubleVector acc = DoubleVector.zero(DOUBLES);
+    int i = from;
+    for(int bound = from + FLOATS.loopBound(to - from); i < bound; i += FLOATS.length()){
+      FloatVector fx = FloatVector.fromArray(FLOATS, x, i);
+      FloatVector fy = FloatVector.fromArray(FLOATS, y, i);
+      for(int part = 0; part < WIDENING; part++) acc = acc.max(widen(fx, part).sub(widen(fy, part)).abs());
+    }
+    double max = acc.reduceLanes(VectorOperators.MAX);
+    for(; i < to; i++) max = Math.max(max, Math.abs((double)x[i] - y[i]));
+    return max;
+  }
+
+  double dot(float[] x, float[] y, int n){
+    DoubleVector acc = DoubleVector.zero(DOUBLES);
+    int i = 0;
+    for(int bound = FLOATS.loopBound(n); i < bound; i += FLOATS.length()){
+      FloatVector fx = FloatVector.fromArray(FLOATS, x, i);
+      FloatVector fy = FloatVector.fromArray(FLOATS, y, i);
+      for(int part = 0; part < WIDENING; part++) acc = widen(fx, part).fma(widen(fy, part), acc);
+    }
+    double tot = acc.reduceLanes(VectorOperators.ADD);
+    for(; i < n; i++) tot += (double)x[i] * y[i];
+    return tot;
+  }
+}